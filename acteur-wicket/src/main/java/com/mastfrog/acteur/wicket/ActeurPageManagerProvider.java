@@ -0,0 +1,66 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.DefaultPageManagerProvider;
+import org.apache.wicket.pageStore.IDataStore;
+import org.apache.wicket.pageStore.IPageStore;
+
+/**
+ * Page manager provider which puts Wicket's page store on top of our
+ * memory-mapped data store instead of the default disk data store, and
+ * optionally defers writing pages until their response has been sent.
+ *
+ * @author Tim Boudreau
+ */
+class ActeurPageManagerProvider extends DefaultPageManagerProvider {
+
+    private final IDataStore dataStore;
+    private final PageWriteBehind writeBehind;
+
+    /**
+     * Create a provider.
+     *
+     * @param application The application
+     * @param dataStore The data store
+     * @param writeBehind Defers page writes, if enabled
+     */
+    ActeurPageManagerProvider(Application application, IDataStore dataStore, PageWriteBehind writeBehind) {
+        super(application);
+        this.dataStore = dataStore;
+        this.writeBehind = writeBehind;
+    }
+
+    @Override
+    protected IPageStore newPageStore(IDataStore dataStore) {
+        IPageStore store = super.newPageStore(dataStore);
+        return writeBehind.isEnabled() ? writeBehind.wrap(store) : store;
+    }
+
+    @Override
+    protected IDataStore newDataStore() {
+        return dataStore;
+    }
+}
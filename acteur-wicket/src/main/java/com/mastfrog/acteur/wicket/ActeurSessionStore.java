@@ -20,16 +20,38 @@ import com.google.common.collect.Maps;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
 import com.mastfrog.acteur.HttpEvent;
-import com.mastfrog.acteur.headers.Headers;
-import com.mastfrog.acteur.wicket.adapters.RequestAdapter;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_SESSION_EXPIRY_TICK_SECONDS;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_SESSION_COOKIE_MAX_AGE_HOURS;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_SESSION_IDLE_TIMEOUT_MINUTES;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_SESSION_COOKIE_MAX_AGE_HOURS;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_SESSION_EXPIRY_TICK_SECONDS;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_SESSION_HEAP_BUDGET_MB;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_SESSION_PASSIVATE_AFTER_MINUTES;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_SESSION_PASSIVATION_DIR;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_SESSION_IDLE_TIMEOUT_MINUTES;
+import com.mastfrog.acteur.wicket.adapters.ResponseAdapter;
+import com.mastfrog.giulius.ShutdownHookRegistry;
+import com.mastfrog.settings.Settings;
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.inject.Inject;
 
 import javax.servlet.http.HttpServletRequest;
@@ -38,15 +60,17 @@ import javax.servlet.http.HttpSessionBindingEvent;
 import javax.servlet.http.HttpSessionBindingListener;
 
 import org.apache.wicket.Application;
+import org.apache.wicket.MetaDataKey;
 import org.apache.wicket.Session;
-import org.apache.wicket.core.request.ClientInfo;
+import org.apache.wicket.ThreadContext;
 import org.apache.wicket.markup.MarkupParser;
 import org.apache.wicket.protocol.http.IRequestLogger;
 import org.apache.wicket.protocol.http.WebApplication;
-import org.apache.wicket.protocol.http.request.WebClientInfo;
 import org.apache.wicket.request.Request;
+import org.apache.wicket.request.Response;
 import org.apache.wicket.request.cycle.RequestCycle;
 import org.apache.wicket.request.http.WebRequest;
+import org.apache.wicket.request.http.WebResponse;
 import org.apache.wicket.session.ISessionStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -61,7 +85,7 @@ import org.slf4j.LoggerFactory;
  * @author Tim Boudreau
  */
 @Singleton
-public class ActeurSessionStore implements ISessionStore {
+public class ActeurSessionStore implements ISessionStore, SessionExpiry.Expirer {
 
     public static final String COOKIE_NAME = "jsessionid";
 
@@ -77,15 +101,60 @@ public class ActeurSessionStore implements ISessionStore {
 
     private final Set<BindListener> bindListeners = new CopyOnWriteArraySet<BindListener>();
 
-    private final Map<String, SessionImpl> sessions = Maps.newConcurrentMap();
-    private final Provider<SessionId> sessionId;
+    /**
+     * The session resolved for the current request cycle, so later lookups
+     * in the same cycle skip the map.
+     */
+    private static final MetaDataKey<SessionImpl> RESOLVED_SESSION = new MetaDataKey<SessionImpl>() {
+    };
+    private final ConcurrentMap<SessionId, SessionImpl> sessions = Maps.newConcurrentMap();
+    private final Provider<LazySessionId> sessionId;
+    private final SessionExpiry expiry;
+    private final long heapBudget;
+    private final AtomicLong retainedBytes = new AtomicLong();
+    private final SessionPassivator passivator;
+    private final SessionExpiry passivation;
+    private final int cookieMaxAgeSeconds;
+    private volatile String sessionAttributePrefix;
 
     /**
      * Construct.
      */
     @Inject
-    public ActeurSessionStore(Provider<SessionId> sessionId) {
+    public ActeurSessionStore(Provider<LazySessionId> sessionId, Settings settings, ShutdownHookRegistry reg, WicketConfig config) throws IOException {
         this.sessionId = sessionId;
+        cookieMaxAgeSeconds = (int) TimeUnit.HOURS.toSeconds(
+                settings.getLong(SETTINGS_KEY_SESSION_COOKIE_MAX_AGE_HOURS, DEFAULT_SESSION_COOKIE_MAX_AGE_HOURS));
+        long idleMinutes = settings.getLong(SETTINGS_KEY_SESSION_IDLE_TIMEOUT_MINUTES, DEFAULT_SESSION_IDLE_TIMEOUT_MINUTES);
+        long tickMillis = TimeUnit.SECONDS.toMillis(settings.getLong(SETTINGS_KEY_SESSION_EXPIRY_TICK_SECONDS, DEFAULT_SESSION_EXPIRY_TICK_SECONDS));
+        heapBudget = settings.getLong(SETTINGS_KEY_SESSION_HEAP_BUDGET_MB, 0L) * 1024L * 1024L;
+        expiry = new SessionExpiry("wicket-session-expiry", TimeUnit.MINUTES.toMillis(idleMinutes), tickMillis, this);
+        long passivateMinutes = settings.getLong(SETTINGS_KEY_SESSION_PASSIVATE_AFTER_MINUTES, 0L);
+        if (passivateMinutes > 0) {
+            String dir = settings.getString(SETTINGS_KEY_SESSION_PASSIVATION_DIR);
+            File passivationDir = dir == null
+                    ? Files.createTempDirectory("acteur-wicket-sessions").toFile()
+                    : new File(dir);
+            passivator = new SessionPassivator(passivationDir, config.applicationClass().getClassLoader());
+            passivation = new SessionExpiry("wicket-session-passivation", TimeUnit.MINUTES.toMillis(passivateMinutes), tickMillis, new Passivator());
+        } else {
+            passivator = null;
+            passivation = null;
+        }
+        reg.add(new Runnable() {
+            @Override
+            public void run() {
+                shutdown();
+            }
+        });
+    }
+
+    private void shutdown() {
+        expiry.shutdown();
+        if (passivator != null) {
+            passivation.shutdown();
+            passivator.shutdown();
+        }
     }
 
     /**
@@ -112,16 +181,269 @@ public class ActeurSessionStore implements ISessionStore {
      * {@code create} is false and the {@code request} has no valid session
      */
     final SessionImpl getHttpSession(final Request request, final boolean create) {
-        SessionId id = this.sessionId.get();
-        SessionImpl sess = id == null ? null : sessions.get(id.toString());
+        RequestCycle cycle = RequestCycle.get();
+        if (cycle != null) {
+            // Resolved earlier in this request cycle - still good unless it
+            // has been invalidated or passivated since
+            SessionImpl sess = cycle.getMetaData(RESOLVED_SESSION);
+            if (sess != null && !sess.isInvalid() && !touch(sess)) {
+                return sess;
+            }
+        }
+        SessionImpl sess = resolveHttpSession(create);
+        if (cycle != null) {
+            cycle.setMetaData(RESOLVED_SESSION, sess);
+        }
+        return sess;
+    }
+
+    private SessionImpl resolveHttpSession(boolean create) {
+        LazySessionId lazy = this.sessionId.get();
+        if (lazy == null) {
+            return null;
+        }
+        if (!lazy.isAssigned()) {
+            // No cookie came in - only mint an id if a session is wanted
+            if (!create) {
+                return null;
+            }
+            RequestCycle cycle = RequestCycle.get();
+            Response response = cycle == null ? null : cycle.getOriginalResponse();
+            if (response instanceof ResponseAdapter && ((ResponseAdapter) response).isStreaming()) {
+                // RunRequestCycle does not stream for requests without a
+                // session id, so this is a bug - better to fail than to
+                // create a session the client can never get back to
+                throw new IllegalStateException("Session created after the response was committed");
+            }
+            if (lazy.assign()) {
+                sessionIdAssigned(lazy.get());
+            }
+        }
+        SessionId id = lazy.get();
+        SessionImpl sess = sessions.get(id);
+        if (sess != null && sess.isInvalid()) {
+            // Lost a race with the expiry timer
+            sess = null;
+        }
+        if (sess != null && expiry.isExpired(sess, System.currentTimeMillis())) {
+            // The expiry timer has not gotten to it yet
+            expire(sess);
+            sess = null;
+        }
         if (sess == null && create) {
-            sess = new SessionImpl(request, id);
-            bind(request, sess);
-            sessions.put(id.toString(), sess);
+            SessionImpl nue = new SessionImpl(id);
+            sess = sessions.putIfAbsent(id, nue);
+            if (sess == null) {
+                sess = nue;
+                expiry.schedule(sess);
+                if (passivation != null) {
+                    passivation.schedule(sess);
+                }
+                account(sess, sess.estimatedSize());
+            }
+        }
+        if (sess != null && touch(sess) && passivator != null) {
+            activate(sess);
         }
         return sess;
     }
 
+    /**
+     * Mark a session as in use by the current request.  Done holding the
+     * session's monitor, which passivate() holds while it checks that the
+     * session is idle, so a request which finds the session active cannot
+     * have it passivated out from under it.
+     *
+     * @param session The session
+     * @return true if the session is passivated and must be restored
+     */
+    private static boolean touch(SessionImpl session) {
+        synchronized (session) {
+            session.touch();
+            return session.passivated;
+        }
+    }
+
+    /**
+     * Set the cookie for a newly minted session id on the response of the
+     * request cycle which bound the session.
+     *
+     * @param id The session id
+     */
+    private void sessionIdAssigned(SessionId id) {
+        RequestCycle cycle = RequestCycle.get();
+        Response response = cycle == null ? null : cycle.getOriginalResponse();
+        if (response instanceof WebResponse) {
+            javax.servlet.http.Cookie ck = new javax.servlet.http.Cookie(COOKIE_NAME, id.toString());
+            ck.setMaxAge(cookieMaxAgeSeconds);
+            ((WebResponse) response).addCookie(ck);
+        }
+        Application app = Application.exists() ? Application.get() : null;
+        IRequestLogger logger = app == null ? null : app.getRequestLogger();
+        if (logger != null) {
+            logger.sessionCreated(id.toString());
+        }
+    }
+
+    /**
+     * If the session with the passed id has been passivated, start reading it
+     * back in the background, so it is likely to be ready by the time the
+     * request cycle asks for it.
+     *
+     * @param id A session id
+     */
+    void prefetch(SessionId id) {
+        if (passivator == null || id == null) {
+            return;
+        }
+        SessionImpl sess = sessions.get(id);
+        if (sess != null) {
+            synchronized (sess) {
+                if (sess.passivated && sess.pendingBytes == null && sess.record != null && sess.loading == null) {
+                    sess.loading = passivator.read(sess.record);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a session's attributes to disk and drop them from memory,
+     * leaving only a stub in the session map.
+     *
+     * @param session The session
+     * @return true if the session was passivated
+     */
+    private boolean passivate(final SessionImpl session) {
+        final byte[] bytes;
+        synchronized (session) {
+            if (session.isInvalid() || session.passivated) {
+                return false;
+            }
+            if (!passivation.isExpired(session, System.currentTimeMillis())) {
+                // A request touched it after the timer looked;  requests
+                // touch under this monitor, so none can do so from here on
+                passivation.schedule(session);
+                return false;
+            }
+            try {
+                bytes = passivator.serialize(session.attributes);
+            } catch (IOException | RuntimeException ex) {
+                log.warn("Could not passivate session " + session.id(), ex);
+                return false;
+            }
+            // Reads are served from the bytes until they are on disk
+            session.pendingBytes = bytes;
+            session.passivated = true;
+            session.passivations++;
+            // Only sessions with a listener need reading back to expire
+            session.hadBindingListener = false;
+            for (Serializable value : session.attributes.values()) {
+                if (value instanceof SessionBindingListener) {
+                    session.hadBindingListener = true;
+                    break;
+                }
+            }
+            session.attributes.clear();
+        }
+        if (heapBudget > 0) {
+            retainedBytes.addAndGet(-session.estimatedSize());
+        }
+        passivator.write(bytes, new SessionPassivator.Written() {
+            @Override
+            public void written(SessionPassivator.Record record) {
+                synchronized (session) {
+                    if (session.passivated && session.pendingBytes == bytes) {
+                        if (record != null) {
+                            session.record = record;
+                            session.pendingBytes = null;
+                        }
+                        return;
+                    }
+                }
+                // Reactivated before we got here
+                if (record != null) {
+                    passivator.release(record);
+                }
+            }
+        });
+        return true;
+    }
+
+    private void activate(SessionImpl session) {
+        if (restore(session)) {
+            passivation.schedule(session);
+            account(session, session.estimatedSize());
+        }
+    }
+
+    /**
+     * Read back the attributes of a passivated session.  Waits for the read
+     * without holding the session's monitor, so a slow disk does not stall
+     * every other thread touching the session.
+     *
+     * @param session The session
+     * @return true if this call restored the session
+     */
+    private boolean restore(SessionImpl session) {
+        byte[] pending;
+        Future<Map<String, Serializable>> loading;
+        int passivations;
+        synchronized (session) {
+            if (!session.passivated) {
+                return false;
+            }
+            pending = session.pendingBytes;
+            if (pending == null && session.record != null && session.loading == null) {
+                session.loading = passivator.read(session.record);
+            }
+            loading = session.loading;
+            passivations = session.passivations;
+        }
+        Map<String, Serializable> attributes = null;
+        try {
+            if (pending != null) {
+                attributes = passivator.deserialize(pending);
+            } else if (loading != null) {
+                attributes = loading.get(30, TimeUnit.SECONDS);
+            }
+        } catch (IOException | ClassNotFoundException | ExecutionException | TimeoutException ex) {
+            log.error("Could not reactivate session " + session.id() + "; its contents are lost", ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted reactivating session " + session.id(), ex);
+        }
+        synchronized (session) {
+            if (!session.passivated || session.passivations != passivations) {
+                // Another thread restored it while we were reading
+                return false;
+            }
+            if (attributes != null) {
+                session.attributes.putAll(attributes);
+            }
+            discard(session);
+            return true;
+        }
+    }
+
+    /**
+     * Drop the passivated copy of a session's attributes.  Call holding the
+     * session's monitor.
+     *
+     * @param session The session
+     */
+    private void discard(SessionImpl session) {
+        if (session.record != null) {
+            passivator.release(session.record);
+        }
+        if (session.loading != null) {
+            session.loading.cancel(false);
+        }
+        session.record = null;
+        session.pendingBytes = null;
+        session.loading = null;
+        session.passivated = false;
+    }
+
     /**
      * @see org.apache.wicket.session.ISessionStore#bind(Request, Session)
      */
@@ -134,7 +456,7 @@ public class ActeurSessionStore implements ISessionStore {
                 listener.bindingSession(request, newSession);
             }
 
-            Session httpSession = getHttpSession(request, false);
+            SessionImpl httpSession = getHttpSession(request, true);
 
             if (httpSession != null) {
                 // register an unbinding listener for cleaning up
@@ -163,13 +485,8 @@ public class ActeurSessionStore implements ISessionStore {
      */
     @Override
     public void destroy() {
-        try {
-            for (Session s : sessions.values()) {
-                s.detach();
-            }
-        } finally {
-            sessions.clear();
-        }
+        shutdown();
+        sessions.clear();
     }
 
     /**
@@ -179,7 +496,8 @@ public class ActeurSessionStore implements ISessionStore {
      */
     @Override
     public String getSessionId(final Request request, final boolean create) {
-        return EnsureSessionId.findSessionId(((RequestAdapter) request).evt) + "";
+        SessionImpl httpSession = getHttpSession(request, create);
+        return httpSession == null ? null : httpSession.id().toString();
     }
 
     /**
@@ -187,10 +505,91 @@ public class ActeurSessionStore implements ISessionStore {
      */
     @Override
     public final void invalidate(final Request request) {
-        Session httpSession = getHttpSession(request, false);
+        SessionImpl httpSession = getHttpSession(request, false);
         if (httpSession != null) {
-            // tell the app server the session is no longer valid
-            httpSession.invalidate();
+            // do what the app server would do when a session is invalidated
+            expire(httpSession);
+        }
+    }
+
+    /**
+     * Remove a session, notifying Wicket's session and any unbound listeners
+     * that it is gone.  Called when a session is invalidated and by the timer
+     * which reaps idle sessions.
+     *
+     * @param session The session
+     */
+    @Override
+    public void expire(final SessionImpl session) {
+        if (!sessions.remove(session.id(), session)) {
+            return;
+        }
+        if (passivator != null) {
+            boolean readBack;
+            synchronized (session) {
+                if (!session.passivated) {
+                    readBack = false;
+                } else if (session.hadBindingListener) {
+                    readBack = true;
+                } else {
+                    // Nothing in it needs to hear about this, so don't
+                    // touch the disk
+                    discard(session);
+                    unbound(session, true);
+                    return;
+                }
+            }
+            if (readBack) {
+                // A passivated session needs its attributes back to notify
+                // the Wicket session it is being invalidated;  don't wait
+                // for the disk on the timer thread
+                try {
+                    passivator.unbind(new Runnable() {
+                        @Override
+                        public void run() {
+                            restore(session);
+                            unbound(session, true);
+                        }
+                    });
+                    return;
+                } catch (RejectedExecutionException ex) {
+                    // Shutting down;  no one will read the result anyway
+                    synchronized (session) {
+                        discard(session);
+                    }
+                    unbound(session, true);
+                    return;
+                }
+            }
+        }
+        unbound(session, false);
+    }
+
+    private void unbound(SessionImpl session, boolean wasPassivated) {
+        String id = session.id().toString();
+        session.invalidated();
+        if (heapBudget > 0 && !wasPassivated) {
+            retainedBytes.addAndGet(-session.estimatedSize());
+        }
+        // Listeners may need Application.get() to work, and the expiry timer
+        // has no thread context
+        ThreadContext old = ThreadContext.get(false);
+        try {
+            boolean notified = false;
+            for (Serializable value : session.values()) {
+                if (value instanceof SessionBindingListener) {
+                    ((SessionBindingListener) value).unbound(id, session);
+                    notified = true;
+                }
+            }
+            if (!notified) {
+                unbind(id, session);
+                for (UnboundListener listener : getUnboundListener()) {
+                    listener.sessionUnbound(id);
+                }
+            }
+        } finally {
+            ThreadContext.restore(old);
         }
     }
 
@@ -207,6 +606,67 @@ public class ActeurSessionStore implements ISessionStore {
         return null;
     }
 
+    @Override
+    public long evict(SessionImpl session) {
+        long size = session.estimatedSize();
+        if (passivator != null) {
+            // The session stays scheduled to expire as a stub
+            return passivate(session) ? size : 0;
+        }
+        expire(session);
+        return size;
+    }
+
+    @Override
+    public long excessBytes() {
+        if (heapBudget <= 0) {
+            return 0;
+        }
+        // Once over budget, trim to 90% so we are not trimming on every
+        // request that sets an attribute
+        return retainedBytes.get() - ((heapBudget / 10) * 9);
+    }
+
+    /**
+     * The estimated number of bytes retained by live sessions, if a heap
+     * budget is set.
+     *
+     * @return A number of bytes, or zero if there is no budget
+     */
+    long retainedBytes() {
+        return retainedBytes.get();
+    }
+
+    /**
+     * Passivates sessions when the passivation timer says they have been
+     * idle long enough.
+     */
+    private final class Passivator implements SessionExpiry.Expirer {
+
+        @Override
+        public void expire(SessionImpl session) {
+            passivate(session);
+        }
+
+        @Override
+        public long evict(SessionImpl session) {
+            return 0;
+        }
+
+        @Override
+        public long excessBytes() {
+            return 0;
+        }
+    }
+
+    private void account(SessionImpl session, long delta) {
+        if (heapBudget > 0 && delta != 0 && !session.isInvalid()) {
+            if (retainedBytes.addAndGet(delta) > heapBudget) {
+                expiry.trim();
+            }
+        }
+    }
+
     /**
      * Template method that is called when a session is being bound to the
      * session store. It is called <strong>before</strong> the session object
@@ -228,7 +688,15 @@ public class ActeurSessionStore implements ISessionStore {
      * @param sessionId The session id of the session that was invalidated.
      */
     protected void onUnbind(final String sessionId) {
-        sessions.remove(new SessionId(sessionId));
+    }
+
+    private void unbind(String sessionId, SessionImpl session) {
+        // Only ever remove the session being unbound - a late callback must
+        // not take out a newer session which has the same id
+        if (session != null) {
+            sessions.remove(session.id(), session);
+        }
+        onUnbind(sessionId);
     }
 
     /**
@@ -240,14 +708,17 @@ public class ActeurSessionStore implements ISessionStore {
      * @return the prefix for storing variables in the actual session
      */
     private String getSessionAttributePrefix(final Request request) {
-        String sessionAttributePrefix = MarkupParser.WICKET;
-
-        if (request instanceof WebRequest) {
-            sessionAttributePrefix = WebApplication.get().getSessionAttributePrefix(
+        if (!(request instanceof WebRequest)) {
+            return MarkupParser.WICKET;
+        }
+        // Fixed for the life of the application, and there is one store per
+        // application
+        String result = sessionAttributePrefix;
+        if (result == null) {
+            sessionAttributePrefix = result = WebApplication.get().getSessionAttributePrefix(
                     (WebRequest) request, null);
         }
-
-        return sessionAttributePrefix;
+        return result;
     }
 
     /**
@@ -305,6 +776,9 @@ public class ActeurSessionStore implements ISessionStore {
                 }
             }
             httpSession.removeAttribute(attributeName);
+            if (heapBudget > 0) {
+                account(httpSession, httpSession.forgetSize(attributeName));
+            }
         }
     }
 
@@ -329,6 +803,9 @@ public class ActeurSessionStore implements ISessionStore {
                 }
             }
             httpSession.setAttribute(attributeName, value);
+            if (heapBudget > 0) {
+                account(httpSession, httpSession.sampleSize(attributeName, value));
+            }
         }
     }
 
@@ -434,24 +911,27 @@ public class ActeurSessionStore implements ISessionStore {
          */
         @Override
         public void valueUnbound(final HttpSessionBindingEvent evt) {
-            String sessionId = evt.getSession().getId();
+            unbound(evt.getSession().getId(), null);
+        }
 
+        void unbound(String sessionId, SessionImpl session) {
             log.debug("Session unbound: {}", sessionId);
 
-            if (wicketSession != null) {
-                wicketSession.onInvalidate();
-            }
-
             Application application = Application.get(applicationKey);
             if (application == null) {
                 log.debug("Wicket application with name '{}' not found.", applicationKey);
                 return;
             }
+            ThreadContext.setApplication(application);
+
+            if (wicketSession != null) {
+                wicketSession.onInvalidate();
+            }
 
             ISessionStore sessionStore = application.getSessionStore();
             if (sessionStore != null) {
                 if (sessionStore instanceof ActeurSessionStore) {
-                    ((ActeurSessionStore) sessionStore).onUnbind(sessionId);
+                    ((ActeurSessionStore) sessionStore).unbind(sessionId, session);
                 }
 
                 for (UnboundListener listener : sessionStore.getUnboundListener()) {
@@ -461,23 +941,117 @@ public class ActeurSessionStore implements ISessionStore {
         }
     }
 
-    class SessionImpl extends Session {
+    /**
+     * The equivalent of an HttpSession - holds the attributes Wicket stores
+     * for one session id, and when it was last used.
+     */
+    static final class SessionImpl {
 
-        private final String ua;
+        /**
+         * Attributes which have already been measured are re-measured on
+         * every this-many writes to the session.
+         */
+        private static final int SAMPLE_INTERVAL = 16;
         private final SessionId id;
+        final Map<String, Serializable> attributes = Maps.newConcurrentMap();
+        private final Map<String, Integer> sizes = Maps.newConcurrentMap();
+        private final AtomicLong estimatedSize = new AtomicLong(SizeEstimator.SESSION_OVERHEAD);
+        private final AtomicInteger writes = new AtomicInteger();
+        private volatile long lastAccess = System.currentTimeMillis();
+        private volatile boolean invalid;
+        // Passivation state, guarded by this
+        volatile boolean passivated;
+        byte[] pendingBytes;
+        SessionPassivator.Record record;
+        Future<Map<String, Serializable>> loading;
+        int passivations;
+        boolean hadBindingListener;
 
-        public SessionImpl(Request request, SessionId id) {
-            super(request);
-            super.setAttribute(Session.SESSION_ATTRIBUTE_NAME, id.toString());
-            RequestAdapter adap = (RequestAdapter) request;
-            ua = adap.evt.getHeader(Headers.USER_AGENT);
+        SessionImpl(SessionId id) {
             this.id = id;
         }
 
-        @Override
-        public ClientInfo getClientInfo() {
-            return new WebClientInfo(RequestCycle.get(), ua);
+        SessionId id() {
+            return id;
+        }
+
+        long lastAccess() {
+            return lastAccess;
+        }
+
+        void touch() {
+            lastAccess = System.currentTimeMillis();
+        }
+
+        boolean isInvalid() {
+            return invalid;
+        }
+
+        boolean isPassivated() {
+            return passivated;
+        }
+
+        void invalidated() {
+            invalid = true;
         }
 
+        Serializable getAttribute(String name) {
+            return attributes.get(name);
+        }
+
+        void setAttribute(String name, Serializable value) {
+            if (value == null) {
+                attributes.remove(name);
+            } else {
+                attributes.put(name, value);
+            }
+        }
+
+        void removeAttribute(String name) {
+            attributes.remove(name);
+        }
+
+        Set<String> getAttributeNames() {
+            return attributes.keySet();
+        }
+
+        Collection<Serializable> values() {
+            return attributes.values();
+        }
+
+        long estimatedSize() {
+            return estimatedSize.get();
+        }
+
+        /**
+         * Update the size estimate for an attribute which was just set,
+         * if it has never been measured or is due to be sampled again.
+         *
+         * @return The change in the estimated size of this session
+         */
+        long sampleSize(String name, Serializable value) {
+            if (sizes.containsKey(name) && writes.incrementAndGet() % SAMPLE_INTERVAL != 0) {
+                return 0;
+            }
+            int size = SizeEstimator.estimate(name, value);
+            Integer old = sizes.put(name, size);
+            long delta = old == null ? size : size - old;
+            estimatedSize.addAndGet(delta);
+            return delta;
+        }
+
+        long forgetSize(String name) {
+            Integer old = sizes.remove(name);
+            if (old == null) {
+                return 0;
+            }
+            estimatedSize.addAndGet(-old);
+            return -old;
+        }
+
+        @Override
+        public String toString() {
+            return id.toString();
+        }
     }
 }
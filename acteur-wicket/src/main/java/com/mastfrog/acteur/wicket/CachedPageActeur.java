@@ -0,0 +1,72 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.mastfrog.acteur.Acteur;
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.annotations.HttpCall;
+import static com.mastfrog.acteur.headers.Method.GET;
+import com.mastfrog.acteur.preconditions.Methods;
+import com.mastfrog.acteur.wicket.adapters.CachedResponse;
+import com.mastfrog.acteur.wicket.adapters.Compression;
+import com.mastfrog.settings.Settings;
+import io.netty.handler.codec.http.HttpHeaders;
+import static io.netty.handler.codec.http.HttpHeaders.Names.IF_MODIFIED_SINCE;
+import static io.netty.handler.codec.http.HttpHeaders.Names.IF_NONE_MATCH;
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_MODIFIED;
+import javax.inject.Inject;
+
+/**
+ * Answers requests for stateless pages from the OutputCache, ahead of
+ * WicketActeur, without a session or request cycle;  rejects on a miss so
+ * the request falls through to Wicket.
+ *
+ * @author Tim Boudreau
+ */
+@HttpCall(order = Integer.MAX_VALUE - 2)
+@Methods(GET)
+final class CachedPageActeur extends Acteur {
+
+    @Inject
+    CachedPageActeur(HttpEvent evt, OutputCache cache, Compression compression, Settings settings) {
+        CachedResponse cached = null;
+        if (cache.isEnabled()) {
+            Compression.Encoding encoding = settings.getBoolean(WicketActeurModule.SETTINGS_KEY_COMPRESSION, true)
+                    ? compression.negotiate(evt.getHeader("Accept-Encoding")) : null;
+            String key = cache.keyFor(evt, encoding);
+            if (key != null) {
+                cached = cache.get(key);
+            }
+        }
+        if (cached == null) {
+            reject();
+        } else if (cached.isNotModified(evt.getHeader(IF_NONE_MATCH), evt.getHeader(IF_MODIFIED_SINCE))) {
+            cached.sendNotModified(response());
+            reply(NOT_MODIFIED);
+        } else {
+            cached.send(response(), HttpHeaders.isKeepAlive(evt.getRequest()));
+            reply(cached.status());
+        }
+    }
+}
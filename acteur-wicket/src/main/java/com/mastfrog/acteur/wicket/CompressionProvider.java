@@ -0,0 +1,75 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.google.inject.Singleton;
+import com.mastfrog.acteur.wicket.adapters.Compression;
+import com.mastfrog.giulius.ShutdownHookRegistry;
+import com.mastfrog.settings.Settings;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_COMPRESSION_LEVEL;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_COMPRESSION_MIN_BYTES;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_COMPRESSION_TYPES;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_COMPRESSION_LEVEL;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_COMPRESSION_MIN_BYTES;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_COMPRESSION_TYPES;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_WICKET_THREADS;
+import java.util.Arrays;
+import javax.inject.Inject;
+import javax.inject.Provider;
+
+/**
+ * Creates the Compression configuration from settings, and frees its pooled
+ * Deflaters on shutdown.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+class CompressionProvider implements Provider<Compression> {
+
+    private final Compression compression;
+
+    @Inject
+    CompressionProvider(Settings settings, ShutdownHookRegistry reg) {
+        // One Deflater per thread that can be rendering is all that can
+        // ever be in use at once
+        int poolSize = settings.getInt(SETTINGS_KEY_WICKET_THREADS,
+                Runtime.getRuntime().availableProcessors() * 4);
+        compression = new Compression(
+                settings.getInt(SETTINGS_KEY_COMPRESSION_MIN_BYTES, DEFAULT_COMPRESSION_MIN_BYTES),
+                Arrays.asList(settings.getString(SETTINGS_KEY_COMPRESSION_TYPES, DEFAULT_COMPRESSION_TYPES).split(",")),
+                settings.getInt(SETTINGS_KEY_COMPRESSION_LEVEL, DEFAULT_COMPRESSION_LEVEL),
+                poolSize);
+        reg.add(new Runnable() {
+            @Override
+            public void run() {
+                compression.close();
+            }
+        });
+    }
+
+    @Override
+    public Compression get() {
+        return compression;
+    }
+}
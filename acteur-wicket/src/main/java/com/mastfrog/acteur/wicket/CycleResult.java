@@ -0,0 +1,51 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.mastfrog.acteur.wicket.adapters.ResponseAdapter;
+
+/**
+ * The outcome of running a Wicket request cycle off the event thread, passed
+ * to the acteur which sends the response.
+ *
+ * @author Tim Boudreau
+ */
+final class CycleResult {
+
+    final boolean processed;
+    final ResponseAdapter response;
+    final Throwable failure;
+    final boolean cacheable;
+
+    CycleResult(boolean processed, ResponseAdapter response, Throwable failure) {
+        this(processed, response, failure, false);
+    }
+
+    CycleResult(boolean processed, ResponseAdapter response, Throwable failure, boolean cacheable) {
+        this.processed = processed;
+        this.response = response;
+        this.failure = failure;
+        this.cacheable = cacheable;
+    }
+}
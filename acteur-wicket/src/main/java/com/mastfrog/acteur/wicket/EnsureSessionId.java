@@ -26,19 +26,15 @@ package com.mastfrog.acteur.wicket;
 import com.mastfrog.acteur.Acteur;
 import com.mastfrog.acteur.HttpEvent;
 import com.mastfrog.acteur.headers.Headers;
-import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_SESSION_COOKIE_MAX_AGE_HOURS;
-import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_SESSION_COOKIE_MAX_AGE_HOURS;
-import com.mastfrog.settings.Settings;
 import io.netty.handler.codec.http.Cookie;
-import io.netty.handler.codec.http.DefaultCookie;
 import javax.inject.Inject;
-import org.apache.wicket.Application;
-import org.apache.wicket.protocol.http.IRequestLogger;
 import org.joda.time.Duration;
 
 /**
- * Ensures that a jsessionid cookie is set and the current session id is
- * available for injection.
+ * Makes the current session id available for injection as a LazySessionId
+ * - holding the one in the jsessionid cookie, or, if there is none, empty
+ * until the session store fills it in, and sets the cookie, because Wicket
+ * binds a session.
  *
  * @author Tim Boudreau
  */
@@ -47,23 +43,13 @@ final class EnsureSessionId extends Acteur {
     public static final Duration MAX_SESSION_AGE = Duration.standardDays(1);
 
     @Inject
-    EnsureSessionId(HttpEvent evt, Application app, Settings settings) {
+    EnsureSessionId(HttpEvent evt, ActeurSessionStore store) {
         SessionId id = findSessionId(evt);
-        if (id == null) {
-            id = new SessionId();
-            DefaultCookie ck = new DefaultCookie(ActeurSessionStore.COOKIE_NAME, id.toString());
-            long maxAge = Duration.standardHours(
-                    settings.getLong(SETTINGS_KEY_SESSION_COOKIE_MAX_AGE_HOURS, DEFAULT_SESSION_COOKIE_MAX_AGE_HOURS)).toStandardSeconds().getSeconds();
-            ck.setMaxAge(maxAge);
-            add(Headers.SET_COOKIE, ck);
-            String sv = Headers.COOKIE.toString(new Cookie[]{ck});
-            evt.getRequest().headers().add(Headers.SET_COOKIE.name(), sv);
-            IRequestLogger logger = app.getRequestLogger();
-            if (logger != null) {
-                logger.sessionCreated(id.toString());
-            }
+        if (id != null) {
+            // If the session was passivated, start loading it now
+            store.prefetch(id);
         }
-        setState(new ConsumedLockedState(id));
+        setState(new ConsumedLockedState(new LazySessionId(id)));
     }
 
     /**
@@ -77,7 +63,8 @@ final class EnsureSessionId extends Acteur {
         if (cookies != null && cookies.length > 0) {
             for (Cookie ck : cookies) {
                 if (ActeurSessionStore.COOKIE_NAME.equals(ck.getName())) {
-                    result = new SessionId(ck.getValue());
+                    // A malformed or old-style id is as good as none
+                    result = SessionId.parse(ck.getValue());
                 }
             }
         }
@@ -23,22 +23,28 @@
  */
 package com.mastfrog.acteur.wicket;
 
+import com.google.common.base.Optional;
 import com.google.common.collect.Maps;
 import com.mastfrog.acteur.server.PathFactory;
 import com.mastfrog.acteur.wicket.WicketConfig;
+import com.mastfrog.acteur.wicket.adapters.MimeTypes;
 import com.mastfrog.giulius.DeploymentMode;
+import com.mastfrog.giulius.ShutdownHookRegistry;
 import com.mastfrog.settings.MutableSettings;
 import com.mastfrog.settings.Settings;
 import com.mastfrog.settings.SettingsBuilder;
 import com.mastfrog.url.Path;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.Files;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 import javax.inject.Inject;
 import javax.servlet.RequestDispatcher;
 import javax.servlet.Servlet;
@@ -51,19 +57,51 @@ import javax.servlet.ServletException;
  */
 final class FakeServletContext implements ServletContext {
 
+    /**
+     * The attribute servlet containers use to give web applications a
+     * private temporary directory, and which Wicket's disk stores look for.
+     */
+    static final String TEMP_DIR_ATTRIBUTE = "javax.servlet.context.tempdir";
+    // Enough for every real resource;  past this only hits are remembered,
+    // so lookups of made-up paths cannot grow the map without limit
+    static final int MAX_CACHED_MISSES = 4096;
+
     private final WicketConfig config;
     private final PathFactory paths;
     private final MutableSettings settings;
     private final Map<String, Object> attributes = Maps.newConcurrentMap();
     private final DeploymentMode mode;
+    private final MimeTypes mimeTypes;
+    private final ConcurrentMap<String, Optional<URL>> resources = Maps.newConcurrentMap();
 
     @Inject
-    FakeServletContext(WicketConfig config, PathFactory paths, Settings settings, DeploymentMode mode) throws IOException {
+    FakeServletContext(WicketConfig config, PathFactory paths, Settings settings, DeploymentMode mode, MimeTypes mimeTypes, ShutdownHookRegistry reg) throws IOException {
         this.config = config;
+        this.mimeTypes = mimeTypes;
         this.paths = paths;
         this.mode = mode;
         this.settings = new SettingsBuilder().add(settings).buildMutableSettings();
         this.settings.setString("wicket.configuration", mode == DeploymentMode.DEVELOPMENT ? "development" : "production");
+        final File tempDir = Files.createTempDirectory("acteur-wicket").toFile();
+        attributes.put(TEMP_DIR_ATTRIBUTE, tempDir);
+        reg.add(new Runnable() {
+            @Override
+            public void run() {
+                delete(tempDir);
+            }
+        });
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
     }
 
     @Override
@@ -83,7 +121,7 @@ final class FakeServletContext implements ServletContext {
 
     @Override
     public String getMimeType(String string) {
-        return "text/html; charset=UTF-8";
+        return mimeTypes.mimeType(string);
     }
 
     @Override
@@ -93,12 +131,32 @@ final class FakeServletContext implements ServletContext {
 
     @Override
     public URL getResource(String string) throws MalformedURLException {
-        return config.applicationClass().getResource(string);
+        return findResource(string);
     }
 
     @Override
     public InputStream getResourceAsStream(String string) {
-        return config.applicationClass().getResourceAsStream(string);
+        URL url = findResource(string);
+        try {
+            return url == null ? null : url.openStream();
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    private URL findResource(String name) {
+        if (mode == DeploymentMode.DEVELOPMENT) {
+            // Resources may be added or removed while developing
+            return config.applicationClass().getResource(name);
+        }
+        Optional<URL> result = resources.get(name);
+        if (result == null) {
+            result = Optional.fromNullable(config.applicationClass().getResource(name));
+            if (result.isPresent() || resources.size() < MAX_CACHED_MISSES) {
+                resources.putIfAbsent(name, result);
+            }
+        }
+        return result.orNull();
     }
 
     @Override
@@ -46,10 +46,12 @@ final class FakeWicketFilter extends WicketFilter implements IWebApplicationFact
     private final Provider<Application> app;
     private final WicketConfig config;
     private final FilterConfig filterConfig;
+    private final MarkupSnapshot snapshot;
 
     @Inject
-    FakeWicketFilter(Provider<Application> app, ShutdownHookRegistry reg, WicketConfig config, FilterConfig filterConfig) throws ServletException {
+    FakeWicketFilter(Provider<Application> app, ShutdownHookRegistry reg, WicketConfig config, FilterConfig filterConfig, MarkupSnapshot snapshot) throws ServletException {
         this.config = config;
+        this.snapshot = snapshot;
         this.app = app;
         this.filterConfig = filterConfig;
         reg.add(this);
@@ -87,6 +89,9 @@ final class FakeWicketFilter extends WicketFilter implements IWebApplicationFact
 
     @Override
     public void run() {
+        if (snapshot.isEnabled()) {
+            snapshot.save(app.get());
+        }
         destroy();
     }
 
@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+/**
+ * The session id of the current request - the one in its jsessionid cookie,
+ * or, for a request which arrived without one, an id minted only if and when
+ * Wicket binds a session.  The EnsureSessionId acteur guarantees that any
+ * object created with Guice can have this value injected.
+ *
+ * @author Tim Boudreau
+ */
+final class LazySessionId {
+
+    private volatile SessionId id;
+
+    /**
+     * Create a holder.
+     *
+     * @param id The id from the request's cookie, or null if there is none
+     */
+    LazySessionId(SessionId id) {
+        this.id = id;
+    }
+
+    /**
+     * Get the session id.
+     *
+     * @return The id, or null if none has been assigned
+     */
+    SessionId get() {
+        return id;
+    }
+
+    boolean isAssigned() {
+        return id != null;
+    }
+
+    /**
+     * Mint a session id, if this request does not have one.
+     *
+     * @return true if an id was minted, false if it already had one
+     */
+    synchronized boolean assign() {
+        if (id != null) {
+            return false;
+        }
+        id = new SessionId();
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(id);
+    }
+}
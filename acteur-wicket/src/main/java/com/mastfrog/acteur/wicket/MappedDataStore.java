@@ -0,0 +1,399 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.google.inject.Singleton;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_PAGE_STORE_MAX_MB;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_PAGE_STORE_DIR;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_PAGE_STORE_MAX_MB;
+import com.mastfrog.giulius.ShutdownHookRegistry;
+import com.mastfrog.settings.Settings;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.inject.Inject;
+import javax.servlet.ServletContext;
+import org.apache.wicket.pageStore.IDataStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Page data store which keeps serialized page versions in memory-mapped
+ * segment files, so fetching an old page version for the back button or an
+ * Ajax request against a previous page is a read from the OS page cache
+ * rather than a seek and a stream read.
+ * <p>
+ * Sessions are spread across shards, each with its own lock, its own
+ * append-only segments and an off-heap {@link PageIndex}.  When a shard's
+ * share of the size limit is used up, its oldest segment is dropped - old
+ * page versions are a cache, and Wicket treats a missing one as an expired
+ * page.  A background task compacts segments which are mostly garbage
+ * by copying their live records forward.
+ * <p>
+ * Segment files are deleted when dropped, but the JDK offers no way to unmap
+ * them eagerly, so their address space is reclaimed when the mapped buffers
+ * are garbage collected.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class MappedDataStore implements IDataStore {
+
+    private static final Logger log = LoggerFactory.getLogger(MappedDataStore.class);
+    private static final int SHARDS = 16;
+    private static final int MIN_SEGMENT_SIZE = 1024 * 1024;
+    private static final int MAX_SEGMENT_SIZE = 32 * 1024 * 1024;
+    // record length, page id, session id length
+    private static final int HEADER_SIZE = 12;
+    private final Shard[] shards = new Shard[SHARDS];
+    private final File dir;
+    private final int segmentSize;
+    private final int maxSegmentsPerShard;
+    private final ScheduledExecutorService compactor;
+
+    @Inject
+    MappedDataStore(Settings settings, ServletContext ctx, ShutdownHookRegistry reg) throws IOException {
+        String dirName = settings.getString(SETTINGS_KEY_PAGE_STORE_DIR);
+        if (dirName != null) {
+            dir = new File(dirName);
+        } else {
+            dir = new File((File) ctx.getAttribute(FakeServletContext.TEMP_DIR_ATTRIBUTE), "pages");
+        }
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        long perShard = (settings.getLong(SETTINGS_KEY_PAGE_STORE_MAX_MB, DEFAULT_PAGE_STORE_MAX_MB) * 1024L * 1024L) / SHARDS;
+        segmentSize = (int) Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, perShard / 4));
+        maxSegmentsPerShard = (int) Math.max(2, perShard / segmentSize);
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard(i);
+        }
+        compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "wicket-page-store-compactor");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        compactor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (Shard shard : shards) {
+                    try {
+                        shard.compact();
+                    } catch (Exception e) {
+                        log.error("Exception compacting page store shard " + shard.number, e);
+                    }
+                }
+            }
+        }, 30, 30, TimeUnit.SECONDS);
+        reg.add(new Runnable() {
+            @Override
+            public void run() {
+                destroy();
+            }
+        });
+    }
+
+    private Shard shard(long hash) {
+        return shards[(int) ((hash ^ (hash >>> 32)) & (SHARDS - 1))];
+    }
+
+    @Override
+    public byte[] getData(String sessionId, int id) {
+        long hash = PageIndex.hash(sessionId);
+        return shard(hash).get(hash, sessionId, id);
+    }
+
+    @Override
+    public void removeData(String sessionId, int id) {
+        long hash = PageIndex.hash(sessionId);
+        shard(hash).remove(hash, id);
+    }
+
+    @Override
+    public void removeData(String sessionId) {
+        long hash = PageIndex.hash(sessionId);
+        shard(hash).removeSession(hash);
+    }
+
+    @Override
+    public void storeData(String sessionId, int id, byte[] data) {
+        long hash = PageIndex.hash(sessionId);
+        shard(hash).put(hash, sessionId, id, data);
+    }
+
+    @Override
+    public void destroy() {
+        compactor.shutdownNow();
+        for (Shard shard : shards) {
+            shard.close();
+        }
+    }
+
+    @Override
+    public boolean isReplicated() {
+        return false;
+    }
+
+    @Override
+    public boolean canBeAsynchronous() {
+        // A store is a copy into a mapped buffer, and PageWriteBehind
+        // already has it happen after the response is sent
+        return false;
+    }
+
+    private final class Shard {
+
+        private final int number;
+        private final PageIndex index = new PageIndex(256);
+        // in order of creation, oldest first
+        private final Map<Integer, Segment> segments = new LinkedHashMap<>();
+        private Segment active;
+        private int nextSegment;
+        private boolean closed;
+
+        Shard(int number) {
+            this.number = number;
+        }
+
+        synchronized byte[] get(long hash, String sessionId, int pageId) {
+            long location = index.get(hash, pageId);
+            if (location < 0) {
+                return null;
+            }
+            Segment segment = segments.get(PageIndex.segment(location));
+            if (segment == null) {
+                // dropped
+                index.remove(hash, pageId);
+                return null;
+            }
+            return segment.read(PageIndex.offset(location), sessionId, pageId);
+        }
+
+        synchronized void put(long hash, String sessionId, int pageId, byte[] data) {
+            if (closed) {
+                return;
+            }
+            byte[] sid = sessionId.getBytes(StandardCharsets.UTF_8);
+            int length = HEADER_SIZE + sid.length + data.length;
+            Segment target;
+            try {
+                target = segmentWithRoomFor(length);
+            } catch (IOException ex) {
+                log.error("Could not create page store segment", ex);
+                return;
+            }
+            int offset = target.append(pageId, sid, data);
+            release(index.put(hash, pageId, target.number, offset));
+            dropOldSegments();
+        }
+
+        synchronized void remove(long hash, int pageId) {
+            release(index.remove(hash, pageId));
+        }
+
+        synchronized void removeSession(long hash) {
+            index.removeSession(hash, new PageIndex.Visitor() {
+                @Override
+                public void visit(int segment, int offset) {
+                    release(PageIndex.location(segment, offset));
+                }
+            });
+        }
+
+        private void release(long location) {
+            if (location >= 0) {
+                Segment segment = segments.get(PageIndex.segment(location));
+                if (segment != null) {
+                    segment.live -= segment.recordLength(PageIndex.offset(location));
+                }
+            }
+        }
+
+        private Segment segmentWithRoomFor(int length) throws IOException {
+            if (active == null || active.remaining() < length) {
+                // A page bigger than a segment gets a segment of its own
+                active = new Segment(nextSegment++, number, Math.max(segmentSize, length));
+                segments.put(active.number, active);
+            }
+            return active;
+        }
+
+        private void dropOldSegments() {
+            Iterator<Segment> it = segments.values().iterator();
+            while (segments.size() > maxSegmentsPerShard && it.hasNext()) {
+                Segment oldest = it.next();
+                if (oldest == active) {
+                    break;
+                }
+                it.remove();
+                index.removeSegment(oldest.number);
+                oldest.delete();
+            }
+        }
+
+        /**
+         * Copy the live records of segments which are at least half garbage
+         * into the active segment, and delete them.
+         */
+        synchronized void compact() throws IOException {
+            if (closed) {
+                return;
+            }
+            List<Segment> candidates = new ArrayList<>();
+            for (Segment segment : segments.values()) {
+                if (segment != active && segment.live * 2 < segment.position) {
+                    candidates.add(segment);
+                }
+            }
+            for (final Segment segment : candidates) {
+                if (segment.live > 0) {
+                    index.relocateSegment(segment.number, new PageIndex.Relocator() {
+                        @Override
+                        public long relocate(int offset) {
+                            int length = segment.recordLength(offset);
+                            try {
+                                Segment target = segmentWithRoomFor(length);
+                                int newOffset = target.copyFrom(segment, offset, length);
+                                return PageIndex.location(target.number, newOffset);
+                            } catch (IOException ex) {
+                                log.error("Could not create page store segment", ex);
+                                return -1;
+                            }
+                        }
+                    });
+                }
+                segments.remove(segment.number);
+                segment.delete();
+            }
+            dropOldSegments();
+        }
+
+        synchronized void close() {
+            closed = true;
+            for (Segment segment : segments.values()) {
+                segment.delete();
+            }
+            segments.clear();
+            active = null;
+        }
+    }
+
+    private final class Segment {
+
+        private final int number;
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private int position;
+        // bytes of records still referenced by the index
+        private int live;
+
+        Segment(int number, int shard, int size) throws IOException {
+            this.number = number;
+            file = new File(dir, "pages-" + shard + "-" + number + ".seg");
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                // The mapping remains valid after the channel is closed
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+
+        int remaining() {
+            return buffer.capacity() - position;
+        }
+
+        int append(int pageId, byte[] sessionId, byte[] data) {
+            int offset = position;
+            int length = HEADER_SIZE + sessionId.length + data.length;
+            buffer.putInt(offset, length);
+            buffer.putInt(offset + 4, pageId);
+            buffer.putInt(offset + 8, sessionId.length);
+            ByteBuffer dup = buffer.duplicate();
+            dup.position(offset + HEADER_SIZE);
+            dup.put(sessionId);
+            dup.put(data);
+            position += length;
+            live += length;
+            return offset;
+        }
+
+        int copyFrom(Segment other, int offset, int length) {
+            int newOffset = position;
+            ByteBuffer src = other.buffer.duplicate();
+            src.limit(offset + length);
+            src.position(offset);
+            ByteBuffer dest = buffer.duplicate();
+            dest.position(newOffset);
+            dest.put(src);
+            position += length;
+            live += length;
+            return newOffset;
+        }
+
+        int recordLength(int offset) {
+            return buffer.getInt(offset);
+        }
+
+        byte[] read(int offset, String sessionId, int pageId) {
+            int length = buffer.getInt(offset);
+            int sidLength = buffer.getInt(offset + 8);
+            if (buffer.getInt(offset + 4) != pageId) {
+                return null;
+            }
+            ByteBuffer dup = buffer.duplicate();
+            dup.position(offset + HEADER_SIZE);
+            byte[] sid = new byte[sidLength];
+            dup.get(sid);
+            if (!Arrays.equals(sid, sessionId.getBytes(StandardCharsets.UTF_8))) {
+                // 64-bit hash collision between two sessions
+                return null;
+            }
+            byte[] result = new byte[length - HEADER_SIZE - sidLength];
+            dup.get(result);
+            return result;
+        }
+
+        void delete() {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+}
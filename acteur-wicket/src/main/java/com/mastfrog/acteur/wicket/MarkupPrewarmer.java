@@ -0,0 +1,200 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.google.inject.Singleton;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_PREWARM;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_WICKET_THREADS;
+import com.mastfrog.settings.Settings;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.inject.Inject;
+import javax.inject.Provider;
+import org.apache.wicket.Application;
+import org.apache.wicket.Component;
+import org.apache.wicket.ThreadContext;
+import org.apache.wicket.markup.MarkupParser;
+import org.apache.wicket.markup.MarkupResourceStream;
+import org.apache.wicket.request.resource.IResource;
+import org.apache.wicket.request.resource.PackageResource;
+import org.apache.wicket.request.resource.ResourceReference;
+import org.apache.wicket.util.resource.IResourceStream;
+import org.apache.wicket.util.resource.ResourceStreamNotFoundException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * If enabled, does the work the first request for each page would otherwise
+ * do, while the injector is being created and before the server accepts
+ * connections:  initializes the application, then, in parallel on a
+ * fork-join pool, loads every component class under the application's
+ * package, locates and parses its markup, and registers and locates the
+ * package resources its static ResourceReference fields point to.
+ * <p>
+ * If a markup snapshot is configured, the components it lists are warmed
+ * first;  the package is only scanned as well if the snapshot's checksums
+ * show markup has changed since it was written.
+ * <p>
+ * Wicket's markup cache is keyed by the locale, style and variation of a
+ * live component, so it cannot be filled without instantiating pages;  what
+ * is warmed is everything underneath it - class loading and static
+ * initialization, the resource stream locator and resource lookup caches,
+ * and the markup parser.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class MarkupPrewarmer {
+
+    private static final Logger log = LoggerFactory.getLogger(MarkupPrewarmer.class);
+    private final AtomicInteger components = new AtomicInteger();
+    private final AtomicInteger markup = new AtomicInteger();
+    private final AtomicInteger resources = new AtomicInteger();
+    private final AtomicInteger stale = new AtomicInteger();
+    private final MarkupSnapshot snapshot;
+
+    @Inject
+    MarkupPrewarmer(Settings settings, WicketConfig config, Provider<Application> application, MarkupSnapshot snapshot) {
+        this.snapshot = snapshot;
+        boolean scan = settings.getBoolean(SETTINGS_KEY_PREWARM, false);
+        if (!scan && !snapshot.isEnabled()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        Application app = application.get();
+        ClassLoader loader = config.applicationClass().getClassLoader();
+        ForkJoinPool pool = new ForkJoinPool(settings.getInt(SETTINGS_KEY_WICKET_THREADS,
+                Runtime.getRuntime().availableProcessors()));
+        try {
+            Map<String, Long> saved = snapshot.read();
+            if (!saved.isEmpty()) {
+                warm(pool, app, loader, saved);
+                // If nothing changed, the snapshot already names everything
+                // the last run used;  otherwise new components may be in use
+                scan &= stale.get() > 0;
+            }
+            if (scan) {
+                Map<String, Long> found = new LinkedHashMap<>();
+                for (String name : PackageScanner.scan(config.applicationClass())) {
+                    if (name.endsWith(".class") && name.indexOf('$') < 0) {
+                        String className = name.substring(0, name.length() - 6).replace('/', '.');
+                        if (!saved.containsKey(className)) {
+                            found.put(className, null);
+                        }
+                    }
+                }
+                warm(pool, app, loader, found);
+            }
+        } catch (IOException e) {
+            log.warn("Could not scan for components to prewarm", e);
+        } finally {
+            pool.shutdown();
+        }
+        log.info("Prewarmed " + components + " components, " + markup + " markup files and "
+                + resources + " resources in " + (System.currentTimeMillis() - start) + "ms"
+                + (stale.get() > 0 ? "; " + stale + " markup files changed since the last snapshot" : ""));
+    }
+
+    private void warm(ForkJoinPool pool, final Application app, final ClassLoader loader, Map<String, Long> classNames) {
+        List<Callable<Void>> tasks = new ArrayList<>(classNames.size());
+        for (final Map.Entry<String, Long> e : classNames.entrySet()) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    ThreadContext.setApplication(app);
+                    try {
+                        warm(app, loader, e.getKey(), e.getValue());
+                    } catch (Exception | LinkageError ex) {
+                        log.debug("Could not prewarm " + e.getKey(), ex);
+                    } finally {
+                        ThreadContext.detach();
+                    }
+                    return null;
+                }
+            });
+        }
+        pool.invokeAll(tasks);
+    }
+
+    private void warm(Application app, ClassLoader loader, String className, Long checksum) throws Exception {
+        Class<?> type = Class.forName(className, false, loader);
+        if (!Component.class.isAssignableFrom(type)) {
+            return;
+        }
+        // Run static initializers, which is where resource references live
+        Class.forName(className, true, loader);
+        components.incrementAndGet();
+        IResourceStream stream = snapshot.locate(app, type);
+        if (checksum != null) {
+            if (stream == null || MarkupSnapshot.checksum(stream) != checksum) {
+                stale.incrementAndGet();
+            }
+            // Checksumming used up the stream
+            stream = snapshot.locate(app, type);
+        }
+        if (stream != null) {
+            snapshot.record(type);
+            parse(stream);
+        }
+        for (Field field : type.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers()) && ResourceReference.class.isAssignableFrom(field.getType())) {
+                field.setAccessible(true);
+                ResourceReference ref = (ResourceReference) field.get(null);
+                if (ref != null) {
+                    warm(app, ref);
+                }
+            }
+        }
+    }
+
+    private void parse(IResourceStream stream) throws IOException, ResourceStreamNotFoundException {
+        MarkupResourceStream markupStream = new MarkupResourceStream(stream);
+        try {
+            new MarkupParser(markupStream).parse();
+            markup.incrementAndGet();
+        } finally {
+            markupStream.close();
+        }
+    }
+
+    private void warm(Application app, ResourceReference ref) throws IOException {
+        app.getResourceReferenceRegistry().registerResourceReference(ref);
+        IResource resource = ref.getResource();
+        if (resource instanceof PackageResource) {
+            IResourceStream stream = ((PackageResource) resource).getResourceStream();
+            if (stream != null) {
+                stream.close();
+                resources.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.google.inject.Singleton;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_MARKUP_SNAPSHOT;
+import com.mastfrog.settings.Settings;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import javax.inject.Inject;
+import org.apache.wicket.Application;
+import org.apache.wicket.MarkupContainer;
+import org.apache.wicket.ThreadContext;
+import org.apache.wicket.markup.MarkupFactory;
+import org.apache.wicket.markup.MarkupParser;
+import org.apache.wicket.markup.MarkupResourceStream;
+import org.apache.wicket.util.resource.IResourceStream;
+import org.apache.wicket.util.resource.ResourceStreamNotFoundException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers which components' markup was loaded, and a checksum of each
+ * markup file, in a file written at shutdown, so that the next start can
+ * prewarm exactly that markup without scanning for it - and can tell when
+ * the markup has changed since.
+ * <p>
+ * Wicket's parsed markup is not serializable, so it is the set of markup
+ * in use which is persisted, not the parse results.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class MarkupSnapshot {
+
+    private static final Logger log = LoggerFactory.getLogger(MarkupSnapshot.class);
+    private final File file;
+    private final WicketConfig config;
+    private final Set<String> used = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    @Inject
+    MarkupSnapshot(Settings settings, WicketConfig config) {
+        String path = settings.getString(SETTINGS_KEY_MARKUP_SNAPSHOT);
+        this.file = path == null ? null : new File(path);
+        this.config = config;
+    }
+
+    boolean isEnabled() {
+        return file != null;
+    }
+
+    /**
+     * Note that a component class's markup is in use.
+     *
+     * @param type The class
+     */
+    void record(Class<?> type) {
+        if (file != null && type != null) {
+            used.add(type.getName());
+        }
+    }
+
+    /**
+     * Create a markup factory which records the markup Wicket loads.
+     *
+     * @return A markup factory
+     */
+    MarkupFactory markupFactory() {
+        return new MarkupFactory() {
+            @Override
+            public MarkupParser newMarkupParser(MarkupResourceStream resource) {
+                record(resource.getMarkupClass());
+                return super.newMarkupParser(resource);
+            }
+        };
+    }
+
+    /**
+     * Read the snapshot written by the last run.
+     *
+     * @return Class names mapped to the checksum their markup had;  empty if
+     * there is no snapshot or it cannot be read
+     */
+    Map<String, Long> read() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        if (file == null || !file.isFile()) {
+            return result;
+        }
+        try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                int space = line.indexOf(' ');
+                if (space > 0) {
+                    result.put(line.substring(space + 1), Long.parseLong(line.substring(0, space), 16));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            log.warn("Ignoring unreadable markup snapshot " + file, e);
+            result.clear();
+        }
+        return result;
+    }
+
+    /**
+     * Write the snapshot, replacing any earlier one.
+     *
+     * @param app The application
+     */
+    void save(Application app) {
+        if (file == null || used.isEmpty()) {
+            return;
+        }
+        ClassLoader loader = config.applicationClass().getClassLoader();
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        Application old = ThreadContext.getApplication();
+        ThreadContext.setApplication(app);
+        try {
+            try (Writer out = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+                for (String className : used) {
+                    IResourceStream stream;
+                    try {
+                        stream = locate(app, Class.forName(className, false, loader));
+                    } catch (ClassNotFoundException e) {
+                        continue;
+                    }
+                    if (stream != null) {
+                        out.write(Long.toHexString(checksum(stream)) + ' ' + className + '\n');
+                    }
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | ResourceStreamNotFoundException e) {
+            log.warn("Could not write markup snapshot " + file, e);
+        } finally {
+            ThreadContext.setApplication(old);
+        }
+    }
+
+    /**
+     * Find the markup for a component class in the application's locale.
+     *
+     * @param app The application
+     * @param type The class
+     * @return A resource stream, or null
+     */
+    IResourceStream locate(Application app, Class<?> type) {
+        if (!MarkupContainer.class.isAssignableFrom(type)) {
+            return null;
+        }
+        return app.getResourceSettings().getResourceStreamLocator().locate(type,
+                type.getName().replace('.', '/'), null, null, config.locale(), "html", false);
+    }
+
+    static long checksum(IResourceStream stream) throws IOException, ResourceStreamNotFoundException {
+        CRC32 crc = new CRC32();
+        byte[] buf = new byte[8192];
+        try (InputStream in = stream.getInputStream()) {
+            for (int count = in.read(buf); count >= 0; count = in.read(buf)) {
+                crc.update(buf, 0, count);
+            }
+        } finally {
+            stream.close();
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.google.inject.Singleton;
+import com.mastfrog.acteur.wicket.adapters.MimeTypes;
+import com.mastfrog.settings.Settings;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_MIME_TYPES;
+import java.util.HashMap;
+import java.util.Map;
+import javax.inject.Inject;
+import javax.inject.Provider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the MIME type table from the built in types and settings.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+class MimeTypesProvider implements Provider<MimeTypes> {
+
+    private static final Logger log = LoggerFactory.getLogger(MimeTypesProvider.class);
+    private final MimeTypes mimeTypes;
+
+    @Inject
+    MimeTypesProvider(Settings settings) {
+        Map<String, String> extra = new HashMap<>();
+        String spec = settings.getString(SETTINGS_KEY_MIME_TYPES);
+        if (spec != null) {
+            for (String pair : spec.split(",")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    extra.put(pair.substring(0, eq), pair.substring(eq + 1));
+                } else if (!pair.trim().isEmpty()) {
+                    log.warn("Ignoring bad " + SETTINGS_KEY_MIME_TYPES + " entry '" + pair + "'");
+                }
+            }
+        }
+        mimeTypes = new MimeTypes(extra);
+    }
+
+    @Override
+    public MimeTypes get() {
+        return mimeTypes;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.google.inject.Singleton;
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.headers.Method;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_OUTPUT_CACHE_MAX_MB;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_OUTPUT_CACHE_TTL_SECONDS;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_OUTPUT_CACHE;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_OUTPUT_CACHE_MAX_MB;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_OUTPUT_CACHE_TTL_SECONDS;
+import com.mastfrog.acteur.wicket.adapters.CachedResponse;
+import com.mastfrog.acteur.wicket.adapters.Compression;
+import com.mastfrog.acteur.wicket.adapters.ResponseAdapter;
+import com.mastfrog.settings.Settings;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.inject.Inject;
+import org.apache.wicket.IPageFactory;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.Session;
+import org.apache.wicket.core.request.handler.RenderPageRequestHandler;
+import org.apache.wicket.request.IRequestHandler;
+import org.apache.wicket.request.component.IRequestablePage;
+import org.apache.wicket.request.cycle.AbstractRequestCycleListener;
+import org.apache.wicket.request.cycle.IRequestCycleListener;
+import org.apache.wicket.request.cycle.RequestCycle;
+
+/**
+ * Caches the rendered output of stateless, bookmarkable pages, so repeat
+ * requests for them are answered without creating a request cycle.  Only
+ * requests with no session cookie are cached or served from the cache -
+ * what a visitor with a session sees may depend on the session.  Entries
+ * expire after a fixed time, and the least recently used are evicted when
+ * the cache exceeds its size limit.
+ * <p>
+ * The key is the path, the query parameters in sorted order, the locale and
+ * the content encoding the client accepts, so a compressed entry is only
+ * sent to clients which can read it.  Anonymous requests always get a new
+ * session's default style and variation, so those need not be part of it.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class OutputCache {
+
+    /**
+     * Set on the request cycle when the page it rendered may be cached.
+     */
+    static final MetaDataKey<Boolean> CACHEABLE = new MetaDataKey<Boolean>() {
+    };
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong bytes = new AtomicLong();
+    private final ReentrantLock evictLock = new ReentrantLock();
+    private final boolean enabled;
+    private final long ttlMillis;
+    private final long maxBytes;
+    private final Locale locale;
+    private final IPageFactory pageFactory;
+
+    @Inject
+    OutputCache(Settings settings, WicketConfig config, IPageFactory pageFactory) {
+        enabled = settings.getBoolean(SETTINGS_KEY_OUTPUT_CACHE, false);
+        ttlMillis = settings.getLong(SETTINGS_KEY_OUTPUT_CACHE_TTL_SECONDS, DEFAULT_OUTPUT_CACHE_TTL_SECONDS) * 1000;
+        maxBytes = settings.getLong(SETTINGS_KEY_OUTPUT_CACHE_MAX_MB, DEFAULT_OUTPUT_CACHE_MAX_MB) * 1024 * 1024;
+        locale = config.locale();
+        this.pageFactory = pageFactory;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Compute the cache key for a request, if it is one the cache may answer.
+     *
+     * @param evt The request
+     * @param encoding The content encoding negotiated for it, or null
+     * @return A key, or null for requests the cache does not handle
+     */
+    String keyFor(HttpEvent evt, Compression.Encoding encoding) {
+        if (!enabled || evt.getMethod() != Method.GET || EnsureSessionId.findSessionId(evt) != null) {
+            return null;
+        }
+        String uri = evt.getRequest().getUri();
+        StringBuilder key = new StringBuilder(uri.length() + 24);
+        int query = uri.indexOf('?');
+        if (query < 0) {
+            key.append(uri);
+        } else {
+            key.append(uri, 0, query);
+            String[] params = uri.substring(query + 1).split("&");
+            Arrays.sort(params);
+            char sep = '?';
+            for (String param : params) {
+                if (!param.isEmpty()) {
+                    key.append(sep).append(param);
+                    sep = '&';
+                }
+            }
+        }
+        key.append('|').append(locale);
+        key.append('|').append(encoding == null ? "identity" : encoding.token());
+        return key.toString();
+    }
+
+    CachedResponse get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (now > entry.expires) {
+            if (entries.remove(key, entry)) {
+                bytes.addAndGet(-entry.size);
+            }
+            return null;
+        }
+        entry.lastAccess = now;
+        return entry.response;
+    }
+
+    /**
+     * Store a finished response, if it is safe to send to others.
+     *
+     * @param key The key from keyFor()
+     * @param response The response, after complete() has been called
+     */
+    void put(String key, ResponseAdapter response) {
+        CachedResponse cached = response.snapshot();
+        if (cached == null) {
+            return;
+        }
+        Entry entry = new Entry(cached, System.currentTimeMillis() + ttlMillis);
+        Entry old = entries.put(key, entry);
+        long total = bytes.addAndGet(entry.size - (old == null ? 0 : old.size));
+        if (total > maxBytes) {
+            evict();
+        }
+    }
+
+    private void evict() {
+        // One thread trims;  the rest carry on
+        if (!evictLock.tryLock()) {
+            return;
+        }
+        try {
+            long target = maxBytes - maxBytes / 10;
+            long now = System.currentTimeMillis();
+            List<Map.Entry<String, Entry>> all = new ArrayList<>(entries.entrySet());
+            Collections.sort(all, new Comparator<Map.Entry<String, Entry>>() {
+                @Override
+                public int compare(Map.Entry<String, Entry> a, Map.Entry<String, Entry> b) {
+                    return Long.compare(a.getValue().lastAccess, b.getValue().lastAccess);
+                }
+            });
+            for (Map.Entry<String, Entry> e : all) {
+                if (bytes.get() <= target) {
+                    break;
+                }
+                if (entries.remove(e.getKey(), e.getValue())) {
+                    bytes.addAndGet(-e.getValue().size);
+                }
+            }
+            // Drop anything expired while we're at it
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                if (now > e.getValue().expires && entries.remove(e.getKey(), e.getValue())) {
+                    bytes.addAndGet(-e.getValue().size);
+                }
+            }
+        } finally {
+            evictLock.unlock();
+        }
+    }
+
+    /**
+     * A listener which marks request cycles which rendered a stateless,
+     * bookmarkable page, with no session bound, as cacheable.
+     *
+     * @return A listener
+     */
+    IRequestCycleListener listener() {
+        return new AbstractRequestCycleListener() {
+            @Override
+            public void onRequestHandlerExecuted(RequestCycle cycle, IRequestHandler handler) {
+                if (isCacheable(handler)) {
+                    cycle.setMetaData(CACHEABLE, Boolean.TRUE);
+                }
+            }
+        };
+    }
+
+    boolean isCacheable(IRequestHandler handler) {
+        if (handler instanceof RenderPageRequestHandler) {
+            IRequestablePage page = ((RenderPageRequestHandler) handler).getPage();
+            return page.isPageStateless() && pageFactory.isBookmarkable(page.getClass())
+                    && (!Session.exists() || Session.get().isTemporary());
+        }
+        return false;
+    }
+
+    private static final class Entry {
+
+        final CachedResponse response;
+        final long expires;
+        final int size;
+        volatile long lastAccess;
+
+        Entry(CachedResponse response, long expires) {
+            this.response = response;
+            this.expires = expires;
+            this.size = response.size();
+            this.lastAccess = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.mastfrog.acteur.Acteur;
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.annotations.HttpCall;
+import static com.mastfrog.acteur.headers.Method.GET;
+import com.mastfrog.acteur.preconditions.Methods;
+import com.mastfrog.acteur.wicket.adapters.PreparedResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import static io.netty.handler.codec.http.HttpHeaders.Names.ACCEPT_ENCODING;
+import static io.netty.handler.codec.http.HttpHeaders.Names.IF_MODIFIED_SINCE;
+import static io.netty.handler.codec.http.HttpHeaders.Names.IF_NONE_MATCH;
+import static io.netty.handler.codec.http.HttpHeaders.Names.IF_RANGE;
+import static io.netty.handler.codec.http.HttpHeaders.Names.RANGE;
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_MODIFIED;
+import javax.inject.Inject;
+
+/**
+ * Serves package resources from the PackageResourceCache, ahead of the
+ * session and request cycle machinery;  rejects anything the cache will not
+ * answer, so Wicket handles it as usual.
+ *
+ * @author Tim Boudreau
+ */
+@HttpCall(order = Integer.MAX_VALUE - 3)
+@Methods(GET)
+final class PackageResourceActeur extends Acteur {
+
+    @Inject
+    PackageResourceActeur(HttpEvent evt, PackageResourceCache cache) {
+        PreparedResponse resource = null;
+        String range = evt.getHeader(RANGE);
+        if (cache.isEnabled()) {
+            String uri = evt.getRequest().getUri();
+            int query = uri.indexOf('?');
+            String path = query < 0 ? uri : uri.substring(0, query);
+            while (path.startsWith("/")) {
+                path = path.substring(1);
+            }
+            // Byte ranges are only offered on the uncompressed representation
+            resource = cache.find(path, query < 0 ? null : uri.substring(query + 1),
+                    range == null ? evt.getHeader(ACCEPT_ENCODING) : null);
+        }
+        if (resource == null) {
+            reject();
+        } else if (resource.isNotModified(evt.getHeader(IF_NONE_MATCH), evt.getHeader(IF_MODIFIED_SINCE))) {
+            resource.sendNotModified(response());
+            reply(NOT_MODIFIED);
+        } else {
+            boolean keepAlive = HttpHeaders.isKeepAlive(evt.getRequest());
+            HttpResponseStatus status = range == null ? null
+                    : resource.sendRange(response(), keepAlive, range, evt.getHeader(IF_RANGE));
+            if (status == null) {
+                resource.send(response(), keepAlive);
+                status = resource.status();
+            }
+            reply(status);
+        }
+    }
+}
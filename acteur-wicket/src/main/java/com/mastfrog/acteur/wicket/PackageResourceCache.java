@@ -0,0 +1,620 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.google.common.io.ByteStreams;
+import com.google.inject.Singleton;
+import com.mastfrog.acteur.headers.Headers;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_RESOURCE_CACHE_MAX_FILE_KB;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_RESOURCE_CACHE_MAX_MB;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_RESOURCE_MAX_AGE_SECONDS;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_RESOURCE_CACHE_MAX_FILE_KB;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_RESOURCE_CACHE_MAX_MB;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_RESOURCE_FAST_PATH;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_RESOURCE_FILE_DIR;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_RESOURCE_FILE_REGIONS;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_RESOURCE_MAX_AGE_SECONDS;
+import com.mastfrog.acteur.wicket.adapters.CachedResponse;
+import com.mastfrog.acteur.wicket.adapters.Compression;
+import com.mastfrog.acteur.wicket.adapters.FileResponse;
+import com.mastfrog.acteur.wicket.adapters.MimeTypes;
+import com.mastfrog.acteur.wicket.adapters.PreparedResponse;
+import com.mastfrog.giulius.DeploymentMode;
+import com.mastfrog.giulius.ShutdownHookRegistry;
+import com.mastfrog.settings.Settings;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.servlet.ServletContext;
+import org.apache.wicket.Application;
+import org.apache.wicket.ThreadContext;
+import org.apache.wicket.request.resource.caching.FilenameWithVersionResourceCachingStrategy;
+import org.apache.wicket.request.resource.caching.IResourceCachingStrategy;
+import org.apache.wicket.request.resource.caching.QueryStringWithVersionResourceCachingStrategy;
+import org.apache.wicket.request.resource.caching.version.IResourceVersion;
+import org.apache.wicket.settings.ResourceSettings;
+import org.apache.wicket.util.lang.Bytes;
+import org.apache.wicket.util.lang.Packages;
+import org.apache.wicket.util.resource.FileResourceStream;
+import org.apache.wicket.util.resource.IResourceStream;
+import org.apache.wicket.util.resource.ResourceStreamNotFoundException;
+import org.apache.wicket.util.resource.UrlResourceStream;
+import org.apache.wicket.util.time.Time;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves Wicket package resources - <code>wicket/resource/&lt;class&gt;/&lt;path&gt;</code>
+ * - from memory, without a session or request cycle.  Resources are located
+ * the way Wicket locates them, with the application's resource stream locator
+ * and package resource guard, read once, and kept as immutable responses,
+ * with a gzipped variant for compressible types.  Resources too large to keep
+ * in memory are served from disk with zero-copy file transfer - from where
+ * they are if they are plain files, otherwise from a copy extracted once into
+ * a cache directory.
+ * <p>
+ * Entries are keyed by the class and path the URL resolves to, so every
+ * version of a versioned URL shares one entry.  A URL only counts as
+ * versioned, and is cached by clients for a year, if it carries a version
+ * where the application's resource caching strategy puts one and in the
+ * form it generates them - not merely any query string.  Locating and reading a
+ * resource is blocking I/O, so a miss is loaded on the request executor
+ * while Wicket answers the request that missed;  resources this cannot
+ * serve are remembered too, so they are not looked up again.  The least
+ * recently used entries are evicted when the cache exceeds its size limit.
+ * <p>
+ * Anything this cannot answer exactly as Wicket would is left to Wicket:
+ * resources with style, variation or locale attributes in the URL,
+ * and JavaScript or CSS the application compresses or minifies.  Off by
+ * default in development mode, where resources are edited as the
+ * application runs.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class PackageResourceCache {
+
+    private static final Logger log = LoggerFactory.getLogger(PackageResourceCache.class);
+    static final String RESOURCE_PREFIX = "wicket/resource/";
+    private static final long IMMUTABLE_MAX_AGE_SECONDS = 365L * 24 * 60 * 60;
+    private static final int ENTRY_OVERHEAD = 256;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Boolean> loading = new ConcurrentHashMap<>();
+    private final AtomicLong bytes = new AtomicLong();
+    private final ReentrantLock evictLock = new ReentrantLock();
+    private final SessionRequestExecutor executor;
+    private final long maxBytes;
+    private final Provider<Application> application;
+    private final Compression compression;
+    private final MimeTypes mimeTypes;
+    private final boolean enabled;
+    private final boolean compress;
+    private final long maxFileBytes;
+    private final long maxAgeSeconds;
+    private final Locale locale;
+    private final boolean fileRegions;
+    private final File extractDir;
+    // Deleted at shutdown - the directory may be one the application shares
+    private final Set<File> extracted = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+    private volatile Versioning versioning;
+
+    @Inject
+    PackageResourceCache(Settings settings, Provider<Application> application, Compression compression,
+            MimeTypes mimeTypes, WicketConfig config, ServletContext ctx, SessionRequestExecutor executor,
+            DeploymentMode mode, ShutdownHookRegistry reg) {
+        this.application = application;
+        this.executor = executor;
+        this.mimeTypes = mimeTypes;
+        this.compression = compression;
+        // Entries live as long as the process, so while developing, edited
+        // resources would be served stale until a restart
+        enabled = settings.getBoolean(SETTINGS_KEY_RESOURCE_FAST_PATH, mode != DeploymentMode.DEVELOPMENT);
+        compress = settings.getBoolean(WicketActeurModule.SETTINGS_KEY_COMPRESSION, true);
+        maxFileBytes = settings.getLong(SETTINGS_KEY_RESOURCE_CACHE_MAX_FILE_KB, DEFAULT_RESOURCE_CACHE_MAX_FILE_KB) * 1024;
+        maxBytes = settings.getLong(SETTINGS_KEY_RESOURCE_CACHE_MAX_MB, DEFAULT_RESOURCE_CACHE_MAX_MB) * 1024 * 1024;
+        maxAgeSeconds = settings.getLong(SETTINGS_KEY_RESOURCE_MAX_AGE_SECONDS, DEFAULT_RESOURCE_MAX_AGE_SECONDS);
+        locale = config.locale();
+        fileRegions = settings.getBoolean(SETTINGS_KEY_RESOURCE_FILE_REGIONS, true);
+        String dirName = settings.getString(SETTINGS_KEY_RESOURCE_FILE_DIR);
+        extractDir = dirName != null ? new File(dirName)
+                : new File((File) ctx.getAttribute(FakeServletContext.TEMP_DIR_ATTRIBUTE), "resources");
+        reg.add(new Runnable() {
+            @Override
+            public void run() {
+                deleteExtracted();
+            }
+        });
+    }
+
+    private void deleteExtracted() {
+        for (File file : extracted) {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+        // Only succeeds if nothing else was put there
+        extractDir.delete();
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Find the response for a resource URL.
+     *
+     * @param path The request path, without a leading slash
+     * @param query The query string, or null
+     * @param acceptEncoding The Accept-Encoding header, or null
+     * @return A response, or null if Wicket should handle the request, as it
+     * does while a resource not yet in the cache is loaded
+     */
+    PreparedResponse find(String path, String query, String acceptEncoding) {
+        if (!enabled || !path.startsWith(RESOURCE_PREFIX)) {
+            return null;
+        }
+        if (query != null && !query.isEmpty()) {
+            // Wicket puts style, variation and locale attributes in a
+            // parameter that starts with '-'
+            for (String param : query.split("&")) {
+                if (param.startsWith("-")) {
+                    return null;
+                }
+            }
+        }
+        Location location = Location.parse(path.substring(RESOURCE_PREFIX.length()), query, versioning());
+        if (location == null) {
+            return null;
+        }
+        Entry entry = entries.get(location.key);
+        if (entry == null) {
+            loadLater(location);
+            return null;
+        }
+        entry.lastAccess = System.currentTimeMillis();
+        PreparedResponse result = entry.identity;
+        if (entry.gzip != null && compress && compression.negotiate(acceptEncoding) == Compression.Encoding.GZIP) {
+            result = entry.gzip;
+        }
+        return result;
+    }
+
+    private Versioning versioning() {
+        // The strategy is only final once the application is initialized,
+        // which it is by the time a request gets here
+        Versioning result = versioning;
+        if (result == null) {
+            versioning = result = Versioning.of(application.get().getResourceSettings().getCachingStrategy());
+        }
+        return result;
+    }
+
+    private void loadLater(final Location location) {
+        if (loading.putIfAbsent(location.key, Boolean.TRUE) != null) {
+            return;
+        }
+        executor.submit(null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Entry entry = load(location);
+                    put(location.key, entry == null ? new Entry(null, null) : entry);
+                } catch (RuntimeException e) {
+                    log.warn("Could not load " + location.key, e);
+                } finally {
+                    loading.remove(location.key);
+                }
+            }
+        });
+    }
+
+    private void put(String key, Entry entry) {
+        Entry old = entries.put(key, entry);
+        long total = bytes.addAndGet(entry.size - (old == null ? 0 : old.size));
+        if (total > maxBytes) {
+            evict();
+        }
+    }
+
+    private void evict() {
+        // One thread trims;  the rest carry on
+        if (!evictLock.tryLock()) {
+            return;
+        }
+        try {
+            long target = maxBytes - maxBytes / 10;
+            List<Map.Entry<String, Entry>> all = new ArrayList<>(entries.entrySet());
+            Collections.sort(all, new Comparator<Map.Entry<String, Entry>>() {
+                @Override
+                public int compare(Map.Entry<String, Entry> a, Map.Entry<String, Entry> b) {
+                    return Long.compare(a.getValue().lastAccess, b.getValue().lastAccess);
+                }
+            });
+            for (Map.Entry<String, Entry> e : all) {
+                if (bytes.get() <= target) {
+                    break;
+                }
+                if (entries.remove(e.getKey(), e.getValue())) {
+                    bytes.addAndGet(-e.getValue().size);
+                }
+            }
+        } finally {
+            evictLock.unlock();
+        }
+    }
+
+    private Entry load(Location location) {
+        Application app = application.get();
+        Class<?> scope;
+        try {
+            scope = app.getApplicationSettings().getClassResolver().resolveClass(location.className);
+        } catch (ClassNotFoundException | IllegalArgumentException e) {
+            return null;
+        }
+        String relativePath = location.relativePath;
+        String name = relativePath.substring(relativePath.lastIndexOf('/') + 1);
+        Application old = ThreadContext.getApplication();
+        ThreadContext.setApplication(app);
+        try {
+            ResourceSettings resources = app.getResourceSettings();
+            if (transformedByWicket(app, resources, name)) {
+                return null;
+            }
+            String absolutePath = Packages.absolutePath(scope, relativePath);
+            if (!resources.getPackageResourceGuard().accept(scope, absolutePath)) {
+                return null;
+            }
+            IResourceStream stream = resources.getResourceStreamLocator().locate(scope, absolutePath, null, null, locale, null, false);
+            if (stream == null) {
+                return null;
+            }
+            return read(stream, scope, relativePath, name, location.versioned);
+        } finally {
+            ThreadContext.setApplication(old);
+        }
+    }
+
+    private boolean transformedByWicket(Application app, ResourceSettings resources, String name) {
+        boolean minify = resources.getUseMinifiedResources() && app.usesDeploymentConfig();
+        if (name.endsWith(".js")) {
+            return resources.getJavaScriptCompressor() != null || (minify && !name.endsWith(".min.js"));
+        }
+        if (name.endsWith(".css")) {
+            return resources.getCssCompressor() != null || (minify && !name.endsWith(".min.css"));
+        }
+        return false;
+    }
+
+    private Entry read(IResourceStream stream, Class<?> scope, String relativePath, String name, boolean versioned) {
+        try {
+            String contentType = mimeTypes.contentType(name);
+            Time modified = stream.lastModifiedTime();
+            long modifiedMillis = modified == null ? System.currentTimeMillis() : modified.getMilliseconds();
+            String lastModified = Headers.ISO2822DateFormat.print(new DateTime(modifiedMillis));
+            String cacheControl = "public, max-age=" + (versioned ? IMMUTABLE_MAX_AGE_SECONDS : maxAgeSeconds);
+            Bytes length = stream.length();
+            if (length != null && length.bytes() > maxFileBytes) {
+                return fileEntry(stream, scope, relativePath, name, modifiedMillis, contentType, lastModified, cacheControl);
+            }
+            byte[] body;
+            try (InputStream in = stream.getInputStream()) {
+                body = ByteStreams.toByteArray(ByteStreams.limit(in, maxFileBytes + 1));
+            }
+            if (body.length > maxFileBytes) {
+                // Length was unknown - reopen and go to disk instead
+                stream.close();
+                return fileEntry(stream, scope, relativePath, name, modifiedMillis, contentType, lastModified, cacheControl);
+            }
+            String etag = etag(body);
+            CachedResponse identity;
+            CachedResponse gzip = null;
+            if (compression.isCompressible(contentType)) {
+                identity = CachedResponse.create(body, "Content-Type", contentType, "ETag", '"' + etag + '"',
+                        "Last-Modified", lastModified, "Cache-Control", cacheControl, "Vary", "Accept-Encoding",
+                        "Accept-Ranges", "bytes");
+                byte[] compressed = gzip(body);
+                if (compressed.length < body.length) {
+                    gzip = CachedResponse.create(compressed, "Content-Type", contentType, "Content-Encoding", "gzip",
+                            "ETag", '"' + etag + "-gzip\"", "Last-Modified", lastModified,
+                            "Cache-Control", cacheControl, "Vary", "Accept-Encoding");
+                }
+            } else {
+                identity = CachedResponse.create(body, "Content-Type", contentType, "ETag", '"' + etag + '"',
+                        "Last-Modified", lastModified, "Cache-Control", cacheControl, "Accept-Ranges", "bytes");
+            }
+            return new Entry(identity, gzip);
+        } catch (IOException | ResourceStreamNotFoundException e) {
+            log.debug("Could not read " + name, e);
+            return null;
+        } finally {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                log.debug("Could not close " + name, e);
+            }
+        }
+    }
+
+    private Entry fileEntry(IResourceStream stream, Class<?> scope, String relativePath, String name,
+            long modified, String contentType, String lastModified, String cacheControl) throws IOException, ResourceStreamNotFoundException {
+        if (!fileRegions) {
+            return null;
+        }
+        File file = localFile(stream);
+        if (file == null) {
+            file = extract(stream, scope, relativePath, name, modified);
+        }
+        // Not hashing megabytes to make a tag - the location, size and
+        // modification time identify the content well enough
+        String etag = '"' + Long.toHexString(hash(scope.getName() + '/' + relativePath))
+                + '-' + Long.toHexString(file.length()) + '-' + Long.toHexString(modified) + '"';
+        return new Entry(new FileResponse(file, "Content-Type", contentType, "ETag", etag,
+                "Last-Modified", lastModified, "Cache-Control", cacheControl, "Accept-Ranges", "bytes"), null);
+    }
+
+    private static File localFile(IResourceStream stream) {
+        if (stream instanceof FileResourceStream) {
+            return ((FileResourceStream) stream).getFile();
+        }
+        if (stream instanceof UrlResourceStream) {
+            URL url = ((UrlResourceStream) stream).getURL();
+            if ("file".equals(url.getProtocol())) {
+                try {
+                    return new File(url.toURI());
+                } catch (URISyntaxException | IllegalArgumentException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private File extract(IResourceStream stream, Class<?> scope, String relativePath, String name, long modified) throws IOException, ResourceStreamNotFoundException {
+        if (!extractDir.exists() && !extractDir.mkdirs()) {
+            throw new IOException("Could not create " + extractDir);
+        }
+        File target = new File(extractDir, Long.toHexString(hash(scope.getName() + '/' + relativePath))
+                + '-' + Long.toHexString(modified) + '-' + name);
+        if (!target.exists()) {
+            // Write under a temporary name, so a concurrent request never
+            // sees half a file
+            File tmp = File.createTempFile("extract", ".tmp", extractDir);
+            try (InputStream in = stream.getInputStream(); OutputStream out = new FileOutputStream(tmp)) {
+                ByteStreams.copy(in, out);
+            }
+            try {
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                // Someone else got there first
+                Files.deleteIfExists(tmp.toPath());
+                if (!target.exists()) {
+                    throw e;
+                }
+            }
+        }
+        extracted.add(target);
+        return target;
+    }
+
+    private static long hash(String s) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            hash = (hash ^ s.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static String etag(byte[] body) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : body) {
+            hash = (hash ^ (b & 0xFF)) * 0x100000001b3L;
+        }
+        return Long.toHexString(hash) + '-' + Integer.toHexString(body.length);
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 2);
+        try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+            gz.write(body);
+        }
+        return out.toByteArray();
+    }
+
+    private static int size(PreparedResponse response) {
+        return response instanceof CachedResponse ? ((CachedResponse) response).size() : 0;
+    }
+
+    /**
+     * What a resource URL resolves to, with any version stripped.
+     */
+    static final class Location {
+
+        final String className;
+        final String relativePath;
+        final boolean versioned;
+        final String key;
+
+        private Location(String className, String relativePath, boolean versioned) {
+            this.className = className;
+            this.relativePath = relativePath;
+            this.versioned = versioned;
+            // The version determines the Cache-Control header
+            key = className + '/' + relativePath + (versioned ? "?" : "");
+        }
+
+        /**
+         * Parse the part of a resource URL after the prefix.
+         *
+         * @param classAndPath The class name and path
+         * @param query The query string, or null
+         * @param versioning Where versions go in resource URLs
+         * @return A location, or null if it is not a valid resource URL
+         */
+        static Location parse(String classAndPath, String query, Versioning versioning) {
+            int slash = classAndPath.indexOf('/');
+            if (slash <= 0 || slash == classAndPath.length() - 1) {
+                return null;
+            }
+            String className;
+            String relativePath;
+            try {
+                className = URLDecoder.decode(classAndPath.substring(0, slash), "UTF-8");
+                relativePath = URLDecoder.decode(classAndPath.substring(slash + 1), "UTF-8");
+            } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                return null;
+            }
+            if (relativePath.contains("..")) {
+                return null;
+            }
+            boolean versioned = versioning.queryHasVersion(query);
+            if (versioning.prefix != null) {
+                // name-ver-VERSION.ext, as FilenameWithVersionResourceCachingStrategy
+                // decorates it
+                int nameStart = relativePath.lastIndexOf('/');
+                int dot = relativePath.lastIndexOf('.');
+                String base = dot > nameStart ? relativePath.substring(0, dot) : relativePath;
+                int ver = base.lastIndexOf(versioning.prefix);
+                if (ver > nameStart && versioning.isVersion(base.substring(ver + versioning.prefix.length()))) {
+                    relativePath = base.substring(0, ver) + (dot > nameStart ? relativePath.substring(dot) : "");
+                    versioned = true;
+                }
+            }
+            return new Location(className, relativePath, versioned);
+        }
+    }
+
+    /**
+     * Where, and in what form, the application's resource caching strategy
+     * puts versions in resource URLs.
+     */
+    static final class Versioning {
+
+        static final Versioning NONE = new Versioning(null, null, null);
+        // The prefix before a version in a file name, or null
+        final String prefix;
+        // The query parameter holding a version, or null
+        final String parameter;
+        private final Pattern pattern;
+
+        Versioning(String prefix, String parameter, Pattern pattern) {
+            this.prefix = prefix;
+            this.parameter = parameter;
+            this.pattern = pattern;
+        }
+
+        boolean isVersion(String candidate) {
+            return !candidate.isEmpty() && (pattern == null || pattern.matcher(candidate).matches());
+        }
+
+        boolean queryHasVersion(String query) {
+            if (parameter == null || query == null) {
+                return false;
+            }
+            for (String param : query.split("&")) {
+                int eq = param.indexOf('=');
+                if (eq > 0 && parameter.equals(param.substring(0, eq))) {
+                    try {
+                        return isVersion(URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+                    } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                        return false;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Find out how a caching strategy versions URLs.  The strategies keep
+         * their settings to themselves, so they are read reflectively, as
+         * WicketApplicationInitializer does;  any other kind of strategy is
+         * assumed to put no version in URLs this can recognize.
+         *
+         * @param strategy The application's caching strategy
+         * @return A versioning
+         */
+        static Versioning of(IResourceCachingStrategy strategy) {
+            try {
+                if (strategy.getClass() == FilenameWithVersionResourceCachingStrategy.class) {
+                    return new Versioning((String) read(strategy, "versionPrefix"), null,
+                            ((IResourceVersion) read(strategy, "resourceVersion")).getVersionPattern());
+                }
+                if (strategy.getClass() == QueryStringWithVersionResourceCachingStrategy.class) {
+                    return new Versioning(null, (String) read(strategy, "versionParameter"),
+                            ((IResourceVersion) read(strategy, "resourceVersion")).getVersionPattern());
+                }
+            } catch (NoSuchFieldException | IllegalAccessException | RuntimeException e) {
+                log.warn("Could not read the settings of " + strategy, e);
+            }
+            return NONE;
+        }
+
+        private static Object read(Object on, String name) throws NoSuchFieldException, IllegalAccessException {
+            Field field = on.getClass().getDeclaredField(name);
+            field.setAccessible(true);
+            return field.get(on);
+        }
+    }
+
+    private static final class Entry {
+
+        // null if Wicket has to serve it
+        final PreparedResponse identity;
+        final PreparedResponse gzip;
+        final int size;
+        volatile long lastAccess;
+
+        Entry(PreparedResponse identity, PreparedResponse gzip) {
+            this.identity = identity;
+            this.gzip = gzip;
+            size = ENTRY_OVERHEAD + size(identity) + size(gzip);
+            lastAccess = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Lists the classpath resources in a class's package and the packages below
+ * it, from the directory or JAR the class was loaded from.
+ *
+ * @author Tim Boudreau
+ */
+final class PackageScanner {
+
+    private PackageScanner() {
+        throw new AssertionError();
+    }
+
+    /**
+     * List the resources under a class's package.
+     *
+     * @param type A class
+     * @return Resource names as a class loader would take them, such as
+     * <code>com/foo/HomePage.class</code>;  empty if the class was not
+     * loaded from a directory or JAR
+     * @throws IOException if the directory or JAR cannot be read
+     */
+    static List<String> scan(Class<?> type) throws IOException {
+        final List<String> result = new ArrayList<>();
+        CodeSource source = type.getProtectionDomain().getCodeSource();
+        URL location = source == null ? null : source.getLocation();
+        if (location == null || !"file".equals(location.getProtocol())) {
+            return result;
+        }
+        File root;
+        try {
+            root = new File(location.toURI());
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return result;
+        }
+        String name = type.getName();
+        int dot = name.lastIndexOf('.');
+        final String prefix = dot < 0 ? "" : name.substring(0, dot).replace('.', '/') + '/';
+        if (root.isDirectory()) {
+            final Path base = root.toPath();
+            Path dir = base.resolve(prefix);
+            if (Files.isDirectory(dir)) {
+                Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        result.add(base.relativize(file).toString().replace(File.separatorChar, '/'));
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            }
+        } else if (root.isFile()) {
+            try (JarFile jar = new JarFile(root)) {
+                for (Enumeration<JarEntry> en = jar.entries(); en.hasMoreElements();) {
+                    JarEntry entry = en.nextElement();
+                    if (!entry.isDirectory() && entry.getName().startsWith(prefix)) {
+                        result.add(entry.getName());
+                    }
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash table stored in a direct buffer, mapping a (session
+ * id hash, page id) pair to the segment and offset of a stored page.  Keeping
+ * it off-heap means a page store holding hundreds of thousands of page
+ * versions adds nothing for the garbage collector to trace.
+ * <p>
+ * Entries for each session are doubly linked through the table, so dropping
+ * a session touches only its own pages rather than scanning every slot.
+ * <p>
+ * Not thread-safe - callers synchronize.
+ *
+ * @author Tim Boudreau
+ */
+final class PageIndex {
+
+    private static final int ENTRY_SIZE = 32;
+    private static final int HASH = 0;
+    private static final int PAGE = 8;
+    private static final int SEGMENT = 12;
+    private static final int OFFSET = 16;
+    private static final int STATE = 20;
+    private static final int PREV = 24;
+    private static final int NEXT = 28;
+    private static final int NONE = -1;
+    private static final int EMPTY = 0;
+    private static final int USED = 1;
+    private static final int DELETED = 2;
+    private ByteBuffer table;
+    private int capacity;
+    private int size;
+    private int tombstones;
+    private final Heads heads = new Heads();
+
+    PageIndex(int initialCapacity) {
+        capacity = Integer.highestOneBit(Math.max(16, initialCapacity - 1) << 1);
+        table = ByteBuffer.allocateDirect(capacity * ENTRY_SIZE);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of a session id, computed without allocating.
+     *
+     * @param sessionId A session id
+     * @return A hash
+     */
+    static long hash(CharSequence sessionId) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < sessionId.length(); i++) {
+            h ^= sessionId.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private int slotFor(long hash, int pageId) {
+        long h = hash ^ (pageId * 0x9E3779B97F4A7C15L);
+        h ^= h >>> 32;
+        h ^= h >>> 16;
+        return (int) h & (capacity - 1);
+    }
+
+    private int find(long hash, int pageId) {
+        int slot = slotFor(hash, pageId);
+        for (int i = 0; i < capacity; i++) {
+            int pos = ((slot + i) & (capacity - 1)) * ENTRY_SIZE;
+            int state = table.getInt(pos + STATE);
+            if (state == EMPTY) {
+                return -1;
+            }
+            if (state == USED && table.getLong(pos + HASH) == hash && table.getInt(pos + PAGE) == pageId) {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    private static long pack(int segment, int offset) {
+        return ((long) segment << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    static int segment(long location) {
+        return (int) (location >>> 32);
+    }
+
+    static int offset(long location) {
+        return (int) location;
+    }
+
+    /**
+     * Get the location of a page.
+     *
+     * @return A location to pass to segment() and offset(), or -1
+     */
+    long get(long hash, int pageId) {
+        int pos = find(hash, pageId);
+        return pos < 0 ? -1 : pack(table.getInt(pos + SEGMENT), table.getInt(pos + OFFSET));
+    }
+
+    /**
+     * Set the location of a page.
+     *
+     * @return The previous location, or -1
+     */
+    long put(long hash, int pageId, int segment, int offset) {
+        int pos = find(hash, pageId);
+        if (pos >= 0) {
+            long old = pack(table.getInt(pos + SEGMENT), table.getInt(pos + OFFSET));
+            table.putInt(pos + SEGMENT, segment);
+            table.putInt(pos + OFFSET, offset);
+            return old;
+        }
+        if ((size + tombstones + 1) * 10 > capacity * 7) {
+            // Only grow if live entries need it;  otherwise just sweep
+            // out the tombstones
+            rehash(size * 2 >= capacity ? capacity * 2 : capacity);
+        }
+        int slot = slotFor(hash, pageId);
+        for (int i = 0;; i++) {
+            pos = ((slot + i) & (capacity - 1)) * ENTRY_SIZE;
+            int state = table.getInt(pos + STATE);
+            if (state != USED) {
+                if (state == DELETED) {
+                    tombstones--;
+                }
+                table.putLong(pos + HASH, hash);
+                table.putInt(pos + PAGE, pageId);
+                table.putInt(pos + SEGMENT, segment);
+                table.putInt(pos + OFFSET, offset);
+                table.putInt(pos + STATE, USED);
+                link(hash, pos);
+                size++;
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Remove a page.
+     *
+     * @return The previous location, or -1
+     */
+    long remove(long hash, int pageId) {
+        int pos = find(hash, pageId);
+        if (pos < 0) {
+            return -1;
+        }
+        long old = pack(table.getInt(pos + SEGMENT), table.getInt(pos + OFFSET));
+        delete(pos);
+        return old;
+    }
+
+    private void link(long hash, int pos) {
+        int head = heads.get(hash);
+        table.putInt(pos + PREV, NONE);
+        table.putInt(pos + NEXT, head);
+        if (head != NONE) {
+            table.putInt(head + PREV, pos);
+        }
+        heads.put(hash, pos);
+    }
+
+    private void delete(int pos) {
+        int prev = table.getInt(pos + PREV);
+        int next = table.getInt(pos + NEXT);
+        if (prev != NONE) {
+            table.putInt(prev + NEXT, next);
+        } else if (next != NONE) {
+            heads.put(table.getLong(pos + HASH), next);
+        } else {
+            heads.remove(table.getLong(pos + HASH));
+        }
+        if (next != NONE) {
+            table.putInt(next + PREV, prev);
+        }
+        table.putInt(pos + STATE, DELETED);
+        size--;
+        tombstones++;
+    }
+
+    /**
+     * Remove all pages for one session, passing the location of each to the
+     * visitor.
+     */
+    void removeSession(long hash, Visitor visitor) {
+        int pos = heads.remove(hash);
+        while (pos != NONE) {
+            int next = table.getInt(pos + NEXT);
+            table.putInt(pos + STATE, DELETED);
+            size--;
+            tombstones++;
+            visitor.visit(table.getInt(pos + SEGMENT), table.getInt(pos + OFFSET));
+            pos = next;
+        }
+    }
+
+    /**
+     * Remove all entries pointing into a segment.
+     */
+    void removeSegment(int segment) {
+        for (int pos = 0; pos < capacity * ENTRY_SIZE; pos += ENTRY_SIZE) {
+            if (table.getInt(pos + STATE) == USED && table.getInt(pos + SEGMENT) == segment) {
+                delete(pos);
+            }
+        }
+    }
+
+    /**
+     * Visit all entries pointing into a segment, allowing the visitor to move
+     * them elsewhere.
+     */
+    void relocateSegment(int segment, Relocator relocator) {
+        for (int pos = 0; pos < capacity * ENTRY_SIZE; pos += ENTRY_SIZE) {
+            if (table.getInt(pos + STATE) == USED && table.getInt(pos + SEGMENT) == segment) {
+                long newLocation = relocator.relocate(table.getInt(pos + OFFSET));
+                if (newLocation < 0) {
+                    delete(pos);
+                } else {
+                    table.putInt(pos + SEGMENT, segment(newLocation));
+                    table.putInt(pos + OFFSET, offset(newLocation));
+                }
+            }
+        }
+    }
+
+    static long location(int segment, int offset) {
+        return pack(segment, offset);
+    }
+
+    private void rehash(int newCapacity) {
+        ByteBuffer old = table;
+        int oldCapacity = capacity;
+        table = ByteBuffer.allocateDirect(newCapacity * ENTRY_SIZE);
+        capacity = newCapacity;
+        size = 0;
+        tombstones = 0;
+        heads.clear();
+        for (int pos = 0; pos < oldCapacity * ENTRY_SIZE; pos += ENTRY_SIZE) {
+            if (old.getInt(pos + STATE) == USED) {
+                put(old.getLong(pos + HASH), old.getInt(pos + PAGE),
+                        old.getInt(pos + SEGMENT), old.getInt(pos + OFFSET));
+            }
+        }
+    }
+
+    /**
+     * Open-addressing map from session hash to the position of the first
+     * entry in that session's chain, in primitive arrays.  Uses backward-shift
+     * deletion, so sessions coming and going leave no tombstones.
+     */
+    private static final class Heads {
+
+        private long[] keys;
+        private int[] positions;
+        private int size;
+
+        Heads() {
+            allocate(16);
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity];
+            positions = new int[capacity];
+            Arrays.fill(positions, NONE);
+        }
+
+        private int slot(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & (keys.length - 1);
+        }
+
+        int get(long key) {
+            int mask = keys.length - 1;
+            for (int i = slot(key);; i = (i + 1) & mask) {
+                if (positions[i] == NONE || keys[i] == key) {
+                    return positions[i];
+                }
+            }
+        }
+
+        void put(long key, int position) {
+            if ((size + 1) * 4 > keys.length * 3) {
+                long[] oldKeys = keys;
+                int[] oldPositions = positions;
+                allocate(keys.length * 2);
+                size = 0;
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldPositions[i] != NONE) {
+                        put(oldKeys[i], oldPositions[i]);
+                    }
+                }
+            }
+            int mask = keys.length - 1;
+            for (int i = slot(key);; i = (i + 1) & mask) {
+                if (positions[i] == NONE) {
+                    keys[i] = key;
+                    positions[i] = position;
+                    size++;
+                    return;
+                }
+                if (keys[i] == key) {
+                    positions[i] = position;
+                    return;
+                }
+            }
+        }
+
+        int remove(long key) {
+            int mask = keys.length - 1;
+            int i = slot(key);
+            while (positions[i] != NONE && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            int old = positions[i];
+            if (old == NONE) {
+                return NONE;
+            }
+            // Shift back any later entry in the run whose home slot is not
+            // between the hole and itself
+            for (int j = (i + 1) & mask; positions[j] != NONE; j = (j + 1) & mask) {
+                int home = slot(keys[j]);
+                boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+                if (!stays) {
+                    keys[i] = keys[j];
+                    positions[i] = positions[j];
+                    i = j;
+                }
+            }
+            positions[i] = NONE;
+            size--;
+            return old;
+        }
+
+        void clear() {
+            Arrays.fill(positions, NONE);
+            size = 0;
+        }
+    }
+
+    interface Visitor {
+
+        void visit(int segment, int offset);
+    }
+
+    interface Relocator {
+
+        /**
+         * Move a record.
+         *
+         * @param offset The record's offset in the segment being relocated
+         * @return Its new location, or -1 to drop it
+         */
+        long relocate(int offset);
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_PAGE_STORE_WRITE_BEHIND_CAPACITY;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_PAGE_STORE_WRITE_BEHIND_CAPACITY;
+import com.google.inject.Singleton;
+import com.mastfrog.settings.Settings;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.inject.Inject;
+import org.apache.wicket.page.IManageablePage;
+import org.apache.wicket.pageStore.IPageStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Puts off serializing the stateful pages a request cycle detaches until
+ * its response has been handed back to be sent, so the cost of serializing
+ * them is not added to the response time.
+ * <p>
+ * The pages are serialized by the same thread which ran the cycle, before it
+ * takes on any other work - and so, since the SessionRequestExecutor runs a
+ * session's requests one at a time, before the session's next request can
+ * touch them.  Serializing them on some other thread instead would race
+ * that request, and could write a torn page.
+ * <p>
+ * Repeated versions of the same page in the same session are coalesced -
+ * only the latest is written - and a page whose write is still pending when
+ * it is asked for is written first, so it is read back like any stored page
+ * rather than shared live.  Once the configured number of pages is pending
+ * across all threads, further pages are written synchronously, so a backlog
+ * slows requests down rather than growing without bound.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class PageWriteBehind {
+
+    private static final Logger log = LoggerFactory.getLogger(PageWriteBehind.class);
+    private final int capacity;
+    private final AtomicInteger count = new AtomicInteger();
+    private final ConcurrentMap<Key, Pending> pending = new ConcurrentHashMap<>();
+    private final ThreadLocal<List<Pending>> deferred = new ThreadLocal<>();
+
+    @Inject
+    PageWriteBehind(Settings settings) {
+        this(settings.getInt(SETTINGS_KEY_PAGE_STORE_WRITE_BEHIND_CAPACITY, DEFAULT_PAGE_STORE_WRITE_BEHIND_CAPACITY));
+    }
+
+    PageWriteBehind(int capacity) {
+        this.capacity = capacity;
+    }
+
+    boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    /**
+     * Wrap a page store so pages stored between begin() and flush() on the
+     * same thread are written at flush().
+     *
+     * @param store The page store
+     * @return A page store
+     */
+    IPageStore wrap(IPageStore store) {
+        return new Store(store);
+    }
+
+    /**
+     * Start deferring the pages stored on this thread.
+     */
+    void begin() {
+        if (capacity > 0) {
+            deferred.set(new ArrayList<Pending>(2));
+        }
+    }
+
+    /**
+     * Write the pages stored on this thread since begin().
+     */
+    void flush() {
+        List<Pending> list = deferred.get();
+        if (list != null) {
+            deferred.remove();
+            for (Pending p : list) {
+                p.write();
+            }
+        }
+    }
+
+    /**
+     * The number of pages waiting to be written.
+     *
+     * @return A count
+     */
+    int pending() {
+        return count.get();
+    }
+
+    private void flush(Key key) {
+        Pending p = pending.get(key);
+        if (p != null) {
+            p.write();
+        }
+    }
+
+    private void discard(Key key) {
+        Pending p = pending.get(key);
+        if (p != null) {
+            p.discard();
+        }
+    }
+
+    private final class Store implements IPageStore {
+
+        private final IPageStore delegate;
+
+        Store(IPageStore delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void storePage(String sessionId, IManageablePage page) {
+            List<Pending> list = deferred.get();
+            if (list == null || count.get() >= capacity) {
+                // Not in a request cycle, or too much already waiting
+                delegate.storePage(sessionId, page);
+                return;
+            }
+            count.incrementAndGet();
+            Pending p = new Pending(delegate, new Key(sessionId, page.getPageId()), page);
+            Pending old = pending.put(p.key, p);
+            if (old != null) {
+                old.discard();
+            }
+            list.add(p);
+        }
+
+        @Override
+        public IManageablePage getPage(String sessionId, int pageId) {
+            flush(new Key(sessionId, pageId));
+            return delegate.getPage(sessionId, pageId);
+        }
+
+        @Override
+        public void removePage(String sessionId, int pageId) {
+            discard(new Key(sessionId, pageId));
+            delegate.removePage(sessionId, pageId);
+        }
+
+        @Override
+        public void unbind(String sessionId) {
+            // At most capacity entries to look at
+            for (Key key : pending.keySet()) {
+                if (key.sessionId.equals(sessionId)) {
+                    discard(key);
+                }
+            }
+            delegate.unbind(sessionId);
+        }
+
+        @Override
+        public Serializable prepareForSerialization(String sessionId, Serializable page) {
+            // The stub this produces for a page assumes it is in the store
+            if (page instanceof IManageablePage) {
+                flush(new Key(sessionId, ((IManageablePage) page).getPageId()));
+            }
+            return delegate.prepareForSerialization(sessionId, page);
+        }
+
+        @Override
+        public Object restoreAfterSerialization(Serializable serializable) {
+            return delegate.restoreAfterSerialization(serializable);
+        }
+
+        @Override
+        public IManageablePage convertToPage(Object page) {
+            return delegate.convertToPage(page);
+        }
+
+        // Asked by Wicket versions which can put page stores behind their
+        // own asynchronous one;  this one already defers writes
+        public boolean canBeAsynchronous() {
+            return false;
+        }
+
+        @Override
+        public void destroy() {
+            // Write anything left, so pages are not silently lost
+            for (Pending p : pending.values()) {
+                p.write();
+            }
+            delegate.destroy();
+        }
+    }
+
+    private final class Pending {
+
+        private final IPageStore store;
+        final Key key;
+        private IManageablePage page;
+
+        Pending(IPageStore store, Key key, IManageablePage page) {
+            this.store = store;
+            this.key = key;
+            this.page = page;
+        }
+
+        /**
+         * Store the page, unless it has been already, or superseded or
+         * removed.  Whichever thread gets here first writes it;  any other
+         * waits for it to be written.
+         */
+        synchronized void write() {
+            IManageablePage p = page;
+            if (p == null) {
+                return;
+            }
+            try {
+                store.storePage(key.sessionId, p);
+            } catch (RuntimeException e) {
+                log.error("Exception storing page " + key, e);
+            } finally {
+                done();
+            }
+        }
+
+        synchronized void discard() {
+            if (page != null) {
+                done();
+            }
+        }
+
+        // Call holding the monitor
+        private void done() {
+            page = null;
+            pending.remove(key, this);
+            count.decrementAndGet();
+        }
+    }
+
+    private static final class Key {
+
+        private final String sessionId;
+        private final int pageId;
+
+        Key(String sessionId, int pageId) {
+            this.sessionId = sessionId;
+            this.pageId = pageId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return pageId == other.pageId && sessionId.equals(other.sessionId);
+        }
+
+        @Override
+        public int hashCode() {
+            return sessionId.hashCode() * 31 + pageId;
+        }
+
+        @Override
+        public String toString() {
+            return sessionId + ":" + pageId;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Pattern;
+import org.apache.wicket.Application;
+import org.apache.wicket.ThreadContext;
+import org.apache.wicket.request.resource.IResource;
+import org.apache.wicket.request.resource.PackageResource;
+import org.apache.wicket.request.resource.PackageResourceReference;
+import org.apache.wicket.request.resource.caching.IStaticCacheableResource;
+import org.apache.wicket.request.resource.caching.version.IResourceVersion;
+import org.apache.wicket.util.lang.Packages;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resource version which answers from a table of versions computed in
+ * parallel at startup, for the package resources under the application's
+ * package, so no request has to read and hash a resource to render a URL
+ * for it.  Anything not in the table goes to the version Wicket would
+ * otherwise have used.
+ * <p>
+ * Only resources with no locale, style or variation variants are in the
+ * table, since for those the content - and so the version - is the same
+ * whatever the session.
+ *
+ * @author Tim Boudreau
+ */
+final class PrecomputedResourceVersion implements IResourceVersion {
+
+    private static final Logger log = LoggerFactory.getLogger(PrecomputedResourceVersion.class);
+    private final Map<String, String> versions;
+    private final IResourceVersion delegate;
+
+    private PrecomputedResourceVersion(Map<String, String> versions, IResourceVersion delegate) {
+        this.versions = versions;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public String getVersion(IStaticCacheableResource resource) {
+        if (resource instanceof PackageResource) {
+            PackageResource pr = (PackageResource) resource;
+            String version = versions.get(Packages.absolutePath(pr.getScope(), pr.getName()));
+            if (version != null) {
+                return version;
+            }
+        }
+        return delegate.getVersion(resource);
+    }
+
+    @Override
+    public Pattern getVersionPattern() {
+        return delegate.getVersionPattern();
+    }
+
+    /**
+     * Compute the versions of the package resources under a class's
+     * package.
+     *
+     * @param app The application
+     * @param root The class whose package, and those below it, are hashed
+     * @param delegate The version to compute with, and to fall back to
+     * @param threads The number of threads to hash on
+     * @return A resource version
+     * @throws IOException if the package cannot be scanned
+     */
+    static PrecomputedResourceVersion create(final Application app, Class<?> root,
+            final IResourceVersion delegate, int threads) throws IOException {
+        long start = System.currentTimeMillis();
+        ClassLoader loader = root.getClassLoader();
+        List<String> names = PackageScanner.scan(root);
+        Set<String> varied = varied(names);
+        // A class in each directory, to scope the resources there to
+        Map<String, Class<?>> scopes = new HashMap<>();
+        for (String name : names) {
+            int slash = name.lastIndexOf('/');
+            String dir = name.substring(0, slash + 1);
+            if (name.endsWith(".class") && name.indexOf('$') < 0 && !scopes.containsKey(dir)) {
+                try {
+                    scopes.put(dir, Class.forName(name.substring(0, name.length() - 6).replace('/', '.'), false, loader));
+                } catch (ClassNotFoundException | LinkageError e) {
+                    log.debug("Could not load " + name, e);
+                }
+            }
+        }
+        final ConcurrentHashMap<String, String> versions = new ConcurrentHashMap<>();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (final String name : names) {
+            int slash = name.lastIndexOf('/');
+            final Class<?> scope = scopes.get(name.substring(0, slash + 1));
+            if (scope == null || name.endsWith(".class") || varied.contains(name)) {
+                continue;
+            }
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    ThreadContext.setApplication(app);
+                    try {
+                        IResource resource = new PackageResourceReference(scope, name.substring(name.lastIndexOf('/') + 1)).getResource();
+                        if (resource instanceof IStaticCacheableResource) {
+                            String version = delegate.getVersion((IStaticCacheableResource) resource);
+                            if (version != null) {
+                                versions.put(name, version);
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        log.debug("Could not compute a version for " + name, e);
+                    } finally {
+                        ThreadContext.detach();
+                    }
+                    return null;
+                }
+            });
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invokeAll(tasks);
+        } finally {
+            pool.shutdown();
+        }
+        log.info("Computed versions of " + versions.size() + " resources in "
+                + (System.currentTimeMillis() - start) + "ms");
+        return new PrecomputedResourceVersion(Collections.unmodifiableMap(new HashMap<>(versions)), delegate);
+    }
+
+    private static Set<String> varied(List<String> names) {
+        // Variants are named base_style_locale.ext and so on;  the names
+        // of those, and of the resources they are variants of, go in the set
+        Set<String> result = new HashSet<>();
+        for (String name : names) {
+            int slash = name.lastIndexOf('/');
+            int underscore = name.indexOf('_', slash + 1);
+            if (underscore > 0) {
+                int dot = name.lastIndexOf('.');
+                result.add(name);
+                result.add(name.substring(0, underscore) + (dot > underscore ? name.substring(dot) : ""));
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.mastfrog.acteur.Acteur;
+import com.mastfrog.acteur.Deferral;
+import com.mastfrog.acteur.Deferral.Resumer;
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.headers.Method;
+import com.mastfrog.acteur.server.PathFactory;
+import com.mastfrog.acteur.wicket.adapters.Compression;
+import com.mastfrog.acteur.wicket.adapters.RequestAdapter;
+import com.mastfrog.acteur.wicket.adapters.ResponseAdapter;
+import com.mastfrog.guicy.scope.ReentrantScope;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.util.thread.QuietAutoCloseable;
+import io.netty.buffer.ByteBufAllocator;
+import java.nio.charset.Charset;
+import javax.inject.Inject;
+import org.apache.wicket.Application;
+import org.apache.wicket.ThreadContext;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands the Wicket request cycle off to the SessionRequestExecutor and
+ * defers the rest of the chain until it has run, so the event thread is free
+ * while pages render.  The next acteur gets a CycleResult.
+ *
+ * @author Tim Boudreau
+ */
+final class RunRequestCycle extends Acteur {
+
+    private static final Logger log = LoggerFactory.getLogger(RunRequestCycle.class);
+
+    @Inject
+    RunRequestCycle(HttpEvent evt, final Application application, PathFactory pf, Charset charset, WicketConfig config, ByteBufAllocator alloc, Settings settings, final ReentrantScope scope, Deferral deferral, SessionRequestExecutor executor, LazySessionId session, Compression compression, final OutputCache cache, final PageWriteBehind writeBehind) {
+        final RequestAdapter request = new RequestAdapter(evt, config.locale(), charset, settings);
+        final ResponseAdapter response = new ResponseAdapter(charset, alloc, pf);
+        Compression.Encoding encoding = null;
+        if (settings.getBoolean(WicketActeurModule.SETTINGS_KEY_COMPRESSION, true)) {
+            encoding = compression.negotiate(evt.getHeader("Accept-Encoding"));
+            response.enableCompression(compression, encoding);
+        }
+        final String cacheKey = cache.keyFor(evt, encoding);
+        final Resumer resumer = deferral.defer();
+        int streamThreshold = settings.getInt(WicketActeurModule.SETTINGS_KEY_STREAMING_THRESHOLD_KB,
+                WicketActeurModule.DEFAULT_STREAMING_THRESHOLD_KB) * 1024;
+        if (streamThreshold > 0 && session.isAssigned() && evt.getMethod() != Method.HEAD) {
+            // A big response resumes the chain early, from inside the cycle,
+            // so the headers go out while the rest is still rendering.  Not
+            // for a request with no session yet - if rendering binds one,
+            // its cookie must still be able to go in the headers - nor for
+            // HEAD, which gets no body at all
+            response.enableStreaming(evt.getChannel(), streamThreshold, new ResponseAdapter.Committer() {
+                @Override
+                public void commit(ResponseAdapter response) {
+                    resumer.resume(new CycleResult(true, response, null));
+                }
+            });
+        }
+        // wrap() carries the contents of the request scope over to the
+        // thread that runs the cycle, so pages can still be injected.  A
+        // request with no session yet has nothing to be ordered against
+        executor.submit(session.get(), scope.wrap(new Runnable() {
+            @Override
+            public void run() {
+                writeBehind.begin();
+                try {
+                    CycleResult result = runCycle(application, request, response, scope);
+                    if (response.isStreaming()) {
+                        if (result.failure != null) {
+                            log.error("Request cycle failed after the response was committed", result.failure);
+                        }
+                        response.finishStreaming(result.failure == null);
+                    } else {
+                        response.complete();
+                        if (cacheKey != null && result.cacheable && result.failure == null) {
+                            cache.put(cacheKey, response);
+                        }
+                        resumer.resume(result);
+                    }
+                } finally {
+                    // Store the pages the cycle detached, now the response is
+                    // on its way, and before this session's next request runs
+                    ThreadContext.setApplication(application);
+                    try {
+                        writeBehind.flush();
+                    } finally {
+                        ThreadContext.detach();
+                    }
+                }
+            }
+        }));
+        setState(new ConsumedLockedState());
+    }
+
+    static CycleResult runCycle(Application application, RequestAdapter request, ResponseAdapter response, ReentrantScope scope) {
+        try (QuietAutoCloseable closeScope = scope.enter(request, response)) {
+            ThreadContext.setApplication(application);
+            RequestCycle requestCycle = application.createRequestCycle(request, response);
+            ThreadContext.setRequestCycle(requestCycle);
+            boolean processed = requestCycle.processRequestAndDetach();
+            return new CycleResult(processed, response, null,
+                    Boolean.TRUE.equals(requestCycle.getMetaData(OutputCache.CACHEABLE)));
+        } catch (Exception | Error e) {
+            return new CycleResult(false, response, e);
+        } finally {
+            ThreadContext.detach();
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.mastfrog.acteur.wicket.ActeurSessionStore.SessionImpl;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hashed timer wheel which expires idle sessions.  Each session is placed in
+ * the slot for the tick its idle deadline falls in;  touching a session only
+ * updates its last-access timestamp, and sessions which were touched since
+ * they were scheduled are simply moved forward when their slot comes due.  So
+ * the work done per tick is proportional to the number of sessions whose
+ * deadline has passed, not to the number of live sessions.
+ * <p>
+ * Since slots are ordered by deadline, and deadline is last-access plus a
+ * constant, walking the wheel forward from the current tick also visits
+ * sessions in least-recently-used order (to the granularity of one tick),
+ * which is what trimming the store to a memory budget uses.
+ *
+ * @author Tim Boudreau
+ */
+final class SessionExpiry implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(SessionExpiry.class);
+    private final long tickMillis;
+    private final long idleMillis;
+    private final Set<SessionImpl>[] wheel;
+    private final Expirer expirer;
+    private final ScheduledExecutorService timer;
+    private final AtomicBoolean trimPending = new AtomicBoolean();
+    // The tick being processed by run(), or the last one it finished;  slots
+    // after it have not been visited yet
+    private volatile long lastTick;
+
+    @SuppressWarnings("unchecked")
+    SessionExpiry(final String name, long idleMillis, long tickMillis, Expirer expirer) {
+        if (idleMillis <= 0 || tickMillis <= 0) {
+            throw new IllegalArgumentException("Bad idle timeout " + idleMillis
+                    + " or tick " + tickMillis);
+        }
+        this.idleMillis = idleMillis;
+        this.tickMillis = tickMillis;
+        this.expirer = expirer;
+        // One slot per tick within the idle timeout, plus slack so a deadline
+        // can never wrap around onto the slot currently being processed
+        int slots = (int) Math.min(Integer.MAX_VALUE, (idleMillis / tickMillis) + 2);
+        wheel = new Set[slots];
+        for (int i = 0; i < slots; i++) {
+            wheel[i] = Collections.newSetFromMap(new ConcurrentHashMap<SessionImpl, Boolean>());
+        }
+        lastTick = System.currentTimeMillis() / tickMillis;
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        timer.scheduleWithFixedDelay(this, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    long idleMillis() {
+        return idleMillis;
+    }
+
+    boolean isExpired(SessionImpl session, long now) {
+        return session.lastAccess() + idleMillis <= now;
+    }
+
+    /**
+     * Add a session to the wheel, in the slot for the tick its deadline falls
+     * in.
+     *
+     * @param session A session
+     */
+    void schedule(SessionImpl session) {
+        // Never into a slot run() has already passed or is iterating, or it
+        // would sit there for a whole revolution of the wheel
+        long deadlineTick = Math.max((session.lastAccess() + idleMillis) / tickMillis, lastTick + 1);
+        wheel[(int) (deadlineTick % wheel.length)].add(session);
+    }
+
+    /**
+     * Asynchronously evict least-recently-used sessions until the expirer
+     * reports there is no longer any excess.  Multiple calls while a trim is
+     * pending are coalesced.
+     */
+    void trim() {
+        if (trimPending.compareAndSet(false, true)) {
+            try {
+                timer.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        trimPending.set(false);
+                        trimLeastRecentlyUsed();
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                // shutting down
+                trimPending.set(false);
+            }
+        }
+    }
+
+    private void trimLeastRecentlyUsed() {
+        // Runs on the timer thread, so lastTick is stable
+        int evicted = 0;
+        long freed = 0;
+        for (long tick = lastTick + 1; tick <= lastTick + wheel.length && expirer.excessBytes() > 0; tick++) {
+            Set<SessionImpl> slot = wheel[(int) (tick % wheel.length)];
+            for (Iterator<SessionImpl> it = slot.iterator(); it.hasNext() && expirer.excessBytes() > 0;) {
+                SessionImpl session = it.next();
+                if (session.isInvalid()) {
+                    it.remove();
+                    continue;
+                }
+                if (session.isPassivated()) {
+                    // Already off the heap, but still needs to expire
+                    continue;
+                }
+                long deadlineTick = (session.lastAccess() + idleMillis) / tickMillis;
+                if (deadlineTick > tick) {
+                    // Touched since it was scheduled - not really this old
+                    it.remove();
+                    schedule(session);
+                    continue;
+                }
+                // Evicted sessions are left in their slot;  if they were
+                // expired they are invalid and will be skipped when it
+                // comes due
+                try {
+                    freed += expirer.evict(session);
+                    evicted++;
+                } catch (Exception e) {
+                    log.error("Exception evicting session " + session.id(), e);
+                }
+            }
+        }
+        if (evicted > 0) {
+            log.info("Evicted {} least recently used sessions to free ~{} bytes", evicted, freed);
+        }
+    }
+
+    void shutdown() {
+        timer.shutdownNow();
+        for (Set<SessionImpl> slot : wheel) {
+            slot.clear();
+        }
+    }
+
+    @Override
+    public void run() {
+        long now = System.currentTimeMillis();
+        long currentTick = now / tickMillis;
+        int expired = 0;
+        // If the timer was starved for longer than a full revolution, every
+        // slot is due; there is no point in visiting any of them twice
+        long firstTick = Math.max(lastTick + 1, currentTick - wheel.length + 1);
+        for (long tick = firstTick; tick <= currentTick; tick++) {
+            lastTick = tick;
+            Set<SessionImpl> slot = wheel[(int) (tick % wheel.length)];
+            for (Iterator<SessionImpl> it = slot.iterator(); it.hasNext();) {
+                SessionImpl session = it.next();
+                it.remove();
+                if (session.isInvalid()) {
+                    continue;
+                }
+                if (isExpired(session, now)) {
+                    try {
+                        expirer.expire(session);
+                        expired++;
+                    } catch (Exception e) {
+                        log.error("Exception expiring session " + session.id(), e);
+                    }
+                } else {
+                    // Touched since it was scheduled - move it to the slot for
+                    // its real deadline
+                    schedule(session);
+                }
+            }
+        }
+        lastTick = currentTick;
+        if (expired > 0) {
+            log.debug("Expired {} idle sessions", expired);
+        }
+    }
+
+    /**
+     * Callback which actually removes an expired session.
+     */
+    interface Expirer {
+
+        /**
+         * Remove a session whose idle timeout has passed.
+         *
+         * @param session The session
+         */
+        void expire(SessionImpl session);
+
+        /**
+         * Remove a session to reclaim memory.
+         *
+         * @param session The session
+         * @return The estimated number of bytes freed
+         */
+        long evict(SessionImpl session);
+
+        /**
+         * The estimated number of bytes that need to be freed to get back
+         * under budget.
+         *
+         * @return A number of bytes, zero or negative if there is nothing to
+         * do
+         */
+        long excessBytes();
+    }
+}
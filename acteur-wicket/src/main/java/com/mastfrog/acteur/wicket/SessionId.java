@@ -23,52 +23,128 @@
  */
 package com.mastfrog.acteur.wicket;
 
-import com.mastfrog.util.GUIDFactory;
 import java.io.Serializable;
-import java.util.concurrent.atomic.AtomicLong;
+import java.security.SecureRandom;
+import java.util.Arrays;
 
 /**
- * The ID of the current session, as set in the jsessionid cookie.  The
- * value of its toString() method returns the ID value.  The EnsureSessionId
- * acteur guarantees that the cookie is set and any object created with Guice
- * can have this value injected.
+ * The ID of the current session, as set in the jsessionid cookie - 128
+ * random bits, held as two longs so hashing and comparing them allocates
+ * nothing, and written as 22 URL-safe base 64 characters.  The value of its
+ * toString() method returns the ID value.  Immutable, so it is safe as a
+ * map key;  a request which may not have a session yet gets one through
+ * its LazySessionId.
  *
  * @author Tim Boudreau
  */
 class SessionId implements Serializable {
 
-    private static final AtomicLong ids = new AtomicLong(Long.MIN_VALUE);
-    private final String id;
-    private static final long LOAD_TIME = System.currentTimeMillis();
-
     /**
-     * Create a session id with a known value
-     * @param id The ID
+     * The length of the string form of a session id.
      */
-    public SessionId(String id) {
-        this.id = id;
+    static final int LENGTH = 22;
+    private static final char[] ALPHABET
+            = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+    private static final byte[] VALUES = new byte[128];
+    // SecureRandom synchronizes internally, so give each thread its own
+    private static final ThreadLocal<SecureRandom> random = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            return new SecureRandom();
+        }
+    };
+
+    static {
+        Arrays.fill(VALUES, (byte) -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            VALUES[ALPHABET[i]] = (byte) i;
+        }
+    }
+    private final long high;
+    private final long low;
+    private transient volatile String string;
+
+    private SessionId(long high, long low) {
+        this.high = high;
+        this.low = low;
     }
 
     /**
-     * Create a new session id
+     * Create a new, random session id
      */
     public SessionId() {
-        String rnd = GUIDFactory.get().newGUID(2, 5);
-        String inc = Long.toString(ids.getAndIncrement(), 36);
-        String dt = Long.toString(System.currentTimeMillis(), 36);
-        String lt = Long.toString(LOAD_TIME, 36);
-        this.id = rnd + ':' + inc + ':' + dt + ':' + lt;
+        SecureRandom rnd = random.get();
+        this.high = rnd.nextLong();
+        this.low = rnd.nextLong();
+    }
+
+    /**
+     * Parse the string form of a session id, as found in a cookie.
+     *
+     * @param value The characters
+     * @return A session id, or null if the value is not a well-formed one
+     */
+    static SessionId parse(CharSequence value) {
+        if (value == null || value.length() != LENGTH) {
+            return null;
+        }
+        for (int i = 0; i < LENGTH; i++) {
+            char c = value.charAt(i);
+            if (c >= VALUES.length || VALUES[c] < 0) {
+                return null;
+            }
+        }
+        // The first character of each half may only carry 4 bits
+        if (VALUES[value.charAt(0)] > 0xF || VALUES[value.charAt(LENGTH / 2)] > 0xF) {
+            return null;
+        }
+        return new SessionId(decode(value, 0), decode(value, LENGTH / 2));
     }
 
+    @Override
     public boolean equals(Object o) {
-        return o == this ? true : o instanceof SessionId && o.toString().equals(toString());
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof SessionId)) {
+            return false;
+        }
+        SessionId other = (SessionId) o;
+        return other.high == high && other.low == low;
     }
 
+    @Override
     public int hashCode() {
-        return id.hashCode();
+        // The bits are random, so folding them is as good as any hash
+        long h = high ^ low;
+        return (int) (h ^ (h >>> 32));
     }
 
+    @Override
     public String toString() {
-        return id;
+        String result = string;
+        if (result == null) {
+            char[] chars = new char[LENGTH];
+            encode(high, chars, 0);
+            encode(low, chars, LENGTH / 2);
+            string = result = new String(chars);
+        }
+        return result;
+    }
+
+    // Each long is 11 characters;  the first carries its top 4 bits
+    private static void encode(long value, char[] into, int offset) {
+        for (int i = offset + LENGTH / 2 - 1; i >= offset; i--) {
+            into[i] = ALPHABET[(int) (value & 0x3F)];
+            value >>>= 6;
+        }
+    }
+
+    private static long decode(CharSequence value, int offset) {
+        long result = 0;
+        for (int i = offset; i < offset + LENGTH / 2; i++) {
+            result = (result << 6) | VALUES[value.charAt(i)];
+        }
+        return result;
     }
 }
@@ -0,0 +1,295 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the attributes of idle sessions to append-only segment files on
+ * disk, and reads them back.  Writes happen on a single writer thread and
+ * reads on a small pool, so neither happens on a request thread.  A segment
+ * is deleted once no passivated session refers to it anymore.
+ *
+ * @author Tim Boudreau
+ */
+final class SessionPassivator {
+
+    private static final Logger log = LoggerFactory.getLogger(SessionPassivator.class);
+    private static final long MAX_SEGMENT_SIZE = 64L * 1024L * 1024L;
+    private final File dir;
+    private final ClassLoader loader;
+    private final ExecutorService writer;
+    private final ExecutorService readers;
+    private final ExecutorService unbinder;
+    private final AtomicInteger generations = new AtomicInteger();
+    // only touched on the writer thread
+    private Segment current;
+
+    SessionPassivator(File dir, ClassLoader loader) throws IOException {
+        this.dir = dir;
+        this.loader = loader;
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        writer = Executors.newSingleThreadExecutor(new Threads("wicket-session-writer"));
+        readers = Executors.newFixedThreadPool(2, new Threads("wicket-session-reader"));
+        unbinder = Executors.newSingleThreadExecutor(new Threads("wicket-session-unbind"));
+    }
+
+    byte[] serialize(Map<String, Serializable> attributes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(new HashMap<>(attributes));
+        }
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    Map<String, Serializable> deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new LoaderObjectInputStream(new ByteArrayInputStream(bytes), loader)) {
+            return (Map<String, Serializable>) in.readObject();
+        }
+    }
+
+    /**
+     * Append serialized session data to the current segment on the writer
+     * thread.
+     *
+     * @param bytes The bytes
+     * @param callback Called on the writer thread with the location written
+     * to, or null if writing failed
+     */
+    void write(final byte[] bytes, final Written callback) {
+        writer.submit(new Runnable() {
+            @Override
+            public void run() {
+                Record record = null;
+                try {
+                    if (current == null || current.size + bytes.length > MAX_SEGMENT_SIZE) {
+                        if (current != null) {
+                            current.retire();
+                        }
+                        current = new Segment(new File(dir, "sessions-" + generations.getAndIncrement() + ".data"));
+                    }
+                    record = current.append(bytes);
+                } catch (IOException ex) {
+                    log.error("Could not passivate session", ex);
+                }
+                callback.written(record);
+            }
+        });
+    }
+
+    /**
+     * Read back and deserialize a record on the reader pool.
+     *
+     * @param record A record
+     * @return A future for the session's attributes
+     */
+    Future<Map<String, Serializable>> read(final Record record) {
+        return readers.submit(new Callable<Map<String, Serializable>>() {
+            @Override
+            public Map<String, Serializable> call() throws Exception {
+                return deserialize(record.segment.read(record.offset, record.length));
+            }
+        });
+    }
+
+    /**
+     * Run work which waits on a read - notifying listeners that a passivated
+     * session has expired - so it blocks neither the expiry timer nor the
+     * reader pool.
+     *
+     * @param run The work
+     * @throws RejectedExecutionException if shutting down
+     */
+    void unbind(Runnable run) {
+        unbinder.execute(run);
+    }
+
+    /**
+     * Note that a record is no longer needed;  its segment is deleted when
+     * it has no more live records and is no longer being written to.
+     *
+     * @param record A record
+     */
+    void release(Record record) {
+        record.segment.release();
+    }
+
+    void shutdown() {
+        writer.shutdownNow();
+        readers.shutdownNow();
+        unbinder.shutdownNow();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.getName().startsWith("sessions-") && !f.delete()) {
+                    f.deleteOnExit();
+                }
+            }
+        }
+    }
+
+    interface Written {
+
+        void written(Record record);
+    }
+
+    /**
+     * Location of one passivated session's data.
+     */
+    static final class Record {
+
+        final Segment segment;
+        final long offset;
+        final int length;
+
+        Record(Segment segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    static final class Segment {
+
+        private final File file;
+        private final FileChannel channel;
+        private final AtomicInteger live = new AtomicInteger();
+        private volatile boolean retired;
+        long size;
+
+        Segment(File file) throws IOException {
+            this.file = file;
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            channel.truncate(0);
+        }
+
+        Record append(byte[] bytes) throws IOException {
+            long offset = size;
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            while (buf.hasRemaining()) {
+                channel.write(buf, offset + buf.position());
+            }
+            size += bytes.length;
+            live.incrementAndGet();
+            return new Record(this, offset, bytes.length);
+        }
+
+        byte[] read(long offset, int length) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(length);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, offset + buf.position()) < 0) {
+                    throw new IOException("Truncated session record in " + file);
+                }
+            }
+            return buf.array();
+        }
+
+        void retire() {
+            retired = true;
+            if (live.get() == 0) {
+                delete();
+            }
+        }
+
+        void release() {
+            if (live.decrementAndGet() == 0 && retired) {
+                delete();
+            }
+        }
+
+        private synchronized void delete() {
+            if (channel.isOpen()) {
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    log.warn("Exception closing " + file, ex);
+                }
+                if (!file.delete()) {
+                    file.deleteOnExit();
+                }
+            }
+        }
+    }
+
+    private static final class LoaderObjectInputStream extends ObjectInputStream {
+
+        private final ClassLoader loader;
+
+        LoaderObjectInputStream(InputStream in, ClassLoader loader) throws IOException {
+            super(in);
+            this.loader = loader;
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            try {
+                return Class.forName(desc.getName(), false, loader);
+            } catch (ClassNotFoundException ex) {
+                return super.resolveClass(desc);
+            }
+        }
+    }
+
+    private static final class Threads implements ThreadFactory {
+
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        Threads(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
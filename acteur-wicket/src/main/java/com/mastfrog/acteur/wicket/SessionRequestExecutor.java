@@ -0,0 +1,193 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.google.inject.Singleton;
+import com.mastfrog.giulius.ShutdownHookRegistry;
+import com.mastfrog.settings.Settings;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs Wicket request cycles so that requests for any one session run one at
+ * a time, in the order they arrived, while requests for different sessions run
+ * in parallel.  Each session with work pending gets a queue which is drained
+ * by at most one pool thread at a time, so a browser firing a burst of Ajax
+ * calls occupies one thread, not one thread per call blocked on Wicket's page
+ * locks.  There is no lock shared between sessions.
+ * <p>
+ * If <code>wicket.virtual.threads</code> is set and the JVM supports them,
+ * each queue is drained on a virtual thread instead of a fixed pool thread,
+ * so a render blocked on a database costs no platform thread and the
+ * number of slow renders in progress is not bounded by the pool size.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class SessionRequestExecutor {
+
+    private static final Logger log = LoggerFactory.getLogger(SessionRequestExecutor.class);
+    private final ConcurrentMap<SessionId, SerialQueue> queues = new ConcurrentHashMap<>();
+    private final ExecutorService pool;
+
+    @Inject
+    SessionRequestExecutor(Settings settings, ShutdownHookRegistry reg) {
+        this(newExecutor(settings));
+        reg.add(new Runnable() {
+            @Override
+            public void run() {
+                pool.shutdownNow();
+            }
+        });
+    }
+
+    SessionRequestExecutor(ExecutorService pool) {
+        this.pool = pool;
+    }
+
+    private static ExecutorService newExecutor(Settings settings) {
+        ExecutorService virtual = null;
+        if (settings.getBoolean(WicketActeurModule.SETTINGS_KEY_WICKET_VIRTUAL_THREADS, false)) {
+            virtual = newVirtualThreadExecutor();
+        }
+        return virtual != null ? virtual : newPlatformThreadPool(settings);
+    }
+
+    static ExecutorService newVirtualThreadExecutor() {
+        // Looked up reflectively so the library still builds and runs on
+        // JVMs that predate virtual threads
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            log.warn(WicketActeurModule.SETTINGS_KEY_WICKET_VIRTUAL_THREADS
+                    + " is set but this JVM does not support virtual threads; "
+                    + "using a fixed thread pool", e);
+            return null;
+        }
+    }
+
+    private static ExecutorService newPlatformThreadPool(Settings settings) {
+        int threads = settings.getInt(WicketActeurModule.SETTINGS_KEY_WICKET_THREADS,
+                Runtime.getRuntime().availableProcessors() * 4);
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "wicket-request-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Run some work after any work already submitted for the same session.
+     *
+     * @param session The session id, or null if the request has none, in
+     * which case the work is not ordered with respect to anything
+     * @param work The work
+     */
+    void submit(SessionId session, Runnable work) {
+        if (session == null) {
+            pool.execute(work);
+            return;
+        }
+        for (;;) {
+            SerialQueue queue = queues.get(session);
+            if (queue == null) {
+                SerialQueue nue = new SerialQueue(session);
+                queue = queues.putIfAbsent(session, nue);
+                if (queue == null) {
+                    queue = nue;
+                }
+            }
+            if (queue.offer(work)) {
+                return;
+            }
+            // It drained and retired itself between get() and offer()
+            queues.remove(session, queue);
+        }
+    }
+
+    private final class SerialQueue implements Runnable {
+
+        private final SessionId session;
+        // guarded by this
+        private final Queue<Runnable> work = new ArrayDeque<>(4);
+        private boolean running;
+        private boolean retired;
+
+        SerialQueue(SessionId session) {
+            this.session = session;
+        }
+
+        synchronized boolean offer(Runnable r) {
+            if (retired) {
+                return false;
+            }
+            work.add(r);
+            if (!running) {
+                running = true;
+                pool.execute(this);
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+            for (;;) {
+                Runnable next;
+                synchronized (this) {
+                    next = work.poll();
+                    if (next == null) {
+                        // Nothing left - retire so the map does not hold a
+                        // queue for every session that ever made a request
+                        running = false;
+                        retired = true;
+                        queues.remove(session, this);
+                        return;
+                    }
+                }
+                try {
+                    next.run();
+                } catch (Exception e) {
+                    log.error("Exception in request for session " + session, e);
+                }
+            }
+        }
+    }
+}
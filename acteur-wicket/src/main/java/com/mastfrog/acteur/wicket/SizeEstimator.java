@@ -0,0 +1,68 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * Cheap-enough estimates of how much heap session attributes retain, by
+ * counting the bytes they serialize to.  Serialized size is not retained size,
+ * but it is proportional to it for the object graphs Wicket keeps in sessions,
+ * which is all a memory budget needs.
+ *
+ * @author Tim Boudreau
+ */
+final class SizeEstimator {
+
+    /**
+     * Rough fixed overhead of a session - the object, its map and id.
+     */
+    static final int SESSION_OVERHEAD = 512;
+    /**
+     * Used for values which cannot be serialized.
+     */
+    static final int UNKNOWN_SIZE = 4096;
+
+    private SizeEstimator() {
+        throw new AssertionError();
+    }
+
+    static int estimate(String name, Serializable value) {
+        int nameSize = 40 + (name.length() * 2);
+        if (value == null) {
+            return nameSize;
+        }
+        CountingOutputStream counter = new CountingOutputStream(ByteStreams.nullOutputStream());
+        try (ObjectOutputStream out = new ObjectOutputStream(counter)) {
+            out.writeObject(value);
+        } catch (IOException | RuntimeException ex) {
+            return nameSize + UNKNOWN_SIZE;
+        }
+        return nameSize + (int) Math.min(Integer.MAX_VALUE - nameSize, counter.getCount());
+    }
+}
@@ -33,49 +33,48 @@ import static com.mastfrog.acteur.headers.Method.HEAD;
 import static com.mastfrog.acteur.headers.Method.POST;
 import static com.mastfrog.acteur.headers.Method.PUT;
 import com.mastfrog.acteur.preconditions.Methods;
-import com.mastfrog.acteur.server.PathFactory;
-import com.mastfrog.acteur.wicket.adapters.RequestAdapter;
-import com.mastfrog.acteur.wicket.adapters.ResponseAdapter;
-import com.mastfrog.guicy.scope.ReentrantScope;
-import com.mastfrog.settings.Settings;
-import com.mastfrog.util.thread.QuietAutoCloseable;
-import io.netty.buffer.ByteBufAllocator;
+import com.mastfrog.util.Exceptions;
+import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import static io.netty.handler.codec.http.HttpHeaders.Names.IF_MODIFIED_SINCE;
+import static io.netty.handler.codec.http.HttpHeaders.Names.IF_NONE_MATCH;
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_MODIFIED;
 import static io.netty.handler.codec.http.HttpResponseStatus.OK;
-import java.nio.charset.Charset;
 import javax.inject.Inject;
-import org.apache.wicket.Application;
-import org.apache.wicket.ThreadContext;
 import org.apache.wicket.request.Request;
 import org.apache.wicket.request.Response;
-import org.apache.wicket.request.cycle.RequestCycle;
 
 /**
+ * Sends the response produced by the request cycle RunRequestCycle ran.
  *
  * @author Tim Boudreau
  */
-@HttpCall(order = Integer.MAX_VALUE, scopeTypes = {SessionId.class, Request.class, Response.class, com.mastfrog.acteur.Response.class})
+@HttpCall(order = Integer.MAX_VALUE, scopeTypes = {LazySessionId.class, Request.class, Response.class, com.mastfrog.acteur.Response.class, CycleResult.class})
 @Methods({GET, PUT, POST, DELETE, HEAD})
-@Precursors(EnsureSessionId.class)
+@Precursors({EnsureSessionId.class, RunRequestCycle.class})
 final class WicketActeur extends Acteur {
 
     @Inject
-    WicketActeur(HttpEvent evt, Application application, PathFactory pf, Charset charset, WicketConfig config, ByteBufAllocator alloc, Settings settings, ReentrantScope scope) {
-        RequestAdapter request = new RequestAdapter(evt, config.locale(), charset, settings);
-        ResponseAdapter response = new ResponseAdapter(response(), charset, alloc, pf);
-        try (QuietAutoCloseable closeScope = scope.enter(request, response, response())) {
-            ThreadContext.setApplication(application);
-            RequestCycle requestCycle = application.createRequestCycle(request, response);
-            ThreadContext.setRequestCycle(requestCycle);
-            boolean processed = requestCycle.processRequestAndDetach();
-            if (!processed) {
-                reject();
+    WicketActeur(CycleResult result, HttpEvent evt) {
+        if (result.failure != null) {
+            result.response.discard();
+            Exceptions.chuck(result.failure);
+        }
+        if (!result.processed) {
+            result.response.discard();
+            reject();
+        } else if ((evt.getMethod() == GET || evt.getMethod() == HEAD)
+                && result.response.isNotModified(evt.getHeader(IF_NONE_MATCH), evt.getHeader(IF_MODIFIED_SINCE))) {
+            result.response.applyNotModified(response());
+            reply(NOT_MODIFIED);
+        } else {
+            if (evt.getMethod() == HEAD) {
+                result.response.applyHead(response());
             } else {
-                HttpResponseStatus status = response.status();
-                reply(status == null ? OK : status);
+                result.response.apply(response(), HttpHeaders.isKeepAlive(evt.getRequest()));
             }
-        } finally {
-            ThreadContext.detach();
+            HttpResponseStatus status = result.response.status();
+            reply(status == null ? OK : status);
         }
     }
 }
@@ -27,6 +27,8 @@ import com.google.inject.AbstractModule;
 import com.google.inject.Provider;
 import com.google.inject.Scopes;
 import com.google.inject.Singleton;
+import com.mastfrog.acteur.wicket.adapters.Compression;
+import com.mastfrog.acteur.wicket.adapters.MimeTypes;
 import com.mastfrog.guicy.scope.ReentrantScope;
 import java.util.Locale;
 import javax.servlet.FilterConfig;
@@ -59,6 +61,207 @@ public class WicketActeurModule extends AbstractModule {
     public static final String SETTINGS_KEY_SESSION_COOKIE_MAX_AGE_HOURS = "session.duration.hours";
     /** The default value for session duration in hours, if not set in settings */
     public static final long DEFAULT_SESSION_COOKIE_MAX_AGE_HOURS = 48;
+    /**
+     * Minutes a session may go untouched before it is expired and its
+     * unbound listeners are notified.  The default is the maximum session
+     * age, one day.
+     */
+    public static final String SETTINGS_KEY_SESSION_IDLE_TIMEOUT_MINUTES = "session.idle.timeout.minutes";
+    /** The default idle timeout in minutes, if not set in settings */
+    public static final long DEFAULT_SESSION_IDLE_TIMEOUT_MINUTES = EnsureSessionId.MAX_SESSION_AGE.getStandardMinutes();
+    /**
+     * Granularity, in seconds, of the timer which expires idle sessions -
+     * sessions are expired in batches at most this long after their idle
+     * timeout has passed.  The default is 30.
+     */
+    public static final String SETTINGS_KEY_SESSION_EXPIRY_TICK_SECONDS = "session.expiry.tick.seconds";
+    /** The default expiry tick in seconds, if not set in settings */
+    public static final long DEFAULT_SESSION_EXPIRY_TICK_SECONDS = 30;
+    /**
+     * Megabytes of heap sessions may retain, estimated by sampling the
+     * serialized size of session attributes as they are set.  When the
+     * estimate goes over budget, the least recently used sessions are
+     * evicted until it is back under 90% of it.  The default, 0, means
+     * unbounded.
+     */
+    public static final String SETTINGS_KEY_SESSION_HEAP_BUDGET_MB = "session.heap.budget.mb";
+    /**
+     * Minutes a session may go untouched before its attributes are written
+     * to disk and dropped from memory, to be read back if a request for it
+     * arrives.  If set, sessions evicted to stay under the heap budget are
+     * passivated rather than discarded.  The default, 0, disables
+     * passivation.
+     */
+    public static final String SETTINGS_KEY_SESSION_PASSIVATE_AFTER_MINUTES = "session.passivate.after.minutes";
+    /**
+     * Directory passivated sessions are written to.  The default is a new
+     * directory under the system temporary directory.
+     */
+    public static final String SETTINGS_KEY_SESSION_PASSIVATION_DIR = "session.passivation.dir";
+    /**
+     * If true (the default), old page versions are stored in memory-mapped
+     * segment files rather than Wicket's default disk data store - unless
+     * the application installed its own page manager provider.
+     */
+    public static final String SETTINGS_KEY_PAGE_STORE_MAPPED = "page.store.mapped";
+    /**
+     * Directory the memory-mapped page store keeps its segment files in.  The
+     * default is under the servlet context's temporary directory.
+     */
+    public static final String SETTINGS_KEY_PAGE_STORE_DIR = "page.store.dir";
+    /**
+     * Megabytes of page versions the memory-mapped page store may hold
+     * before it starts discarding the oldest.  The default is 256.
+     */
+    public static final String SETTINGS_KEY_PAGE_STORE_MAX_MB = "page.store.max.mb";
+    /** The default page store size in megabytes, if not set in settings */
+    public static final long DEFAULT_PAGE_STORE_MAX_MB = 256;
+    /**
+     * Number of detached pages which may wait to be serialized and stored
+     * until after their response has been sent;  once that many are waiting,
+     * pages are stored before the response goes.  Set to 0 to always store
+     * them first.  The default is 100.
+     */
+    public static final String SETTINGS_KEY_PAGE_STORE_WRITE_BEHIND_CAPACITY = "page.store.write.behind.capacity";
+    /** The default number of pages waiting to be stored, if not set in settings */
+    public static final int DEFAULT_PAGE_STORE_WRITE_BEHIND_CAPACITY = 100;
+    /**
+     * Number of threads Wicket request cycles run on.  Requests for one
+     * session run one at a time, so this is also the number of sessions
+     * which can be rendering pages at once.  The default is four per
+     * processor.
+     */
+    public static final String SETTINGS_KEY_WICKET_THREADS = "wicket.threads";
+    /**
+     * If true, run Wicket request cycles on virtual threads rather than a
+     * fixed pool of <code>wicket.threads</code> threads, so renders which
+     * block on I/O do not each hold a platform thread.  Requests for one
+     * session are still run one at a time.  Ignored with a warning on JVMs
+     * without virtual threads.  The default is false.
+     */
+    public static final String SETTINGS_KEY_WICKET_VIRTUAL_THREADS = "wicket.virtual.threads";
+    /**
+     * Size in kilobytes at which a response still being rendered starts to
+     * be streamed:  its headers are sent, and its body goes out in chunks
+     * of this size as it is written, chunked, pausing while the client is
+     * slow to read.  Smaller responses are sent whole, with a
+     * Content-Length.  Set to 0 to always buffer the entire response.
+     */
+    public static final String SETTINGS_KEY_STREAMING_THRESHOLD_KB = "wicket.streaming.threshold.kb";
+    /** The default streaming threshold, if not set in settings */
+    public static final int DEFAULT_STREAMING_THRESHOLD_KB = 64;
+    /**
+     * If true (the default), compress responses with gzip or deflate when the
+     * client's Accept-Encoding allows it, as they are written.
+     */
+    public static final String SETTINGS_KEY_COMPRESSION = "wicket.compression";
+    /**
+     * Responses smaller than this many bytes are not compressed.
+     */
+    public static final String SETTINGS_KEY_COMPRESSION_MIN_BYTES = "wicket.compression.min.bytes";
+    /** The default minimum size to compress, if not set in settings */
+    public static final int DEFAULT_COMPRESSION_MIN_BYTES = 1024;
+    /**
+     * Comma-delimited list of MIME types to compress.
+     */
+    public static final String SETTINGS_KEY_COMPRESSION_TYPES = "wicket.compression.types";
+    /** The default MIME types to compress, if not set in settings */
+    public static final String DEFAULT_COMPRESSION_TYPES = "text/html,text/css,text/plain,text/xml,"
+            + "text/javascript,application/javascript,application/x-javascript,application/json,"
+            + "application/xml,application/xhtml+xml,image/svg+xml";
+    /**
+     * The zlib compression level, 1 (fastest) to 9 (smallest).
+     */
+    public static final String SETTINGS_KEY_COMPRESSION_LEVEL = "wicket.compression.level";
+    /** The default compression level, if not set in settings */
+    public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+    /**
+     * If true, cache the output of stateless, bookmarkable pages requested
+     * by visitors without a session, and answer repeat requests from the
+     * cache without running Wicket.  The default is false.
+     */
+    public static final String SETTINGS_KEY_OUTPUT_CACHE = "wicket.output.cache";
+    /**
+     * Seconds a cached page is served for before it is rendered again.
+     */
+    public static final String SETTINGS_KEY_OUTPUT_CACHE_TTL_SECONDS = "wicket.output.cache.ttl.seconds";
+    /** The default output cache time-to-live, if not set in settings */
+    public static final long DEFAULT_OUTPUT_CACHE_TTL_SECONDS = 60;
+    /**
+     * Megabytes of cached output to keep before evicting the least recently
+     * used pages.
+     */
+    public static final String SETTINGS_KEY_OUTPUT_CACHE_MAX_MB = "wicket.output.cache.max.mb";
+    /** The default output cache size, if not set in settings */
+    public static final long DEFAULT_OUTPUT_CACHE_MAX_MB = 32;
+    /**
+     * If true, serve Wicket package resources - <code>wicket/resource/...</code>
+     * URLs - from memory without a session or request cycle, whenever that
+     * gives the same result Wicket would.  The default is true, except in
+     * development mode, since cached resources are not reloaded when edited.
+     */
+    public static final String SETTINGS_KEY_RESOURCE_FAST_PATH = "wicket.resource.fast.path";
+    /**
+     * Package resources larger than this many kilobytes are served from disk
+     * rather than held in memory.
+     */
+    public static final String SETTINGS_KEY_RESOURCE_CACHE_MAX_FILE_KB = "wicket.resource.cache.max.file.kb";
+    /** The default largest package resource to cache, if not set in settings */
+    public static final long DEFAULT_RESOURCE_CACHE_MAX_FILE_KB = 1024;
+    /**
+     * Megabytes of package resources to keep in memory before evicting the
+     * least recently used.
+     */
+    public static final String SETTINGS_KEY_RESOURCE_CACHE_MAX_MB = "wicket.resource.cache.max.mb";
+    /** The default package resource cache size, if not set in settings */
+    public static final long DEFAULT_RESOURCE_CACHE_MAX_MB = 64;
+    /**
+     * Max-age, in seconds, for package resources whose URL carries no
+     * version;  versioned URLs are cached by clients for a year.
+     */
+    public static final String SETTINGS_KEY_RESOURCE_MAX_AGE_SECONDS = "wicket.resource.max.age.seconds";
+    /** The default max-age for unversioned resources, if not set in settings */
+    public static final long DEFAULT_RESOURCE_MAX_AGE_SECONDS = 3600;
+    /**
+     * If true (the default), package resources too large to cache in memory
+     * are sent straight from disk with a FileRegion (sendfile), or a
+     * memory-mapped buffer if the pipeline compresses or encrypts;  resources
+     * inside JARs are extracted to disk once for this.  If false they are
+     * left to Wicket.
+     */
+    public static final String SETTINGS_KEY_RESOURCE_FILE_REGIONS = "wicket.resource.file.regions";
+    /**
+     * Directory large package resources are extracted to.  The default is
+     * under the servlet context's temporary directory.
+     */
+    public static final String SETTINGS_KEY_RESOURCE_FILE_DIR = "wicket.resource.file.dir";
+    /**
+     * Extra file extension to MIME type mappings, added to or overriding the
+     * built in ones, as comma-separated <code>extension=type</code> pairs,
+     * e.g. <code>webmanifest=application/manifest+json,mkv=video/x-matroska</code>.
+     */
+    public static final String SETTINGS_KEY_MIME_TYPES = "wicket.mime.types";
+    /**
+     * If true, initialize the application while the injector is created,
+     * and load component classes, parse their markup and locate their
+     * package resources in parallel, so the first request for each page does
+     * not pay for it.  The default is false.
+     */
+    public static final String SETTINGS_KEY_PREWARM = "wicket.prewarm";
+    /**
+     * File to record, at shutdown, which components' markup was in use, with
+     * a checksum of each markup file;  on the next start that markup is
+     * prewarmed without scanning for it.  Unset by default.
+     */
+    public static final String SETTINGS_KEY_MARKUP_SNAPSHOT = "wicket.markup.snapshot";
+    /**
+     * If true, and the application runs in deployment mode with Wicket's
+     * usual filename-versioning caching strategy, compute the content hash
+     * versions of the package resources under the application's package in
+     * parallel at startup, so no request has to hash a resource to render
+     * its URL.  The default is false.
+     */
+    public static final String SETTINGS_KEY_RESOURCE_VERSIONS_PRECOMPUTE = "wicket.resource.versions.precompute";
 
     /**
      * Create a Wicket Acteur Module with an explicitly defined config
@@ -89,6 +292,9 @@ public class WicketActeurModule extends AbstractModule {
         bind(WicketFilter.class).to(FakeWicketFilter.class).in(Scopes.SINGLETON);
         bind(FilterConfig.class).to(FakeFilterConfig.class).in(Scopes.SINGLETON);
         bind(ISessionStore.class).to(ActeurSessionStore.class).in(Scopes.SINGLETON);
+        bind(Compression.class).toProvider(CompressionProvider.class);
+        bind(MimeTypes.class).toProvider(MimeTypesProvider.class);
+        bind(MarkupPrewarmer.class).asEagerSingleton();
         // Make sure a PageParameters is always available, for instantiating
         // pages - will be overrlaid with the page parameters in created from
         // the URL by the GuicePageFactory if there are real parameters to use
@@ -24,18 +24,31 @@
 
 package com.mastfrog.acteur.wicket;
 
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_PAGE_STORE_MAPPED;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_RESOURCE_VERSIONS_PRECOMPUTE;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_WICKET_THREADS;
+import com.mastfrog.settings.Settings;
+import java.io.IOException;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import javax.inject.Inject;
+import javax.inject.Provider;
 import javax.servlet.ServletContext;
 import org.apache.wicket.Application;
+import org.apache.wicket.DefaultPageManagerProvider;
 import org.apache.wicket.IPageFactory;
 import org.apache.wicket.ThreadContext;
+import org.apache.wicket.markup.MarkupFactory;
 import org.apache.wicket.protocol.http.WebApplication;
 import org.apache.wicket.protocol.http.WicketFilter;
+import org.apache.wicket.request.resource.caching.FilenameWithVersionResourceCachingStrategy;
+import org.apache.wicket.request.resource.caching.IResourceCachingStrategy;
+import org.apache.wicket.request.resource.caching.version.IResourceVersion;
 import org.apache.wicket.session.ISessionStore;
 import org.apache.wicket.util.IProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Class which performs pre-initialization on the application - does the
@@ -44,17 +57,28 @@ import org.apache.wicket.util.IProvider;
  * @author Tim Boudreau
  */
 public class WicketApplicationInitializer implements IProvider<ISessionStore> {
+    private static final Logger log = LoggerFactory.getLogger(WicketApplicationInitializer.class);
     private final IPageFactory factory;
     private final ServletContext ctx;
     private final WicketFilter filter;
     private final ISessionStore store;
+    private final Settings settings;
+    private final Provider<MappedDataStore> dataStore;
+    private final OutputCache outputCache;
+    private final MarkupSnapshot snapshot;
+    private final PageWriteBehind writeBehind;
     
     @Inject
-    WicketApplicationInitializer(IPageFactory factory, ServletContext ctx, WicketFilter filter, ISessionStore store) {
+    WicketApplicationInitializer(IPageFactory factory, ServletContext ctx, WicketFilter filter, ISessionStore store, Settings settings, Provider<MappedDataStore> dataStore, OutputCache outputCache, MarkupSnapshot snapshot, PageWriteBehind writeBehind) {
         this.factory = factory;
         this.ctx = ctx;
         this.filter = filter;
         this.store = store;
+        this.settings = settings;
+        this.dataStore = dataStore;
+        this.outputCache = outputCache;
+        this.snapshot = snapshot;
+        this.writeBehind = writeBehind;
     }
     
     protected void init(Application application) throws NoSuchFieldException, IllegalArgumentException, IllegalAccessException, NoSuchMethodException, InvocationTargetException {
@@ -66,6 +90,24 @@ public class WicketApplicationInitializer implements IProvider<ISessionStore> {
         application.setName(application.getClass().getName());
         application.initApplication();
         wa.setSessionStoreProvider(this);
+        // Replace the disk data store unless the application set up its own
+        // page manager in init()
+        if (settings.getBoolean(SETTINGS_KEY_PAGE_STORE_MAPPED, true)
+                && application.getPageManagerProvider().getClass() == DefaultPageManagerProvider.class) {
+            application.setPageManagerProvider(new ActeurPageManagerProvider(application, dataStore.get(), writeBehind));
+        }
+        if (outputCache.isEnabled()) {
+            application.getRequestCycleListeners().add(outputCache.listener());
+        }
+        // Record which markup gets loaded, unless the application has its
+        // own markup factory
+        if (snapshot.isEnabled() && application.getMarkupSettings().getMarkupFactory().getClass() == MarkupFactory.class) {
+            application.getMarkupSettings().setMarkupFactory(snapshot.markupFactory());
+        }
+        // Versions are content hashes only in deployment mode
+        if (settings.getBoolean(SETTINGS_KEY_RESOURCE_VERSIONS_PRECOMPUTE, false) && application.usesDeploymentConfig()) {
+            precomputeResourceVersions(application);
+        }
         Field field = Application.class.getDeclaredField("pageFactory");
         field.setAccessible(true);
         field.set(application, factory);
@@ -74,6 +116,27 @@ public class WicketApplicationInitializer implements IProvider<ISessionStore> {
         logStarted.invoke(application);
     }
 
+    private void precomputeResourceVersions(Application application) throws NoSuchFieldException, IllegalAccessException {
+        IResourceCachingStrategy strategy = application.getResourceSettings().getCachingStrategy();
+        // Leave any other kind of strategy the application set up alone
+        if (strategy.getClass() != FilenameWithVersionResourceCachingStrategy.class) {
+            return;
+        }
+        Field versionField = FilenameWithVersionResourceCachingStrategy.class.getDeclaredField("resourceVersion");
+        Field prefixField = FilenameWithVersionResourceCachingStrategy.class.getDeclaredField("versionPrefix");
+        versionField.setAccessible(true);
+        prefixField.setAccessible(true);
+        try {
+            IResourceVersion version = PrecomputedResourceVersion.create(application, application.getClass(),
+                    (IResourceVersion) versionField.get(strategy),
+                    settings.getInt(SETTINGS_KEY_WICKET_THREADS, Runtime.getRuntime().availableProcessors()));
+            application.getResourceSettings().setCachingStrategy(
+                    new FilenameWithVersionResourceCachingStrategy((String) prefixField.get(strategy), version));
+        } catch (IOException e) {
+            log.warn("Could not scan for resources to version", e);
+        }
+    }
+
     @Override
     public ISessionStore get() {
         return store;
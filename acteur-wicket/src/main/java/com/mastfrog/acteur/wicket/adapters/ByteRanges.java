@@ -0,0 +1,289 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket.adapters;
+
+import com.mastfrog.acteur.headers.Headers;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.LastHttpContent;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import org.joda.time.DateTime;
+
+/**
+ * Answers Range requests for a response whose body can be sliced - with a
+ * single 206 Partial Content for one range, or multipart/byteranges for
+ * several, writing only the requested bytes.
+ *
+ * @author Tim Boudreau
+ */
+final class ByteRanges {
+
+    // More than this and it is cheaper, and safer, to send the whole thing
+    private static final int MAX_RANGES = 16;
+    private static final String CONTENT_TYPE = "Content-Type";
+    private static final String CONTENT_RANGE = "Content-Range";
+
+    private ByteRanges() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Writes, without flushing, part of the body - as FileRegions or
+     * HttpContents, as many as it takes.
+     */
+    interface Slicer {
+
+        void write(Channel channel, long offset, long length) throws IOException;
+    }
+
+    /**
+     * Parse a Range header.
+     *
+     * @param header The header
+     * @param length The length of the full body
+     * @return The ranges, sorted and coalesced, as inclusive start and end
+     * offsets;  empty if none can be satisfied;  null if the header should be
+     * ignored and the full body sent
+     */
+    static List<long[]> parse(String header, long length) {
+        header = header.trim();
+        if (!header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        List<long[]> result = new ArrayList<>(2);
+        for (String spec : header.substring(6).split(",")) {
+            spec = spec.trim();
+            if (spec.isEmpty()) {
+                continue;
+            }
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long start;
+            long end;
+            try {
+                if (dash == 0) {
+                    long suffix = Long.parseLong(spec.substring(1).trim());
+                    if (suffix <= 0) {
+                        continue;
+                    }
+                    start = Math.max(0, length - suffix);
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash).trim());
+                    end = dash == spec.length() - 1 ? Long.MAX_VALUE
+                            : Long.parseLong(spec.substring(dash + 1).trim());
+                    if (start < 0 || end < start) {
+                        return null;
+                    }
+                    end = Math.min(end, length - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (start < length) {
+                result.add(new long[]{start, end});
+            }
+        }
+        if (result.size() > MAX_RANGES) {
+            return null;
+        }
+        Collections.sort(result, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return Long.compare(a[0], b[0]);
+            }
+        });
+        // Merge overlapping and adjacent ranges - forwards, so a range which
+        // swallows several later ones absorbs all of them
+        List<long[]> merged = new ArrayList<>(result.size());
+        for (long[] curr : result) {
+            long[] prev = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (prev != null && curr[0] <= prev[1] + 1) {
+                prev[1] = Math.max(prev[1], curr[1]);
+            } else {
+                merged.add(curr);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Check If-Range - a range may only be sent if the client's copy is
+     * still current, judged by strong ETag or exact Last-Modified date.
+     */
+    static boolean ifRangeMatches(List<ResponseAdapter.Header<?>> headers, String ifRange) {
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("W/")) {
+            // Weak tags never match for If-Range
+            return false;
+        }
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(Validators.headerValue(headers, Validators.ETAG));
+        }
+        String lastModified = Validators.headerValue(headers, Validators.LAST_MODIFIED);
+        if (lastModified == null) {
+            return false;
+        }
+        try {
+            DateTime since = Headers.ISO2822DateFormat.parseDateTime(ifRange);
+            DateTime modified = Headers.ISO2822DateFormat.parseDateTime(lastModified.trim());
+            return since.getMillis() / 1000 == modified.getMillis() / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Set up a partial response, if the Range header calls for one.
+     *
+     * @return The status to reply with, or null if the full body should be
+     * sent instead
+     */
+    static HttpResponseStatus send(List<ResponseAdapter.Header<?>> headers, final long length,
+            final Slicer slicer, com.mastfrog.acteur.Response resp, final boolean keepAlive,
+            String range, String ifRange) {
+        if (!ifRangeMatches(headers, ifRange)) {
+            return null;
+        }
+        final List<long[]> ranges = parse(range, length);
+        if (ranges == null) {
+            return null;
+        }
+        String contentType = Validators.headerValue(headers, CONTENT_TYPE);
+        for (ResponseAdapter.Header<?> header : headers) {
+            if (!CONTENT_TYPE.equalsIgnoreCase(header.type.name())) {
+                header.apply(resp);
+            }
+        }
+        resp.setChunked(false);
+        if (ranges.isEmpty()) {
+            resp.add(Headers.stringHeader(CONTENT_RANGE), "bytes */" + length);
+            resp.add(Headers.CONTENT_LENGTH, 0L);
+            return HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE;
+        }
+        if (ranges.size() == 1) {
+            final long[] r = ranges.get(0);
+            if (contentType != null) {
+                resp.add(Headers.stringHeader(CONTENT_TYPE), contentType);
+            }
+            resp.add(Headers.stringHeader(CONTENT_RANGE), contentRange(r, length));
+            resp.add(Headers.CONTENT_LENGTH, r[1] - r[0] + 1);
+            resp.setBodyWriter(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture f) throws Exception {
+                    if (!f.isSuccess()) {
+                        f.channel().close();
+                        return;
+                    }
+                    Channel channel = f.channel();
+                    slicer.write(channel, r[0], r[1] - r[0] + 1);
+                    finish(channel.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT), keepAlive);
+                }
+            });
+            return HttpResponseStatus.PARTIAL_CONTENT;
+        }
+        final Multipart multipart = new Multipart(ranges, contentType, length,
+                Long.toHexString(ThreadLocalRandom.current().nextLong()) + Long.toHexString(System.nanoTime()));
+        resp.add(Headers.stringHeader(CONTENT_TYPE), "multipart/byteranges; boundary=" + multipart.boundary);
+        resp.add(Headers.CONTENT_LENGTH, multipart.contentLength);
+        resp.setBodyWriter(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture f) throws Exception {
+                if (!f.isSuccess()) {
+                    f.channel().close();
+                    return;
+                }
+                finish(multipart.write(f.channel(), slicer), keepAlive);
+            }
+        });
+        return HttpResponseStatus.PARTIAL_CONTENT;
+    }
+
+    private static String contentRange(long[] range, long length) {
+        return "bytes " + range[0] + '-' + range[1] + '/' + length;
+    }
+
+    private static void finish(ChannelFuture f, boolean keepAlive) {
+        if (!keepAlive) {
+            f.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    /**
+     * The framing of a multipart/byteranges body - each range preceded by
+     * its part headers, and a closing boundary after the last.
+     */
+    static final class Multipart {
+
+        final String boundary;
+        final long contentLength;
+        private final List<long[]> ranges;
+        private final List<byte[]> partHeaders;
+        private final byte[] closing;
+
+        Multipart(List<long[]> ranges, String contentType, long length, String boundary) {
+            this.ranges = ranges;
+            this.boundary = boundary;
+            partHeaders = new ArrayList<>(ranges.size());
+            long total = 0;
+            for (long[] r : ranges) {
+                StringBuilder sb = new StringBuilder(80).append("\r\n--").append(boundary).append("\r\n");
+                if (contentType != null) {
+                    sb.append(CONTENT_TYPE).append(": ").append(contentType).append("\r\n");
+                }
+                sb.append(CONTENT_RANGE).append(": ").append(contentRange(r, length)).append("\r\n\r\n");
+                byte[] bytes = sb.toString().getBytes(StandardCharsets.US_ASCII);
+                partHeaders.add(bytes);
+                total += bytes.length + r[1] - r[0] + 1;
+            }
+            closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+            contentLength = total + closing.length;
+        }
+
+        ChannelFuture write(Channel channel, Slicer slicer) throws IOException {
+            for (int i = 0; i < ranges.size(); i++) {
+                long[] r = ranges.get(i);
+                channel.write(new DefaultHttpContent(Unpooled.wrappedBuffer(partHeaders.get(i))));
+                slicer.write(channel, r[0], r[1] - r[0] + 1);
+            }
+            return channel.writeAndFlush(new DefaultLastHttpContent(Unpooled.wrappedBuffer(closing)));
+        }
+    }
+}
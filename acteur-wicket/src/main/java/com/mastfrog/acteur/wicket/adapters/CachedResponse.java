@@ -0,0 +1,138 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket.adapters;
+
+import com.mastfrog.acteur.headers.Headers;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable copy of a finished response, which can be sent any number of
+ * times, concurrently, without running a request cycle.  The body is a single
+ * unreleasable buffer;  each send writes a duplicate of it, so readers never
+ * share indices, and it is freed by the garbage collector once nothing
+ * references it rather than by reference counting, so evicting it can never
+ * pull the memory out from under a write in progress.
+ *
+ * @author Tim Boudreau
+ */
+public final class CachedResponse implements PreparedResponse {
+
+    private final HttpResponseStatus status;
+    private final List<ResponseAdapter.Header<?>> headers;
+    private final ByteBuf body;
+
+    CachedResponse(HttpResponseStatus status, List<ResponseAdapter.Header<?>> headers, ByteBuf body) {
+        this.status = status;
+        this.headers = headers;
+        this.body = body;
+    }
+
+    /**
+     * Create a 200 response from a body and string headers.
+     *
+     * @param body The body, which is copied
+     * @param headers Alternating header names and values
+     * @return A response
+     */
+    public static CachedResponse create(byte[] body, String... headers) {
+        List<ResponseAdapter.Header<?>> list = new ArrayList<>(headers.length / 2);
+        for (int i = 0; i < headers.length; i += 2) {
+            list.add(new ResponseAdapter.Header<>(Headers.stringHeader(headers[i]), headers[i + 1]));
+        }
+        // On the heap, so it is garbage collected once the cache drops it -
+        // evicted entries are never released
+        return new CachedResponse(HttpResponseStatus.OK, Collections.unmodifiableList(list),
+                Unpooled.unreleasableBuffer(Unpooled.copiedBuffer(body)));
+    }
+
+    @Override
+    public HttpResponseStatus status() {
+        return status;
+    }
+
+    /**
+     * The approximate memory this response occupies.
+     *
+     * @return A number of bytes
+     */
+    public int size() {
+        return body.capacity() + headers.size() * 64;
+    }
+
+    @Override
+    public boolean isNotModified(String ifNoneMatch, String ifModifiedSince) {
+        return Validators.notModified(headers, ifNoneMatch, ifModifiedSince);
+    }
+
+    @Override
+    public void sendNotModified(com.mastfrog.acteur.Response resp) {
+        Validators.applyNotModified(headers, resp);
+    }
+
+    @Override
+    public void send(com.mastfrog.acteur.Response resp, final boolean keepAlive) {
+        for (ResponseAdapter.Header<?> header : headers) {
+            header.apply(resp);
+        }
+        resp.add(Headers.CONTENT_LENGTH, (long) body.readableBytes());
+        resp.setChunked(false);
+        resp.setBodyWriter(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture f) throws Exception {
+                if (!f.isSuccess()) {
+                    f.channel().close();
+                    return;
+                }
+                f = f.channel().writeAndFlush(new DefaultLastHttpContent(body.duplicate()));
+                if (!keepAlive) {
+                    f.addListener(CLOSE);
+                }
+            }
+        });
+    }
+
+    @Override
+    public HttpResponseStatus sendRange(com.mastfrog.acteur.Response resp, boolean keepAlive, String range, String ifRange) {
+        if (!HttpResponseStatus.OK.equals(status)) {
+            return null;
+        }
+        return ByteRanges.send(headers, body.readableBytes(), new ByteRanges.Slicer() {
+            @Override
+            public void write(Channel channel, long offset, long length) {
+                // The body is a ByteBuf, so offsets and lengths fit in an int
+                channel.write(new DefaultHttpContent(body.slice(body.readerIndex() + (int) offset, (int) length)));
+            }
+        }, resp, keepAlive, range, ifRange);
+    }
+}
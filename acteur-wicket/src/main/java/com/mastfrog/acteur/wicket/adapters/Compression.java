@@ -0,0 +1,209 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket.adapters;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Response compression settings, content negotiation and a pool of
+ * Deflaters, so compressing a response does not allocate native zlib state
+ * each time.  The compressing itself is done by ResponseAdapter as the body
+ * is written.
+ *
+ * @author Tim Boudreau
+ */
+public final class Compression {
+
+    private final int minBytes;
+    private final Set<String> contentTypes;
+    private final int level;
+    private final BlockingQueue<Codec> gzip;
+    private final BlockingQueue<Codec> deflate;
+    private volatile boolean closed;
+
+    /**
+     * Create a compression configuration.
+     *
+     * @param minBytes Responses smaller than this are sent uncompressed
+     * @param contentTypes The MIME types (without parameters) which are worth
+     * compressing
+     * @param level The zlib compression level, 1-9
+     * @param poolSize The maximum number of idle Deflaters to keep for each
+     * encoding
+     */
+    public Compression(int minBytes, Collection<String> contentTypes, int level, int poolSize) {
+        this.minBytes = minBytes;
+        this.level = level;
+        Set<String> types = new HashSet<>();
+        for (String type : contentTypes) {
+            type = type.trim().toLowerCase(Locale.US);
+            if (!type.isEmpty()) {
+                types.add(type);
+            }
+        }
+        this.contentTypes = types;
+        gzip = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+        deflate = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+    }
+
+    public int minBytes() {
+        return minBytes;
+    }
+
+    /**
+     * Pick an encoding from the value of an Accept-Encoding header, preferring
+     * gzip.
+     *
+     * @param acceptEncoding The header value, or null
+     * @return An encoding, or null if the client accepts neither
+     */
+    public Encoding negotiate(CharSequence acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        boolean gz = false;
+        boolean df = false;
+        for (String part : acceptEncoding.toString().split(",")) {
+            String coding = part;
+            float q = 1;
+            int semi = part.indexOf(';');
+            if (semi >= 0) {
+                coding = part.substring(0, semi);
+                String param = part.substring(semi + 1).trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Float.parseFloat(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (q <= 0) {
+                continue;
+            }
+            coding = coding.trim().toLowerCase(Locale.US);
+            switch (coding) {
+                case "gzip":
+                case "x-gzip":
+                case "*":
+                    gz = true;
+                    break;
+                case "deflate":
+                    df = true;
+                    break;
+            }
+        }
+        return gz ? Encoding.GZIP : df ? Encoding.DEFLATE : null;
+    }
+
+    /**
+     * Whether a response of this content type is worth compressing.
+     *
+     * @param contentType A Content-Type header value, possibly with parameters
+     * @return true if it is on the list
+     */
+    public boolean isCompressible(CharSequence contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toString();
+        int semi = type.indexOf(';');
+        if (semi >= 0) {
+            type = type.substring(0, semi);
+        }
+        return contentTypes.contains(type.trim().toLowerCase(Locale.US));
+    }
+
+    Codec acquire(Encoding encoding) {
+        Codec result = (encoding == Encoding.GZIP ? gzip : deflate).poll();
+        return result == null ? new Codec(encoding, level) : result;
+    }
+
+    void release(Codec codec) {
+        codec.deflater.reset();
+        codec.crc.reset();
+        BlockingQueue<Codec> pool = codec.encoding == Encoding.GZIP ? gzip : deflate;
+        if (closed || !pool.offer(codec)) {
+            codec.deflater.end();
+        }
+    }
+
+    /**
+     * Free the native memory of all pooled Deflaters.
+     */
+    public void close() {
+        closed = true;
+        end(gzip);
+        end(deflate);
+    }
+
+    private static void end(BlockingQueue<Codec> pool) {
+        for (Codec c = pool.poll(); c != null; c = pool.poll()) {
+            c.deflater.end();
+        }
+    }
+
+    public enum Encoding {
+
+        GZIP("gzip"),
+        DEFLATE("deflate");
+        private final String token;
+
+        Encoding(String token) {
+            this.token = token;
+        }
+
+        /**
+         * @return The value for the Content-Encoding header
+         */
+        public String token() {
+            return token;
+        }
+    }
+
+    /**
+     * A Deflater plus the scratch state that goes with it.  Gzip is raw
+     * deflate with a header and a CRC32 trailer written by hand, so the
+     * zlib wrapper is turned off for it.
+     */
+    static final class Codec {
+
+        final Encoding encoding;
+        final Deflater deflater;
+        final CRC32 crc = new CRC32();
+        final byte[] scratch = new byte[ResponseAdapter.CFL.CHUNK_SIZE];
+
+        Codec(Encoding encoding, int level) {
+            this.encoding = encoding;
+            this.deflater = new Deflater(level, encoding == Encoding.GZIP);
+        }
+    }
+}
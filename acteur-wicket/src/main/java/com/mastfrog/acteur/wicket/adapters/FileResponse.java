@@ -0,0 +1,190 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket.adapters;
+
+import com.mastfrog.acteur.headers.Headers;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.HttpContentEncoder;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.ssl.SslHandler;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A response whose body is a file on local disk, sent without passing
+ * through the heap - with sendfile via a FileRegion where the pipeline
+ * allows it, otherwise as a read-only memory-mapped buffer, which handlers
+ * that transform content, such as compression or TLS, can consume.  A
+ * file small enough is mapped once and shared;  a larger one is mapped a
+ * window at a time, only the part being sent, since a buffer cannot address
+ * more than 2GB.
+ *
+ * @author Tim Boudreau
+ */
+public final class FileResponse implements PreparedResponse {
+
+    static final long MAX_MAPPING = 64L * 1024 * 1024;
+    private final File file;
+    private final long length;
+    private final List<ResponseAdapter.Header<?>> headers;
+    // Only used if the file is no larger than MAX_MAPPING
+    private volatile MappedByteBuffer mapped;
+
+    /**
+     * Create a 200 response for a file.
+     *
+     * @param file The file, which must not change while this response is
+     * in use
+     * @param headers Alternating header names and values
+     */
+    public FileResponse(File file, String... headers) {
+        this.file = file;
+        this.length = file.length();
+        List<ResponseAdapter.Header<?>> list = new ArrayList<>(headers.length / 2);
+        for (int i = 0; i < headers.length; i += 2) {
+            list.add(new ResponseAdapter.Header<>(Headers.stringHeader(headers[i]), headers[i + 1]));
+        }
+        this.headers = Collections.unmodifiableList(list);
+    }
+
+    @Override
+    public HttpResponseStatus status() {
+        return HttpResponseStatus.OK;
+    }
+
+    @Override
+    public boolean isNotModified(String ifNoneMatch, String ifModifiedSince) {
+        return Validators.notModified(headers, ifNoneMatch, ifModifiedSince);
+    }
+
+    @Override
+    public void sendNotModified(com.mastfrog.acteur.Response resp) {
+        Validators.applyNotModified(headers, resp);
+    }
+
+    @Override
+    public void send(com.mastfrog.acteur.Response resp, final boolean keepAlive) {
+        for (ResponseAdapter.Header<?> header : headers) {
+            header.apply(resp);
+        }
+        resp.add(Headers.CONTENT_LENGTH, length);
+        resp.setChunked(false);
+        resp.setBodyWriter(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture f) throws Exception {
+                if (!f.isSuccess()) {
+                    f.channel().close();
+                    return;
+                }
+                f = write(f.channel());
+                if (!keepAlive) {
+                    f.addListener(CLOSE);
+                }
+            }
+        });
+    }
+
+    @Override
+    public HttpResponseStatus sendRange(com.mastfrog.acteur.Response resp, boolean keepAlive, String range, String ifRange) {
+        return ByteRanges.send(headers, length, new ByteRanges.Slicer() {
+            @Override
+            public void write(Channel channel, long offset, long count) throws IOException {
+                writeWindow(channel, offset, count);
+            }
+        }, resp, keepAlive, range, ifRange);
+    }
+
+    private ChannelFuture write(Channel channel) throws IOException {
+        writeWindow(channel, 0, length);
+        return channel.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+    }
+
+    void writeWindow(Channel channel, long offset, long count) throws IOException {
+        if (canUseFileRegion(channel)) {
+            // Only the requested bytes are read, straight from the file;  the
+            // region closes the file when it is released
+            FileChannel fc = new RandomAccessFile(file, "r").getChannel();
+            channel.write(new DefaultFileRegion(fc, offset, count));
+            return;
+        }
+        for (long end = offset + count; offset < end; offset += MAX_MAPPING) {
+            channel.write(new DefaultHttpContent(map(offset, Math.min(MAX_MAPPING, end - offset))));
+        }
+    }
+
+    private ByteBuf map(long offset, long count) throws IOException {
+        if (count > Integer.MAX_VALUE) {
+            throw new IOException("Cannot map " + count + " bytes of " + file + " at once");
+        }
+        if (length <= MAX_MAPPING) {
+            return whole().slice((int) offset, (int) count);
+        }
+        // The mapping outlives the channel
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return Unpooled.wrappedBuffer(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, count));
+        }
+    }
+
+    private ByteBuf whole() throws IOException {
+        MappedByteBuffer result = mapped;
+        if (result == null) {
+            synchronized (this) {
+                result = mapped;
+                if (result == null) {
+                    // The mapping outlives the channel
+                    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                        mapped = result = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+                    }
+                }
+            }
+        }
+        return Unpooled.wrappedBuffer(result.duplicate());
+    }
+
+    static boolean canUseFileRegion(Channel channel) {
+        // A FileRegion bypasses handlers which need to see the bytes
+        for (Map.Entry<String, ChannelHandler> e : channel.pipeline()) {
+            ChannelHandler handler = e.getValue();
+            if (handler instanceof HttpContentEncoder || handler instanceof SslHandler) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
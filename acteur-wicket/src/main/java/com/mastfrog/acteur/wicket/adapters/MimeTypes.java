@@ -0,0 +1,250 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket.adapters;
+
+import com.google.common.net.MediaType;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Maps file extensions to MIME types, for the ServletContext and for
+ * resources served without Wicket.  The table is built once into an
+ * open-addressed array, so a lookup hashes the extension in place rather than
+ * allocating a lowercased substring of the file name.
+ * <p>
+ * Also caches parsed Content-Type header values, since the same handful are
+ * set on every response.
+ *
+ * @author Tim Boudreau
+ */
+public final class MimeTypes {
+
+    public static final String DEFAULT_TYPE = "application/octet-stream";
+    private static final int MAX_CACHED_MEDIA_TYPES = 256;
+    private static final ConcurrentMap<String, MediaType> mediaTypes = new ConcurrentHashMap<>();
+    private final String[] extensions;
+    private final String[] types;
+    private final String[] contentTypes;
+    private final int mask;
+
+    /**
+     * Create a table of the built in types, plus any extras.
+     *
+     * @param extra Additional or overriding mappings of extension (without
+     * the dot) to MIME type
+     */
+    public MimeTypes(Map<String, String> extra) {
+        Map<String, String> all = defaults();
+        for (Map.Entry<String, String> e : extra.entrySet()) {
+            String ext = e.getKey().trim().toLowerCase(Locale.US);
+            String type = e.getValue().trim();
+            if (ext.startsWith(".")) {
+                ext = ext.substring(1);
+            }
+            if (!ext.isEmpty() && !type.isEmpty()) {
+                all.put(ext, type);
+            }
+        }
+        int size = Integer.highestOneBit(Math.max(16, all.size() * 2 - 1)) << 1;
+        extensions = new String[size];
+        types = new String[size];
+        contentTypes = new String[size];
+        mask = size - 1;
+        for (Map.Entry<String, String> e : all.entrySet()) {
+            String ext = e.getKey();
+            int slot = hash(ext, 0, ext.length()) & mask;
+            while (extensions[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            extensions[slot] = ext;
+            types[slot] = e.getValue();
+            contentTypes[slot] = withCharset(e.getValue());
+        }
+    }
+
+    /**
+     * Get the MIME type for a file name, as ServletContext.getMimeType()
+     * would.
+     *
+     * @param fileName A file name or path
+     * @return The type, or null if the extension is unknown
+     */
+    public String mimeType(String fileName) {
+        int slot = find(fileName);
+        return slot < 0 ? null : types[slot];
+    }
+
+    /**
+     * Get the Content-Type header value for a file name - the MIME type,
+     * with a charset for those text types whose encoding is conventionally
+     * UTF-8.
+     *
+     * @param fileName A file name or path
+     * @return The header value, application/octet-stream if the extension
+     * is unknown
+     */
+    public String contentType(String fileName) {
+        int slot = find(fileName);
+        return slot < 0 ? DEFAULT_TYPE : contentTypes[slot];
+    }
+
+    /**
+     * Parse a Content-Type header value, reusing the result for values seen
+     * before.
+     *
+     * @param contentType A content type
+     * @return A media type
+     * @throws IllegalArgumentException if the value cannot be parsed
+     */
+    public static MediaType mediaType(String contentType) {
+        MediaType result = mediaTypes.get(contentType);
+        if (result == null) {
+            result = MediaType.parse(contentType);
+            // Only a few values ever recur;  don't let odd ones grow the map
+            if (mediaTypes.size() < MAX_CACHED_MEDIA_TYPES) {
+                mediaTypes.putIfAbsent(contentType, result);
+            }
+        }
+        return result;
+    }
+
+    private int find(String fileName) {
+        if (fileName == null) {
+            return -1;
+        }
+        int length = fileName.length();
+        int dot = -1;
+        for (int i = length - 1; i >= 0; i--) {
+            char c = fileName.charAt(i);
+            if (c == '.') {
+                dot = i;
+                break;
+            } else if (c == '/' || c == '\\') {
+                break;
+            }
+        }
+        if (dot < 0 || dot == length - 1) {
+            return -1;
+        }
+        int start = dot + 1;
+        int extLength = length - start;
+        for (int slot = hash(fileName, start, length) & mask;; slot = (slot + 1) & mask) {
+            String ext = extensions[slot];
+            if (ext == null) {
+                return -1;
+            }
+            if (ext.length() == extLength && ext.regionMatches(true, 0, fileName, start, extLength)) {
+                return slot;
+            }
+        }
+    }
+
+    private static int hash(String s, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + Character.toLowerCase(s.charAt(i));
+        }
+        // Spread the bits, since the table is indexed by the low ones
+        return h ^ (h >>> 16);
+    }
+
+    private static String withCharset(String type) {
+        switch (type) {
+            case "text/css":
+            case "text/javascript":
+            case "application/javascript":
+            case "application/json":
+                return type + "; charset=UTF-8";
+            default:
+                return type;
+        }
+    }
+
+    private static Map<String, String> defaults() {
+        Map<String, String> m = new LinkedHashMap<>();
+        m.put("html", "text/html");
+        m.put("htm", "text/html");
+        m.put("xhtml", "application/xhtml+xml");
+        m.put("css", "text/css");
+        m.put("js", "application/javascript");
+        m.put("mjs", "application/javascript");
+        m.put("map", "application/json");
+        m.put("json", "application/json");
+        m.put("xml", "application/xml");
+        m.put("xsl", "application/xml");
+        m.put("txt", "text/plain");
+        m.put("properties", "text/plain");
+        m.put("csv", "text/csv");
+        m.put("ics", "text/calendar");
+        m.put("md", "text/markdown");
+        m.put("rss", "application/rss+xml");
+        m.put("atom", "application/atom+xml");
+        m.put("png", "image/png");
+        m.put("gif", "image/gif");
+        m.put("jpg", "image/jpeg");
+        m.put("jpeg", "image/jpeg");
+        m.put("webp", "image/webp");
+        m.put("bmp", "image/bmp");
+        m.put("ico", "image/x-icon");
+        m.put("svg", "image/svg+xml");
+        m.put("svgz", "image/svg+xml");
+        m.put("tif", "image/tiff");
+        m.put("tiff", "image/tiff");
+        m.put("woff", "font/woff");
+        m.put("woff2", "font/woff2");
+        m.put("ttf", "font/ttf");
+        m.put("otf", "font/otf");
+        m.put("eot", "application/vnd.ms-fontobject");
+        m.put("mp3", "audio/mpeg");
+        m.put("ogg", "audio/ogg");
+        m.put("oga", "audio/ogg");
+        m.put("wav", "audio/wav");
+        m.put("m4a", "audio/mp4");
+        m.put("mp4", "video/mp4");
+        m.put("m4v", "video/mp4");
+        m.put("webm", "video/webm");
+        m.put("ogv", "video/ogg");
+        m.put("mov", "video/quicktime");
+        m.put("pdf", "application/pdf");
+        m.put("zip", "application/zip");
+        m.put("gz", "application/gzip");
+        m.put("jar", "application/java-archive");
+        m.put("swf", "application/x-shockwave-flash");
+        m.put("wasm", "application/wasm");
+        m.put("doc", "application/msword");
+        m.put("xls", "application/vnd.ms-excel");
+        m.put("ppt", "application/vnd.ms-powerpoint");
+        m.put("docx", "application/vnd.openxmlformats-officedocument.wordprocessingml.document");
+        m.put("xlsx", "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet");
+        m.put("pptx", "application/vnd.openxmlformats-officedocument.presentationml.presentation");
+        m.put("odt", "application/vnd.oasis.opendocument.text");
+        m.put("ods", "application/vnd.oasis.opendocument.spreadsheet");
+        m.put("rtf", "application/rtf");
+        m.put("bin", "application/octet-stream");
+        return m;
+    }
+}
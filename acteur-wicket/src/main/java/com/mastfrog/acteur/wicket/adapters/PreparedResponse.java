@@ -0,0 +1,73 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket.adapters;
+
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+/**
+ * A response which is ready to send without running a request cycle.
+ *
+ * @author Tim Boudreau
+ */
+public interface PreparedResponse {
+
+    HttpResponseStatus status();
+
+    /**
+     * Determine whether the client already has this response.
+     *
+     * @param ifNoneMatch The If-None-Match header, or null
+     * @param ifModifiedSince The If-Modified-Since header, or null
+     * @return true if a 304 should be sent instead
+     */
+    boolean isNotModified(String ifNoneMatch, String ifModifiedSince);
+
+    /**
+     * Put the headers for a 304 Not Modified response into an Acteur response.
+     *
+     * @param resp The response
+     */
+    void sendNotModified(com.mastfrog.acteur.Response resp);
+
+    /**
+     * Put the headers and body into an Acteur response.
+     *
+     * @param resp The response
+     * @param keepAlive Whether the connection should stay open afterwards
+     */
+    void send(com.mastfrog.acteur.Response resp, boolean keepAlive);
+
+    /**
+     * Put the headers and the requested byte ranges of the body into an
+     * Acteur response, if the Range header can be honoured.
+     *
+     * @param resp The response
+     * @param keepAlive Whether the connection should stay open afterwards
+     * @param range The Range header
+     * @param ifRange The If-Range header, or null
+     * @return PARTIAL_CONTENT or REQUESTED_RANGE_NOT_SATISFIABLE, or null if
+     * nothing was added and the full response should be sent instead
+     */
+    HttpResponseStatus sendRange(com.mastfrog.acteur.Response resp, boolean keepAlive, String range, String ifRange);
+}
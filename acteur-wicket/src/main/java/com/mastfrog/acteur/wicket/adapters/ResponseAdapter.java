@@ -23,51 +23,86 @@
  */
 package com.mastfrog.acteur.wicket.adapters;
 
-import com.google.common.net.MediaType;
+import com.mastfrog.acteur.headers.HeaderValueType;
 import com.mastfrog.acteur.headers.Headers;
 import com.mastfrog.acteur.server.PathFactory;
 import com.mastfrog.url.Path;
 import com.mastfrog.util.Exceptions;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.handler.codec.http.DefaultCookie;
 import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
 import io.netty.handler.codec.http.HttpResponseStatus;
-import io.netty.handler.codec.http.LastHttpContent;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 import javax.inject.Inject;
 import javax.servlet.http.Cookie;
 import org.apache.wicket.request.http.WebResponse;
 import org.apache.wicket.util.time.Time;
 import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
- * Wraps an Acteur Response object and exposes it as a Wicket WebResponse
- * object.
+ * Collects the status, headers and body Wicket writes, to be applied to an
+ * Acteur Response once the request cycle is finished, since the cycle does
+ * not run in the acteur which sends the response.
+ * <p>
+ * If streaming is enabled and the body grows past a threshold before the
+ * cycle finishes, the response is committed early:  the status and headers
+ * set so far are sent, and from then on the body goes out in chunks each time
+ * another threshold's worth has been written, with the writing thread waiting
+ * whenever the channel is not writable.  As with a servlet container, status
+ * and header changes after that point are ignored - and logged, since a
+ * silently lost cookie is miserable to track down.
  *
  * @author Tim Boudreau
  */
 public class ResponseAdapter extends WebResponse {
 
-    private final com.mastfrog.acteur.Response resp;
+    private static final Logger log = LoggerFactory.getLogger(ResponseAdapter.class);
+    private static final String CONTENT_ENCODING = "Content-Encoding";
+    private static final String VARY = "Vary";
+    private static final String ACCEPT_ENCODING = "Accept-Encoding";
     private final Charset charset;
     private CFL cfl;
     private final ByteBufAllocator alloc;
     private HttpResponseStatus status;
     private final PathFactory paths;
+    private final List<Header<?>> headers = new ArrayList<>();
+    private String message;
     private boolean redir;
     boolean flushed;
+    private Channel streamChannel;
+    private int streamThreshold;
+    private Committer committer;
+    private volatile boolean streaming;
+    private Compression compression;
+    private Compression.Encoding encoding;
 
     @Inject
-    public ResponseAdapter(com.mastfrog.acteur.Response resp, Charset charset, ByteBufAllocator alloc, PathFactory paths) {
-        this.resp = resp;
+    public ResponseAdapter(Charset charset, ByteBufAllocator alloc, PathFactory paths) {
         this.charset = charset;
         this.alloc = alloc;
         this.paths = paths;
@@ -77,22 +112,292 @@ public class ResponseAdapter extends WebResponse {
         return status;
     }
 
+    /**
+     * Called on the thread running the request cycle when a streamed
+     * response needs its headers sent.
+     */
+    public interface Committer {
+
+        void commit(ResponseAdapter response);
+    }
+
+    /**
+     * Allow the body to be streamed, rather than buffered until the cycle
+     * is finished, once it reaches a threshold size.
+     *
+     * @param channel The channel the response goes to
+     * @param threshold The number of bytes which triggers sending the
+     * headers, and then each subsequent chunk
+     * @param committer Called once, when the threshold is first reached; it
+     * must arrange for the headers to be sent and for this response's body
+     * writer to be attached
+     */
+    public void enableStreaming(Channel channel, int threshold, Committer committer) {
+        this.streamChannel = channel;
+        this.streamThreshold = threshold;
+        this.committer = committer;
+    }
+
+    /**
+     * Compress the body, if it turns out to be large enough and of a
+     * compressible type.
+     *
+     * @param compression The compression settings
+     * @param encoding The encoding the client accepts, or null if it
+     * accepts none - the response still needs to say it varies by encoding
+     */
+    public void enableCompression(Compression compression, Compression.Encoding encoding) {
+        this.compression = compression;
+        this.encoding = encoding;
+    }
+
+    /**
+     * Called on the request thread when the request cycle has finished
+     * normally, before a non-streamed response is sent.
+     */
+    public void complete() {
+        varyByEncoding();
+        if (cfl != null) {
+            cfl.complete();
+            if ((status == null || status.code() == 200) && !redir && !has(Validators.ETAG)) {
+                add(Headers.stringHeader(Validators.ETAG), cfl.etag());
+            }
+        }
+    }
+
+    /**
+     * Determine whether the client already has this response, from its
+     * conditional request headers.  Only meaningful after complete(), for a
+     * response which is not streaming.
+     *
+     * @param ifNoneMatch The If-None-Match header, or null
+     * @param ifModifiedSince The If-Modified-Since header, or null
+     * @return true if a 304 should be sent instead
+     */
+    public boolean isNotModified(String ifNoneMatch, String ifModifiedSince) {
+        return !streaming && (status == null || status.code() == 200)
+                && Validators.notModified(headers, ifNoneMatch, ifModifiedSince);
+    }
+
+    /**
+     * Apply the headers for a 304 Not Modified response and throw away the
+     * body.
+     *
+     * @param resp The response
+     */
+    public void applyNotModified(com.mastfrog.acteur.Response resp) {
+        Validators.applyNotModified(headers, resp);
+        if (cfl != null) {
+            cfl.release();
+            cfl = null;
+        }
+    }
+
+    /**
+     * Whether the response was committed before the cycle finished, in which
+     * case finishStreaming() must be called instead of sending it normally.
+     *
+     * @return true if streaming
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Send the remainder of a streamed response, or close the connection if
+     * the cycle failed after the response was committed.
+     *
+     * @param succeeded Whether the request cycle completed normally
+     */
+    public void finishStreaming(boolean succeeded) {
+        cfl.finish(succeeded);
+    }
+
+    /**
+     * Copy the headers, message and body writer into an Acteur response.
+     * The body is fully buffered by now, so it is sent with a Content-Length
+     * rather than chunked, and the connection is left open afterwards if the
+     * client asked for keep-alive.
+     *
+     * @param resp The response
+     * @param keepAlive Whether the connection should stay open
+     */
+    public void apply(com.mastfrog.acteur.Response resp, boolean keepAlive) {
+        if (streaming) {
+            // Length unknown - chunked, with the body writer waiting for the
+            // request thread's chunks;  a length Wicket set would contradict
+            // the chunked encoding
+            remove(Headers.CONTENT_LENGTH.name());
+            for (Header<?> header : headers) {
+                header.apply(resp);
+            }
+            if (message != null) {
+                resp.setMessage(message);
+            }
+            resp.setChunked(true);
+            cfl.keepAlive = keepAlive;
+            resp.setBodyWriter(cfl);
+            return;
+        }
+        applyHeaders(resp);
+        if (message != null) {
+            resp.setMessage(message);
+        }
+        if (cfl != null) {
+            cfl.keepAlive = keepAlive;
+            resp.setBodyWriter(cfl);
+        }
+    }
+
+    /**
+     * Copy the headers into an Acteur response to a HEAD request - with the
+     * Content-Length the body would have had, but no body, which on a
+     * kept-alive connection the client would read as the start of the next
+     * response.  The response must not have been streamed.
+     *
+     * @param resp The response
+     */
+    public void applyHead(com.mastfrog.acteur.Response resp) {
+        if (streaming) {
+            throw new IllegalStateException("Response to a HEAD request was streamed");
+        }
+        applyHeaders(resp);
+        if (cfl != null) {
+            cfl.release();
+            cfl = null;
+        }
+    }
+
+    private void applyHeaders(com.mastfrog.acteur.Response resp) {
+        if (cfl != null) {
+            // Whatever Wicket claimed, the length of what was actually
+            // written is what frames the response on a kept-alive connection
+            remove(Headers.CONTENT_LENGTH.name());
+            add(Headers.CONTENT_LENGTH, (long) cfl.length());
+        } else if (!has(Headers.CONTENT_LENGTH.name())) {
+            add(Headers.CONTENT_LENGTH, 0L);
+        }
+        for (Header<?> header : headers) {
+            header.apply(resp);
+        }
+        resp.setChunked(false);
+    }
+
+    /**
+     * Make an immutable copy of this response, if it is a plain, complete
+     * 200 response that is safe to send to other clients - it was not
+     * streamed or redirected, and does not set cookies.  Call after
+     * complete().
+     *
+     * @return A copy, or null
+     */
+    public CachedResponse snapshot() {
+        if (streaming || redir || (status != null && status.code() != 200) || has(Headers.SET_COOKIE.name())) {
+            return null;
+        }
+        ByteBuf copy;
+        if (cfl == null) {
+            copy = Unpooled.EMPTY_BUFFER;
+        } else {
+            // On the heap, so it is garbage collected once the cache drops
+            // it - the cache never releases what it evicts
+            copy = Unpooled.copiedBuffer(cfl.content());
+        }
+        List<Header<?>> copiedHeaders = new ArrayList<>(headers.size());
+        for (Header<?> header : headers) {
+            if (!Headers.CONTENT_LENGTH.name().equalsIgnoreCase(header.type.name())) {
+                copiedHeaders.add(header);
+            }
+        }
+        return new CachedResponse(HttpResponseStatus.OK, Collections.unmodifiableList(copiedHeaders),
+                Unpooled.unreleasableBuffer(copy));
+    }
+
+    /**
+     * Throw away anything written, if the response will not be sent.
+     */
+    public void discard() {
+        if (cfl != null) {
+            cfl.release();
+            cfl = null;
+        }
+        headers.clear();
+    }
+
+    private <T> void add(HeaderValueType<T> type, T value) {
+        if (streaming) {
+            ignored("header", type.name());
+            return;
+        }
+        headers.add(new Header<>(type, value));
+    }
+
+    private void set(String name, String value) {
+        if (streaming) {
+            ignored("header", name);
+            return;
+        }
+        remove(name);
+        add(Headers.stringHeader(name), value);
+    }
+
+    private void remove(String name) {
+        for (Iterator<Header<?>> it = headers.iterator(); it.hasNext();) {
+            if (name.equalsIgnoreCase(it.next().type.name())) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * A compressible response must say it varies by Accept-Encoding whether
+     * or not this one was compressed - it may have been too small, or the
+     * client may not have asked - or a shared cache may hand the wrong body
+     * to the next client.
+     */
+    private void varyByEncoding() {
+        if (compression == null || !compression.isCompressible(headerValue(Headers.CONTENT_TYPE.name()))) {
+            return;
+        }
+        for (Header<?> header : headers) {
+            if (VARY.equalsIgnoreCase(header.type.name())
+                    && String.valueOf(header.value).toLowerCase(Locale.US).contains("accept-encoding")) {
+                return;
+            }
+        }
+        add(Headers.stringHeader(VARY), ACCEPT_ENCODING);
+    }
+
+    private void ignored(String what, Object detail) {
+        log.warn("Response already committed - ignoring {} {}", what, detail);
+    }
+
+    private String headerValue(String name) {
+        return Validators.headerValue(headers, name);
+    }
+
+    private boolean has(String name) {
+        for (Header<?> header : headers) {
+            if (name.equalsIgnoreCase(header.type.name())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public void write(CharSequence cs) {
-        write(cs.toString().getBytes(charset));
+        cfl().write(cs);
     }
 
     @Override
     public void write(byte[] bytes) {
-        CFL cfl = cfl();
-        cfl.add(bytes);
+        cfl().write(bytes, 0, bytes.length);
     }
 
     @Override
     public void write(byte[] bytes, int offset, int length) {
-        byte[] copy = new byte[length];
-        System.arraycopy(bytes, offset, copy, 0, length);
-        write(copy);
+        cfl().write(bytes, offset, length);
     }
 
     @Override
@@ -102,37 +407,66 @@ public class ResponseAdapter extends WebResponse {
 
     @Override
     public Object getContainerResponse() {
-        return resp;
+        return this;
     }
 
     private CFL cfl() {
         if (cfl == null) {
-            cfl = new CFL(alloc);
-            resp.setBodyWriter(cfl);
+            cfl = new CFL(alloc, charset);
+            if (committer != null) {
+                cfl.stream(streamChannel, streamThreshold, new Runnable() {
+                    @Override
+                    public void run() {
+                        varyByEncoding();
+                        streaming = true;
+                        committer.commit(ResponseAdapter.this);
+                    }
+                });
+            }
+            if (compression != null && encoding != null) {
+                cfl.compress(compression, encoding, new CFL.Decider() {
+                    @Override
+                    public boolean decide() {
+                        if (has(CONTENT_ENCODING) || !compression.isCompressible(headerValue(Headers.CONTENT_TYPE.name()))) {
+                            return false;
+                        }
+                        add(Headers.stringHeader(CONTENT_ENCODING), encoding.token());
+                        return true;
+                    }
+                });
+            }
         }
         return cfl;
     }
 
     @Override
     public void addCookie(Cookie cookie) {
-        resp.add(Headers.SET_COOKIE, CookieConverter.INSTANCE.unconvert(cookie));
+        if (streaming) {
+            ignored("cookie", cookie.getName());
+            return;
+        }
+        add(Headers.SET_COOKIE, CookieConverter.INSTANCE.unconvert(cookie));
     }
 
     @Override
     public void clearCookie(Cookie cookie) {
+        if (streaming) {
+            ignored("cookie", cookie.getName());
+            return;
+        }
         DefaultCookie ck = (DefaultCookie) CookieConverter.INSTANCE.unconvert(cookie);
         ck.setDiscard(true);
-        resp.add(Headers.SET_COOKIE, ck);
+        add(Headers.SET_COOKIE, ck);
     }
 
     @Override
     public void setHeader(String string, String string1) {
-        resp.add(Headers.stringHeader(string), string1);
+        set(string, string1);
     }
 
     @Override
     public void addHeader(String string, String string1) {
-        resp.add(Headers.stringHeader(string), string1);
+        add(Headers.stringHeader(string), string1);
     }
 
     @Override
@@ -144,23 +478,31 @@ public class ResponseAdapter extends WebResponse {
 
     @Override
     public void setContentLength(long l) {
-        resp.add(Headers.CONTENT_LENGTH, l);
+        add(Headers.CONTENT_LENGTH, l);
     }
 
     @Override
     public void setContentType(String string) {
-        resp.add(Headers.CONTENT_TYPE, MediaType.parse(string));
+        add(Headers.CONTENT_TYPE, MimeTypes.mediaType(string));
     }
 
     @Override
     public void setStatus(int i) {
+        if (streaming) {
+            ignored("status", i);
+            return;
+        }
         this.status = HttpResponseStatus.valueOf(i);
     }
 
     @Override
     public void sendError(int i, String string) {
+        if (streaming) {
+            ignored("error", i);
+            return;
+        }
         this.status = HttpResponseStatus.valueOf(i);
-        resp.setMessage(string);
+        message = string;
     }
 
     @Override
@@ -176,7 +518,7 @@ public class ResponseAdapter extends WebResponse {
     public void sendRedirect(String string) {
         setStatus(307);
         try {
-            resp.add(Headers.LOCATION, new URI(encodeRedirectURL(string)));
+            add(Headers.LOCATION, new URI(encodeRedirectURL(string)));
         } catch (URISyntaxException ex) {
             Exceptions.chuck(ex);
         }
@@ -194,39 +536,538 @@ public class ResponseAdapter extends WebResponse {
         flushed = true;
     }
 
-    static class CFL implements ChannelFutureListener {
+    static final class Header<T> {
+
+        final HeaderValueType<T> type;
+        final T value;
+
+        Header(HeaderValueType<T> type, T value) {
+            this.type = type;
+            this.value = value;
+        }
 
-        private final List<byte[]> bytes = new LinkedList<>();
-        private Iterator<byte[]> iter;
+        void apply(com.mastfrog.acteur.Response resp) {
+            resp.add(type, value);
+        }
+    }
+
+    /**
+     * Accumulates the body in fixed-size pooled chunks, each byte copied
+     * once on its way in; the chunks are gathered into a single composite
+     * buffer which is written in one go once the headers have been sent.
+     * Character data is encoded straight into the chunks - UTF-8 and the
+     * single-byte charsets by hand, anything else with a CharsetEncoder
+     * reused for the life of the response.
+     * <p>
+     * When streaming, the composite is instead handed to the channel each
+     * time it reaches the threshold, from the request thread, once the
+     * headers are known to have been written.  The event loop only ever
+     * signals that the headers are out;  all buffer handling stays on the
+     * request thread.
+     * <p>
+     * Once the body reaches the minimum size for compression, if the
+     * response is compressible, what has been written so far is deflated,
+     * and from then on each chunk is deflated as it fills, into pooled heap
+     * chunks, so the uncompressed body is never held in full.
+     */
+    static final class CFL implements ChannelFutureListener {
+
+        static final int CHUNK_SIZE = 8192;
+        // How many thresholds' worth to buffer while waiting for the headers
+        private static final int MAX_PENDING_CHUNKS = 4;
+        private static final long HEADER_WAIT_SLICE_MILLIS = 1000;
+        private static final long MAX_HEADER_WAIT_MILLIS = 60000;
+        // Magic, deflate, no flags, no mtime, no extra flags, unknown OS
+        private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
         private final ByteBufAllocator alloc;
+        private CompositeByteBuf body;
+        private final Charset charset;
+        private final boolean utf8;
+        private final int singleByteLimit;
+        private CharsetEncoder encoder;
+        private ByteBuf current;
+        private boolean sent;
+        volatile boolean keepAlive;
+        // Streaming state - all but the latch and failed flag are only
+        // touched by the request thread
+        private Channel channel;
+        private int threshold;
+        private Runnable onCommit;
+        private boolean committed;
+        private boolean dropped;
+        private WritabilityGate gate;
+        private volatile boolean streaming;
+        private volatile boolean failed;
+        private final CountDownLatch headersWritten = new CountDownLatch(1);
+        // Compression state - request thread only
+        private Compression compression;
+        private Compression.Encoding encoding;
+        private Decider decider;
+        private boolean compressionDecided;
+        private Compression.Codec codec;
+        private ByteBuf out;
+        private long sealedBytes;
+        private boolean completed;
+        private boolean compressed;
+        // FNV-1a over the uncompressed body, for the ETag
+        private long hash = 0xcbf29ce484222325L;
 
-        public CFL(ByteBufAllocator alloc) {
+        public CFL(ByteBufAllocator alloc, Charset charset) {
             this.alloc = alloc;
+            this.charset = charset;
+            // Unlimited components, or the composite consolidates itself,
+            // copying everything written so far
+            this.body = alloc.compositeBuffer(Integer.MAX_VALUE);
+            utf8 = StandardCharsets.UTF_8.equals(charset);
+            singleByteLimit = StandardCharsets.US_ASCII.equals(charset) ? 0x80
+                    : StandardCharsets.ISO_8859_1.equals(charset) ? 0x100 : 0;
+        }
+
+        void stream(Channel channel, int threshold, Runnable onCommit) {
+            this.channel = channel;
+            this.threshold = threshold;
+            this.onCommit = onCommit;
         }
 
-        CFL add(byte[] bytes) {
-            if (iter != null) {
+        /**
+         * Decides, once the body is big enough to be worth compressing,
+         * whether to compress it, adding the response headers if so.
+         */
+        interface Decider {
+
+            boolean decide();
+        }
+
+        void compress(Compression compression, Compression.Encoding encoding, Decider decider) {
+            this.compression = compression;
+            this.encoding = encoding;
+            this.decider = decider;
+        }
+
+        private void checkNotSent() {
+            if (sent) {
                 throw new IllegalStateException("Cannot add bytes to write while content is being written");
             }
-            if (bytes.length > 0) {
-                this.bytes.add(bytes);
+        }
+
+        private void ensure(int bytes) {
+            if (current == null || current.writableBytes() < bytes) {
+                seal();
+                current = alloc.buffer(CHUNK_SIZE, CHUNK_SIZE);
+            }
+        }
+
+        void write(byte[] bytes, int offset, int length) {
+            checkNotSent();
+            if (dropped) {
+                return;
+            }
+            while (length > 0) {
+                ensure(1);
+                int count = Math.min(length, current.writableBytes());
+                current.writeBytes(bytes, offset, count);
+                offset += count;
+                length -= count;
+            }
+            afterWrite();
+        }
+
+        void write(CharSequence cs) {
+            checkNotSent();
+            if (dropped) {
+                return;
+            }
+            if (utf8) {
+                writeUtf8(cs);
+            } else if (singleByteLimit != 0) {
+                writeSingleByte(cs, singleByteLimit);
+            } else {
+                writeEncoded(cs);
+            }
+            afterWrite();
+        }
+
+        private void afterWrite() {
+            if (decider != null && !compressionDecided && uncompressedLength() >= compression.minBytes()) {
+                compressionDecided = true;
+                // Too late once the headers are committed
+                if (!committed && decider.decide()) {
+                    startCompression();
+                }
+            }
+            if (channel == null || length() < threshold) {
+                return;
+            }
+            if (!committed) {
+                committed = true;
+                streaming = true;
+                onCommit.run();
+            }
+            // Keep buffering while the headers go out, up to a limit
+            if (headersWritten.getCount() > 0 && length() < threshold * MAX_PENDING_CHUNKS) {
+                return;
+            }
+            if (!awaitHeaders()) {
+                drop();
+                return;
+            }
+            sealForSend(false);
+            CompositeByteBuf chunk = body;
+            body = alloc.compositeBuffer(Integer.MAX_VALUE);
+            channel.writeAndFlush(new DefaultHttpContent(chunk));
+            if (gate == null) {
+                gate = WritabilityGate.install(channel);
+            }
+            try {
+                if (!gate.await(channel)) {
+                    drop();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                drop();
+            }
+        }
+
+        private boolean awaitHeaders() {
+            try {
+                long waited = 0;
+                while (!headersWritten.await(HEADER_WAIT_SLICE_MILLIS, TimeUnit.MILLISECONDS)) {
+                    waited += HEADER_WAIT_SLICE_MILLIS;
+                    if (!channel.isActive() || waited >= MAX_HEADER_WAIT_MILLIS) {
+                        return false;
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            return !failed;
+        }
+
+        // The client is gone - throw away what there is and ignore the
+        // rest of what Wicket writes
+        private void drop() {
+            if (!dropped) {
+                dropped = true;
+                if (current != null) {
+                    current.release();
+                    current = null;
+                }
+                if (out != null) {
+                    out.release();
+                    out = null;
+                }
+                if (codec != null) {
+                    compression.release(codec);
+                    codec = null;
+                }
+                body.release();
+            }
+        }
+
+        /**
+         * Called on the request thread once the cycle is done, so any
+         * compression is finished there rather than on the event loop.
+         */
+        void complete() {
+            if (!completed && !dropped) {
+                completed = true;
+                sealForSend(true);
+            }
+        }
+
+        void finish(boolean succeeded) {
+            if (sent) {
+                return;
+            }
+            if (!succeeded || dropped || !awaitHeaders()) {
+                drop();
+                sent = true;
+                channel.close();
+                return;
+            }
+            complete();
+            sent = true;
+            ChannelFuture f = channel.writeAndFlush(new DefaultLastHttpContent(body));
+            if (!keepAlive) {
+                f.addListener(CLOSE);
+            }
+        }
+
+        private void writeUtf8(CharSequence cs) {
+            int len = cs.length();
+            for (int i = 0; i < len; i++) {
+                ensure(4);
+                ByteBuf buf = current;
+                char c = cs.charAt(i);
+                // Markup is mostly ASCII - copy runs of it without
+                // rechecking the chunk for every character
+                if (c < 0x80) {
+                    int max = Math.min(len, i + buf.writableBytes());
+                    buf.writeByte(c);
+                    while (i + 1 < max && (c = cs.charAt(i + 1)) < 0x80) {
+                        buf.writeByte(c);
+                        i++;
+                    }
+                } else if (c < 0x800) {
+                    buf.writeByte(0xC0 | (c >> 6));
+                    buf.writeByte(0x80 | (c & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(cs.charAt(i + 1))) {
+                        int cp = Character.toCodePoint(c, cs.charAt(++i));
+                        buf.writeByte(0xF0 | (cp >> 18));
+                        buf.writeByte(0x80 | ((cp >> 12) & 0x3F));
+                        buf.writeByte(0x80 | ((cp >> 6) & 0x3F));
+                        buf.writeByte(0x80 | (cp & 0x3F));
+                    } else {
+                        buf.writeByte('?');
+                    }
+                } else {
+                    buf.writeByte(0xE0 | (c >> 12));
+                    buf.writeByte(0x80 | ((c >> 6) & 0x3F));
+                    buf.writeByte(0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        private void writeSingleByte(CharSequence cs, int limit) {
+            int len = cs.length();
+            for (int i = 0; i < len;) {
+                ensure(1);
+                int max = Math.min(len, i + current.writableBytes());
+                for (; i < max; i++) {
+                    char c = cs.charAt(i);
+                    current.writeByte(c < limit ? c : '?');
+                    // A surrogate pair is one unmappable character, as
+                    // String.getBytes() would have it
+                    if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(cs.charAt(i + 1))) {
+                        i++;
+                    }
+                }
+            }
+        }
+
+        private void writeEncoded(CharSequence cs) {
+            if (encoder == null) {
+                encoder = charset.newEncoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            } else {
+                encoder.reset();
+            }
+            CharBuffer in = CharBuffer.wrap(cs);
+            boolean flushing = false;
+            for (;;) {
+                ensure(16);
+                int start = current.writerIndex();
+                ByteBuffer out = current.nioBuffer(start, current.writableBytes());
+                CoderResult result = flushing ? encoder.flush(out) : encoder.encode(in, out, true);
+                current.writerIndex(start + out.position());
+                if (result.isOverflow()) {
+                    seal();
+                    current = alloc.buffer(CHUNK_SIZE, CHUNK_SIZE);
+                } else if (!flushing) {
+                    flushing = true;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        ByteBuf content() {
+            return body;
+        }
+
+        int length() {
+            return body.readableBytes() + (current == null ? 0 : current.readableBytes())
+                    + (out == null ? 0 : out.readableBytes());
+        }
+
+        private long uncompressedLength() {
+            return sealedBytes + (current == null ? 0 : current.readableBytes());
+        }
+
+        private void seal() {
+            if (current != null) {
+                sealedBytes += current.readableBytes();
+                hash(current);
+                if (codec != null) {
+                    deflate(current);
+                    current.release();
+                } else {
+                    append(current);
+                }
+                current = null;
+            }
+        }
+
+        private void hash(ByteBuf buf) {
+            long h = hash;
+            if (buf.hasArray()) {
+                byte[] bytes = buf.array();
+                for (int i = buf.arrayOffset() + buf.readerIndex(), end = i + buf.readableBytes(); i < end; i++) {
+                    h = (h ^ (bytes[i] & 0xFF)) * 0x100000001b3L;
+                }
+            } else {
+                for (int i = buf.readerIndex(), end = buf.writerIndex(); i < end; i++) {
+                    h = (h ^ (buf.getByte(i) & 0xFF)) * 0x100000001b3L;
+                }
+            }
+            hash = h;
+        }
+
+        /**
+         * A strong entity tag for the body, computed from the uncompressed
+         * bytes and the encoding - each encoding is a distinct representation.
+         */
+        String etag() {
+            StringBuilder sb = new StringBuilder(32).append('"')
+                    .append(Long.toHexString(hash)).append('-').append(Long.toHexString(sealedBytes));
+            if (compressed) {
+                sb.append('-').append(encoding.token());
+            }
+            return sb.append('"').toString();
+        }
+
+        private void append(ByteBuf buf) {
+            if (buf.isReadable()) {
+                body.addComponent(buf);
+                // addComponent() does not move the writer index
+                body.writerIndex(body.writerIndex() + buf.readableBytes());
+            } else {
+                buf.release();
+            }
+        }
+
+        private void sealForSend(boolean last) {
+            seal();
+            if (codec != null) {
+                if (last) {
+                    Deflater deflater = codec.deflater;
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        drain(Deflater.NO_FLUSH);
+                    }
+                    if (codec.encoding == Compression.Encoding.GZIP) {
+                        ensureOut(8);
+                        writeIntLE(out, (int) codec.crc.getValue());
+                        writeIntLE(out, (int) sealedBytes);
+                    }
+                    compression.release(codec);
+                    codec = null;
+                } else {
+                    // Emit everything so far, so the client can decode
+                    // each chunk as it arrives
+                    int room;
+                    do {
+                        ensureOut(1);
+                        room = out.writableBytes();
+                    } while (drain(Deflater.SYNC_FLUSH) == room);
+                }
+            }
+            if (out != null) {
+                append(out);
+                out = null;
+            }
+        }
+
+        private void startCompression() {
+            compressed = true;
+            codec = compression.acquire(encoding);
+            if (encoding == Compression.Encoding.GZIP) {
+                ensureOut(GZIP_HEADER.length);
+                out.writeBytes(GZIP_HEADER);
+            }
+            // Anything sealed so far is uncompressed - run it through
+            CompositeByteBuf uncompressed = body;
+            body = alloc.compositeBuffer(Integer.MAX_VALUE);
+            deflate(uncompressed);
+            uncompressed.release();
+        }
+
+        private void deflate(ByteBuf in) {
+            if (in.hasArray()) {
+                deflate(in.array(), in.arrayOffset() + in.readerIndex(), in.readableBytes());
+            } else {
+                byte[] scratch = codec.scratch;
+                for (int pos = in.readerIndex(), end = in.writerIndex(); pos < end;) {
+                    int count = Math.min(scratch.length, end - pos);
+                    in.getBytes(pos, scratch, 0, count);
+                    deflate(scratch, 0, count);
+                    pos += count;
+                }
+            }
+        }
+
+        private void deflate(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return;
+            }
+            if (codec.encoding == Compression.Encoding.GZIP) {
+                codec.crc.update(bytes, offset, length);
+            }
+            Deflater deflater = codec.deflater;
+            deflater.setInput(bytes, offset, length);
+            while (!deflater.needsInput()) {
+                drain(Deflater.NO_FLUSH);
+            }
+        }
+
+        private int drain(int flush) {
+            ensureOut(1);
+            int count = codec.deflater.deflate(out.array(), out.arrayOffset() + out.writerIndex(),
+                    out.writableBytes(), flush);
+            out.writerIndex(out.writerIndex() + count);
+            return count;
+        }
+
+        private void ensureOut(int bytes) {
+            if (out == null || out.writableBytes() < bytes) {
+                if (out != null) {
+                    append(out);
+                }
+                out = alloc.heapBuffer(CHUNK_SIZE, CHUNK_SIZE);
+            }
+        }
+
+        private static void writeIntLE(ByteBuf buf, int value) {
+            buf.writeByte(value);
+            buf.writeByte(value >>> 8);
+            buf.writeByte(value >>> 16);
+            buf.writeByte(value >>> 24);
+        }
+
+        void release() {
+            if (!sent) {
+                sent = true;
+                drop();
             }
-            return this;
         }
 
         @Override
         public void operationComplete(ChannelFuture f) throws Exception {
-            if (iter == null) {
-                iter = bytes.iterator();
+            if (streaming) {
+                // Headers are out - the request thread takes it from here
+                if (!f.isSuccess()) {
+                    failed = true;
+                    f.channel().close();
+                }
+                headersWritten.countDown();
+                return;
             }
-            if (!iter.hasNext()) {
-                f = f.channel().writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT).addListener(CLOSE);
-                bytes.clear();
-                iter = null;
-            } else {
-                byte[] bytes = iter.next();
-                ByteBuf buf = alloc.buffer().writeBytes(bytes);
-                f = f.channel().writeAndFlush(new DefaultHttpContent(buf)).addListener(this);
+            if (sent) {
+                return;
+            }
+            if (!f.isSuccess()) {
+                release();
+                f.channel().close();
+                return;
+            }
+            complete();
+            sent = true;
+            f = f.channel().writeAndFlush(new DefaultLastHttpContent(body));
+            if (!keepAlive) {
+                f.addListener(CLOSE);
             }
         }
     }
@@ -0,0 +1,116 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket.adapters;
+
+import com.mastfrog.acteur.headers.Headers;
+import java.util.List;
+import org.joda.time.DateTime;
+
+/**
+ * Evaluates If-None-Match and If-Modified-Since against the ETag and
+ * Last-Modified headers of a finished response.
+ *
+ * @author Tim Boudreau
+ */
+final class Validators {
+
+    static final String ETAG = "ETag";
+    static final String LAST_MODIFIED = "Last-Modified";
+
+    private Validators() {
+        throw new AssertionError();
+    }
+
+    static String headerValue(List<ResponseAdapter.Header<?>> headers, String name) {
+        for (ResponseAdapter.Header<?> header : headers) {
+            if (name.equalsIgnoreCase(header.type.name())) {
+                return String.valueOf(header.value);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Determine if the client already has this response.
+     *
+     * @param headers The response headers
+     * @param ifNoneMatch The If-None-Match header, or null
+     * @param ifModifiedSince The If-Modified-Since header, or null
+     * @return true if a 304 should be sent
+     */
+    static boolean notModified(List<ResponseAdapter.Header<?>> headers, String ifNoneMatch, String ifModifiedSince) {
+        if (ifNoneMatch != null) {
+            // If-None-Match takes precedence;  If-Modified-Since is then
+            // ignored, whatever the result
+            String etag = headerValue(headers, ETAG);
+            if (etag == null) {
+                return false;
+            }
+            etag = stripWeak(etag);
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = stripWeak(candidate.trim());
+                if ("*".equals(candidate) || etag.equals(candidate)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (ifModifiedSince != null) {
+            String lastModified = headerValue(headers, LAST_MODIFIED);
+            if (lastModified == null) {
+                return false;
+            }
+            try {
+                DateTime since = Headers.ISO2822DateFormat.parseDateTime(ifModifiedSince.trim());
+                DateTime modified = Headers.ISO2822DateFormat.parseDateTime(lastModified.trim());
+                // HTTP dates have one second resolution
+                return modified.getMillis() / 1000 <= since.getMillis() / 1000;
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    // If-None-Match uses the weak comparison
+    private static String stripWeak(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    /**
+     * Send the headers of a response as a 304, leaving out those which
+     * describe the body.
+     *
+     * @param headers The response headers
+     * @param resp The response
+     */
+    static void applyNotModified(List<ResponseAdapter.Header<?>> headers, com.mastfrog.acteur.Response resp) {
+        for (ResponseAdapter.Header<?> header : headers) {
+            if (!header.type.name().regionMatches(true, 0, "Content-", 0, 8)) {
+                header.apply(resp);
+            }
+        }
+        resp.setChunked(false);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket.adapters;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lets a thread writing a streamed response wait until the channel's
+ * outbound buffer has drained below its low water mark, so a slow client
+ * holds up the request thread rendering for it rather than letting the
+ * response pile up in memory.  Installed at the head of the pipeline the
+ * first time a response on the channel streams; never blocks the event
+ * loop - it only wakes up waiting writers.
+ * <p>
+ * Waits on a lock condition rather than a monitor, so a writer running on a
+ * virtual thread unmounts while it waits instead of pinning its carrier.
+ *
+ * @author Tim Boudreau
+ */
+final class WritabilityGate extends ChannelInboundHandlerAdapter {
+
+    private static final String NAME = "wicket-writability";
+    // Writability can change between the check and the wait, before this
+    // handler is in the pipeline - so wait in slices and look again
+    private static final long WAIT_SLICE_MILLIS = 1000;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition writable = lock.newCondition();
+
+    static WritabilityGate install(Channel channel) {
+        ChannelPipeline pipeline = channel.pipeline();
+        WritabilityGate gate = (WritabilityGate) pipeline.get(NAME);
+        if (gate == null) {
+            gate = new WritabilityGate();
+            try {
+                pipeline.addFirst(NAME, gate);
+            } catch (IllegalArgumentException e) {
+                // Lost a race to add it
+                gate = (WritabilityGate) pipeline.get(NAME);
+            }
+        }
+        return gate;
+    }
+
+    /**
+     * Block until the channel is writable or closed.
+     *
+     * @param channel The channel
+     * @return true if the channel is still open
+     * @throws InterruptedException If interrupted
+     */
+    boolean await(Channel channel) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (!channel.isWritable() && channel.isActive()) {
+                writable.await(WAIT_SLICE_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return channel.isActive();
+    }
+
+    private void wake() {
+        lock.lock();
+        try {
+            writable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        wake();
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        wake();
+        super.channelInactive(ctx);
+    }
+}
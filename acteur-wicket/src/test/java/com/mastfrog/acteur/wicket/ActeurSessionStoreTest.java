@@ -0,0 +1,143 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.mastfrog.acteur.wicket.ActeurSessionStore.SessionImpl;
+import com.mastfrog.giulius.ShutdownHookRegistry;
+import com.mastfrog.settings.SettingsBuilder;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.inject.Provider;
+import org.apache.wicket.Application;
+import org.apache.wicket.ThreadContext;
+import org.apache.wicket.mock.MockApplication;
+import org.apache.wicket.request.Request;
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that the session is resolved once per request cycle, and resolved
+ * again once invalidated rather than the stale one being reused.
+ *
+ * @author Tim Boudreau
+ */
+public class ActeurSessionStoreTest {
+
+    private WicketTester tester;
+    private ActeurSessionStore store;
+    private LazySessionId id;
+    private final AtomicInteger resolved = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        tester = new WicketTester(new MockApplication());
+        id = new LazySessionId(new SessionId());
+        final Class<? extends Application> appType = tester.getApplication().getClass();
+        store = new ActeurSessionStore(new Provider<LazySessionId>() {
+            @Override
+            public LazySessionId get() {
+                resolved.incrementAndGet();
+                return id;
+            }
+        }, new SettingsBuilder().build(), ShutdownHookRegistry.get(), new WicketConfig() {
+            @Override
+            public Class<? extends Application> applicationClass() {
+                return appType;
+            }
+
+            @Override
+            public Locale locale() {
+                return Locale.US;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        tester.destroy();
+    }
+
+    @Test
+    public void sessionIsResolvedOncePerCycle() {
+        Request request = request();
+        SessionImpl session = store.getHttpSession(request, true);
+        assertNotNull(session);
+        assertEquals(1, resolved.get());
+        assertSame(session, store.getHttpSession(request, false));
+        assertSame(session, store.getHttpSession(request, true));
+        assertEquals(id.get().toString(), store.getSessionId(request, false));
+        assertEquals(1, resolved.get());
+        // The next cycle looks it up afresh, and finds the same session
+        newCycle();
+        assertSame(session, store.getHttpSession(request(), false));
+        assertEquals(2, resolved.get());
+    }
+
+    @Test
+    public void invalidatedSessionIsNotReused() {
+        Request request = request();
+        SessionImpl session = store.getHttpSession(request, true);
+        store.invalidate(request);
+        assertTrue(session.isInvalid());
+        assertNull(store.getHttpSession(request, false));
+        SessionImpl replacement = store.getHttpSession(request, true);
+        assertNotNull(replacement);
+        assertNotSame(session, replacement);
+        assertFalse(replacement.isInvalid());
+        assertSame(replacement, store.getHttpSession(request, false));
+    }
+
+    @Test
+    public void cycleWithoutSessionCanStillBindOne() {
+        id = new LazySessionId(null);
+        Request request = request();
+        assertNull(store.getHttpSession(request, false));
+        assertFalse(id.isAssigned());
+        // A miss is not remembered
+        SessionImpl session = store.getHttpSession(request, true);
+        assertNotNull(session);
+        assertTrue(id.isAssigned());
+        assertEquals(id.get(), session.id());
+        assertSame(session, store.getHttpSession(request, false));
+    }
+
+    private Request request() {
+        return tester.getRequestCycle().getRequest();
+    }
+
+    private void newCycle() {
+        ThreadContext.setRequestCycle(tester.getApplication().createRequestCycle(
+                tester.getRequestCycle().getRequest(), tester.getRequestCycle().getResponse()));
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.mastfrog.acteur.server.PathFactory;
+import com.mastfrog.acteur.wicket.adapters.MimeTypes;
+import com.mastfrog.acteur.wicket.borrowed.NavomaticApplication;
+import com.mastfrog.giulius.DeploymentMode;
+import com.mastfrog.giulius.ShutdownHookRegistry;
+import com.mastfrog.settings.SettingsBuilder;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.Locale;
+import org.apache.wicket.Application;
+import org.junit.After;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the servlet context's cache of classpath resource lookups, by
+ * adding a resource to the classpath after it has been looked up.
+ *
+ * @author Tim Boudreau
+ */
+public class FakeServletContextTest {
+
+    private File root;
+    private File added;
+
+    @Before
+    public void setUp() throws URISyntaxException {
+        root = new File(NavomaticApplication.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        assertTrue("Test classes not in a directory: " + root, root.isDirectory());
+        added = new File(root, "fake-servlet-context-test-" + System.nanoTime() + ".txt");
+    }
+
+    @After
+    public void tearDown() {
+        added.delete();
+    }
+
+    @Test
+    public void lookupsAreCachedInProduction() throws IOException {
+        FakeServletContext ctx = context(DeploymentMode.PRODUCTION);
+        String name = "/" + added.getName();
+        assertNull(ctx.getResource(name));
+        assertTrue(added.createNewFile());
+        // The miss was remembered
+        assertNull(ctx.getResource(name));
+        assertNull(ctx.getResourceAsStream(name));
+        // A hit is, too
+        FakeServletContext fresh = context(DeploymentMode.PRODUCTION);
+        assertNotNull(fresh.getResource(name));
+        assertTrue(added.delete());
+        assertNotNull(fresh.getResource(name));
+    }
+
+    @Test
+    public void developmentModeBypassesTheCache() throws IOException {
+        FakeServletContext ctx = context(DeploymentMode.DEVELOPMENT);
+        String name = "/" + added.getName();
+        assertNull(ctx.getResource(name));
+        assertTrue(added.createNewFile());
+        assertNotNull(ctx.getResource(name));
+        assertTrue(added.delete());
+        assertNull(ctx.getResource(name));
+    }
+
+    @Test
+    public void missesAreOnlyCachedUpToALimit() throws IOException {
+        FakeServletContext ctx = context(DeploymentMode.PRODUCTION);
+        for (int i = 0; i < FakeServletContext.MAX_CACHED_MISSES; i++) {
+            assertNull(ctx.getResource("/no-such-resource-" + i));
+        }
+        // Past the limit, a miss is looked up afresh each time
+        String name = "/" + added.getName();
+        assertNull(ctx.getResource(name));
+        assertTrue(added.createNewFile());
+        assertNotNull(ctx.getResource(name));
+    }
+
+    private static FakeServletContext context(DeploymentMode mode) throws IOException {
+        WicketConfig config = new WicketConfig() {
+            @Override
+            public Class<? extends Application> applicationClass() {
+                return NavomaticApplication.class;
+            }
+
+            @Override
+            public Locale locale() {
+                return Locale.US;
+            }
+        };
+        PathFactory paths = (PathFactory) Proxy.newProxyInstance(FakeServletContextTest.class.getClassLoader(),
+                new Class<?>[]{PathFactory.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        return new FakeServletContext(config, paths, new SettingsBuilder().build(), mode,
+                new MimeTypes(Collections.<String, String>emptyMap()), ShutdownHookRegistry.get());
+    }
+}
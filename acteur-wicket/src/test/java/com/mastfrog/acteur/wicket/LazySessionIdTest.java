@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests the lazy assignment of session ids to requests which arrive
+ * without one.
+ *
+ * @author Tim Boudreau
+ */
+public class LazySessionIdTest {
+
+    @Test
+    public void emptyUntilAssigned() {
+        LazySessionId lazy = new LazySessionId(null);
+        assertFalse(lazy.isAssigned());
+        assertNull(lazy.get());
+        assertTrue(lazy.assign());
+        assertTrue(lazy.isAssigned());
+        SessionId id = lazy.get();
+        assertNotNull(id);
+        assertEquals(id, SessionId.parse(id.toString()));
+    }
+
+    @Test
+    public void assignHappensOnce() {
+        LazySessionId lazy = new LazySessionId(null);
+        assertTrue(lazy.assign());
+        SessionId id = lazy.get();
+        assertFalse(lazy.assign());
+        assertSame(id, lazy.get());
+    }
+
+    @Test
+    public void idFromCookieIsKept() {
+        SessionId id = new SessionId();
+        LazySessionId lazy = new LazySessionId(id);
+        assertTrue(lazy.isAssigned());
+        assertFalse(lazy.assign());
+        assertSame(id, lazy.get());
+    }
+
+    @Test
+    public void assignedIdIsStableAsAKey() {
+        // The id a session is stored under never changes its hash code
+        Set<SessionId> ids = new HashSet<>();
+        LazySessionId lazy = new LazySessionId(null);
+        lazy.assign();
+        ids.add(lazy.get());
+        lazy.assign();
+        assertTrue(ids.contains(lazy.get()));
+        assertTrue(ids.contains(SessionId.parse(lazy.get().toString())));
+    }
+
+    @Test
+    public void concurrentAssignHasOneWinner() throws InterruptedException {
+        for (int round = 0; round < 50; round++) {
+            final LazySessionId lazy = new LazySessionId(null);
+            final CountDownLatch start = new CountDownLatch(1);
+            final AtomicInteger winners = new AtomicInteger();
+            final Set<SessionId> seen = Collections.synchronizedSet(new HashSet<SessionId>());
+            Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        if (lazy.assign()) {
+                            winners.incrementAndGet();
+                        }
+                        seen.add(lazy.get());
+                    }
+                };
+                threads[i].start();
+            }
+            start.countDown();
+            for (Thread t : threads) {
+                t.join();
+            }
+            assertEquals(1, winners.get());
+            // Every thread saw the same id
+            assertEquals(1, seen.size());
+            assertSame(lazy.get(), seen.iterator().next());
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.headers.Headers;
+import com.mastfrog.acteur.headers.Method;
+import com.mastfrog.acteur.wicket.adapters.Compression;
+import com.mastfrog.settings.SettingsBuilder;
+import io.netty.handler.codec.http.Cookie;
+import io.netty.handler.codec.http.DefaultCookie;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.Locale;
+import org.apache.wicket.Application;
+import org.apache.wicket.IPageFactory;
+import org.apache.wicket.core.request.handler.IPageProvider;
+import org.apache.wicket.core.request.handler.RenderPageRequestHandler;
+import org.apache.wicket.request.IRequestHandler;
+import org.apache.wicket.request.component.IRequestablePage;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests which requests, and which rendered pages, the output cache will
+ * answer or store, and what goes into its keys.
+ *
+ * @author Tim Boudreau
+ */
+public class OutputCacheTest {
+
+    @Test
+    public void anonymousGetHasKey() throws IOException {
+        OutputCache cache = cache(true, Locale.GERMANY, true);
+        String key = cache.keyFor(event(Method.GET, "/home"), null);
+        assertNotNull(key);
+        assertTrue(key, key.startsWith("/home|"));
+        // Cookies other than the session cookie do not matter
+        assertEquals(key, cache.keyFor(event(Method.GET, "/home", new DefaultCookie("theme", "dark")), null));
+    }
+
+    @Test
+    public void sessionCookieMeansNoKey() throws IOException {
+        OutputCache cache = cache(true, Locale.GERMANY, true);
+        Cookie session = new DefaultCookie(ActeurSessionStore.COOKIE_NAME, new SessionId().toString());
+        assertNull(cache.keyFor(event(Method.GET, "/home", session), null));
+        assertNull(cache.keyFor(event(Method.GET, "/home", new DefaultCookie("theme", "dark"), session), null));
+    }
+
+    @Test
+    public void onlyGetHasKey() throws IOException {
+        OutputCache cache = cache(true, Locale.GERMANY, true);
+        assertNull(cache.keyFor(event(Method.POST, "/home"), null));
+        assertNull(cache.keyFor(event(Method.PUT, "/home"), null));
+        assertNull(cache.keyFor(event(Method.HEAD, "/home"), null));
+    }
+
+    @Test
+    public void disabledCacheHasNoKey() throws IOException {
+        OutputCache cache = cache(false, Locale.GERMANY, true);
+        assertFalse(cache.isEnabled());
+        assertNull(cache.keyFor(event(Method.GET, "/home"), null));
+    }
+
+    @Test
+    public void queryParameterOrderDoesNotMatter() throws IOException {
+        OutputCache cache = cache(true, Locale.GERMANY, true);
+        String key = cache.keyFor(event(Method.GET, "/list?b=2&a=1"), null);
+        assertEquals(key, cache.keyFor(event(Method.GET, "/list?a=1&b=2"), null));
+        assertEquals(key, cache.keyFor(event(Method.GET, "/list?a=1&&b=2"), null));
+        assertNotEquals(key, cache.keyFor(event(Method.GET, "/list?a=1&b=3"), null));
+        assertNotEquals(key, cache.keyFor(event(Method.GET, "/list"), null));
+    }
+
+    @Test
+    public void encodingIsPartOfKey() throws IOException {
+        OutputCache cache = cache(true, Locale.GERMANY, true);
+        HttpEvent evt = event(Method.GET, "/home");
+        String identity = cache.keyFor(evt, null);
+        String gzip = cache.keyFor(evt, Compression.Encoding.GZIP);
+        String deflate = cache.keyFor(evt, Compression.Encoding.DEFLATE);
+        assertNotEquals(identity, gzip);
+        assertNotEquals(identity, deflate);
+        assertNotEquals(gzip, deflate);
+    }
+
+    @Test
+    public void localeIsPartOfKey() throws IOException {
+        HttpEvent evt = event(Method.GET, "/home");
+        assertNotEquals(cache(true, Locale.GERMANY, true).keyFor(evt, null),
+                cache(true, Locale.FRANCE, true).keyFor(evt, null));
+    }
+
+    @Test
+    public void onlyStatelessBookmarkablePagesAreCacheable() throws IOException {
+        OutputCache cache = cache(true, Locale.GERMANY, true);
+        assertTrue(cache.isCacheable(render(page(true))));
+        // A stateful page belongs to a session
+        assertFalse(cache.isCacheable(render(page(false))));
+        // Nor is anything but a page render
+        assertFalse(cache.isCacheable((IRequestHandler) proxy(IRequestHandler.class, null)));
+        // A page which cannot be reached by URL alone is never requested
+        // the same way twice
+        assertFalse(cache(true, Locale.GERMANY, false).isCacheable(render(page(true))));
+    }
+
+    private static OutputCache cache(boolean enabled, final Locale locale, final boolean bookmarkable) throws IOException {
+        WicketConfig config = new WicketConfig() {
+            @Override
+            public Class<? extends Application> applicationClass() {
+                return null;
+            }
+
+            @Override
+            public Locale locale() {
+                return locale;
+            }
+        };
+        IPageFactory factory = (IPageFactory) proxy(IPageFactory.class, new Answer() {
+            @Override
+            public Object answer(java.lang.reflect.Method method, Object[] args) {
+                return "isBookmarkable".equals(method.getName()) ? bookmarkable : null;
+            }
+        });
+        return new OutputCache(new SettingsBuilder()
+                .add(WicketActeurModule.SETTINGS_KEY_OUTPUT_CACHE, Boolean.toString(enabled)).build(),
+                config, factory);
+    }
+
+    private static HttpEvent event(final Method method, String uri, final Cookie... cookies) {
+        final DefaultHttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.valueOf(method.name()), uri);
+        return (HttpEvent) proxy(HttpEvent.class, new Answer() {
+            @Override
+            public Object answer(java.lang.reflect.Method m, Object[] args) {
+                switch (m.getName()) {
+                    case "getMethod":
+                        return method;
+                    case "getRequest":
+                        return request;
+                    case "getHeader":
+                        return args[0] == Headers.COOKIE ? cookies : null;
+                    default:
+                        return null;
+                }
+            }
+        });
+    }
+
+    private static IRequestablePage page(final boolean stateless) {
+        return (IRequestablePage) proxy(IRequestablePage.class, new Answer() {
+            @Override
+            public Object answer(java.lang.reflect.Method method, Object[] args) {
+                return "isPageStateless".equals(method.getName()) ? stateless : null;
+            }
+        });
+    }
+
+    private static RenderPageRequestHandler render(final IRequestablePage page) {
+        return new RenderPageRequestHandler((IPageProvider) proxy(IPageProvider.class, new Answer() {
+            @Override
+            public Object answer(java.lang.reflect.Method method, Object[] args) {
+                return "getPageInstance".equals(method.getName()) ? page : null;
+            }
+        }));
+    }
+
+    interface Answer {
+
+        Object answer(java.lang.reflect.Method method, Object[] args);
+    }
+
+    /**
+     * A proxy for an interface, so the test does not depend on exactly
+     * which methods it has;  anything unanswered gets a default value.
+     */
+    private static Object proxy(Class<?> type, final Answer answer) {
+        return Proxy.newProxyInstance(OutputCacheTest.class.getClassLoader(), new Class<?>[]{type}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, java.lang.reflect.Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    case "toString":
+                        return "proxy-" + System.identityHashCode(proxy);
+                }
+                Object result = answer == null ? null : answer.answer(method, args);
+                Class<?> type = method.getReturnType();
+                if (result != null || !type.isPrimitive() || type == void.class) {
+                    return result;
+                } else if (type == boolean.class) {
+                    return false;
+                }
+                return type == long.class ? (Object) 0L : (Object) 0;
+            }
+        });
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.mastfrog.acteur.wicket.PackageResourceCache.Location;
+import com.mastfrog.acteur.wicket.PackageResourceCache.Versioning;
+import com.mastfrog.acteur.wicket.adapters.CachedResponse;
+import com.mastfrog.acteur.wicket.adapters.Compression;
+import com.mastfrog.acteur.wicket.adapters.FileResponse;
+import com.mastfrog.acteur.wicket.adapters.MimeTypes;
+import com.mastfrog.acteur.wicket.adapters.PreparedResponse;
+import com.mastfrog.acteur.wicket.borrowed.HomePage;
+import com.mastfrog.giulius.DeploymentMode;
+import com.mastfrog.giulius.ShutdownHookRegistry;
+import com.mastfrog.settings.SettingsBuilder;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import javax.inject.Provider;
+import javax.servlet.ServletContext;
+import org.apache.wicket.Application;
+import org.apache.wicket.ajax.AbstractDefaultAjaxBehavior;
+import org.apache.wicket.mock.MockApplication;
+import org.apache.wicket.request.resource.caching.FilenameWithVersionResourceCachingStrategy;
+import org.apache.wicket.request.resource.caching.IStaticCacheableResource;
+import org.apache.wicket.request.resource.caching.NoOpResourceCachingStrategy;
+import org.apache.wicket.request.resource.caching.QueryStringWithVersionResourceCachingStrategy;
+import org.apache.wicket.request.resource.caching.version.IResourceVersion;
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests parsing of resource URLs, and that the resource cache loads a miss
+ * once, in the background, and answers from memory afterwards - with a
+ * gzipped variant for compressible types, or from a file for large ones -
+ * and remembers resources it cannot serve.
+ *
+ * @author Tim Boudreau
+ */
+public class PackageResourceCacheTest {
+
+    private static final String SCOPE = PackageResourceCache.RESOURCE_PREFIX + HomePage.class.getName() + '/';
+    private static final Pattern HEX8 = Pattern.compile("[0-9a-f]{8}");
+    private WicketTester tester;
+    private Compression compression;
+    private CountingExecutor pool;
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        tester = new WicketTester(new MockApplication());
+        compression = new Compression(256, Arrays.asList("text/html", "text/css"), 6, 2);
+        pool = new CountingExecutor();
+        dir = Files.createTempDirectory("resource-cache-test").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        tester.destroy();
+        compression.close();
+        delete(dir);
+    }
+
+    @Test
+    public void versionInFileNameIsStripped() {
+        Versioning versioning = new Versioning("-ver-", null, HEX8);
+        Location location = Location.parse("com.foo.Bar/css/style-ver-0123abcd.css", null, versioning);
+        assertEquals("com.foo.Bar", location.className);
+        assertEquals("css/style.css", location.relativePath);
+        assertTrue(location.versioned);
+        Location noExtension = Location.parse("com.foo.Bar/LICENSE-ver-0123abcd", null, versioning);
+        assertEquals("LICENSE", noExtension.relativePath);
+        assertTrue(noExtension.versioned);
+        // Every version shares an entry
+        assertEquals(location.key, Location.parse("com.foo.Bar/css/style-ver-fedcba98.css", null, versioning).key);
+    }
+
+    @Test
+    public void onlyVersionsTheStrategyGeneratesCount() {
+        Versioning versioning = new Versioning("-ver-", null, HEX8);
+        // Not in the form the version takes
+        Location notVersion = Location.parse("com.foo.Bar/style-ver-latest.css", null, versioning);
+        assertEquals("style-ver-latest.css", notVersion.relativePath);
+        assertFalse(notVersion.versioned);
+        // The prefix in a directory name is not a version
+        Location inDirectory = Location.parse("com.foo.Bar/x-ver-0123abcd/style.css", null, versioning);
+        assertEquals("x-ver-0123abcd/style.css", inDirectory.relativePath);
+        assertFalse(inDirectory.versioned);
+        // Nor is a query string, for a strategy which puts versions in names
+        Location query = Location.parse("com.foo.Bar/style.css", "v=0123abcd", versioning);
+        assertFalse(query.versioned);
+        assertNotEquals(Location.parse("com.foo.Bar/style-ver-0123abcd.css", null, versioning).key, query.key);
+    }
+
+    @Test
+    public void versionInQueryString() {
+        Versioning versioning = new Versioning(null, "ver", HEX8);
+        assertTrue(Location.parse("com.foo.Bar/style.css", "ver=0123abcd", versioning).versioned);
+        assertTrue(Location.parse("com.foo.Bar/style.css", "x=1&ver=0123abcd", versioning).versioned);
+        assertFalse(Location.parse("com.foo.Bar/style.css", "ver=latest", versioning).versioned);
+        assertFalse(Location.parse("com.foo.Bar/style.css", "other=0123abcd", versioning).versioned);
+        assertFalse(Location.parse("com.foo.Bar/style.css", null, versioning).versioned);
+        assertFalse(Location.parse("com.foo.Bar/style.css", "ver=0123abcd", Versioning.NONE).versioned);
+    }
+
+    @Test
+    public void invalidLocations() {
+        assertNull(Location.parse("com.foo.Bar", null, Versioning.NONE));
+        assertNull(Location.parse("/style.css", null, Versioning.NONE));
+        assertNull(Location.parse("com.foo.Bar/", null, Versioning.NONE));
+        assertNull(Location.parse("com.foo.Bar/../secret.properties", null, Versioning.NONE));
+        assertNull(Location.parse("com.foo.Bar/%zz.css", null, Versioning.NONE));
+        assertEquals("a b.css", Location.parse("com.foo.Bar/a%20b.css", null, Versioning.NONE).relativePath);
+    }
+
+    @Test
+    public void versioningIsReadFromTheCachingStrategy() {
+        Versioning filename = Versioning.of(new FilenameWithVersionResourceCachingStrategy("-v-", new HexVersion()));
+        assertEquals("-v-", filename.prefix);
+        assertNull(filename.parameter);
+        assertTrue(filename.isVersion("0123abcd"));
+        assertFalse(filename.isVersion("0123"));
+        Versioning query = Versioning.of(new QueryStringWithVersionResourceCachingStrategy("rev", new HexVersion()));
+        assertNull(query.prefix);
+        assertEquals("rev", query.parameter);
+        assertSame(Versioning.NONE, Versioning.of(NoOpResourceCachingStrategy.INSTANCE));
+    }
+
+    @Test
+    public void missIsLoadedOnceThenServedFromMemory() throws IOException {
+        PackageResourceCache cache = cache(DeploymentMode.PRODUCTION);
+        assertTrue(cache.isEnabled());
+        // Wicket answers the miss while the resource loads
+        assertNull(cache.find(SCOPE + "main_style.css", null, null));
+        assertEquals(1, pool.executed.get());
+        PreparedResponse hit = cache.find(SCOPE + "main_style.css", null, null);
+        assertNotNull(hit);
+        assertTrue(hit instanceof CachedResponse);
+        assertSame(hit, cache.find(SCOPE + "main_style.css", null, null));
+        assertEquals(1, pool.executed.get());
+    }
+
+    @Test
+    public void compressibleResourcesHaveGzipVariant() throws IOException {
+        PackageResourceCache cache = cache(DeploymentMode.PRODUCTION);
+        assertNull(cache.find(SCOPE + "style.css", null, null));
+        PreparedResponse identity = cache.find(SCOPE + "style.css", null, null);
+        PreparedResponse gzip = cache.find(SCOPE + "style.css", null, "gzip, deflate");
+        assertNotNull(identity);
+        assertNotSame(identity, gzip);
+        assertTrue(((CachedResponse) gzip).size() < ((CachedResponse) identity).size());
+        // Only gzip is kept
+        assertSame(identity, cache.find(SCOPE + "style.css", null, "deflate"));
+        // Images are not compressible
+        assertNull(cache.find(SCOPE + "wicket-bg.png", null, "gzip"));
+        PreparedResponse image = cache.find(SCOPE + "wicket-bg.png", null, "gzip");
+        assertNotNull(image);
+        assertSame(image, cache.find(SCOPE + "wicket-bg.png", null, null));
+    }
+
+    @Test
+    public void resourcesWhichCannotBeServedAreRemembered() throws IOException {
+        PackageResourceCache cache = cache(DeploymentMode.PRODUCTION);
+        String[] misses = {SCOPE + "no-such-file.css", PackageResourceCache.RESOURCE_PREFIX + "com.foo.NoSuchClass/style.css"};
+        for (String miss : misses) {
+            int before = pool.executed.get();
+            assertNull(cache.find(miss, null, null));
+            assertEquals(before + 1, pool.executed.get());
+            // Not looked up again
+            assertNull(cache.find(miss, null, null));
+            assertNull(cache.find(miss, null, "gzip"));
+            assertEquals(before + 1, pool.executed.get());
+        }
+    }
+
+    @Test
+    public void largeResourcesAreServedFromFiles() throws IOException {
+        PackageResourceCache cache = cache(DeploymentMode.PRODUCTION,
+                WicketActeurModule.SETTINGS_KEY_RESOURCE_CACHE_MAX_FILE_KB, "0",
+                WicketActeurModule.SETTINGS_KEY_RESOURCE_FILE_DIR, dir.getPath());
+        // Already a plain file on the classpath - served from where it is
+        assertNull(cache.find(SCOPE + "style.css", null, "gzip"));
+        PreparedResponse file = cache.find(SCOPE + "style.css", null, "gzip");
+        assertTrue(String.valueOf(file), file instanceof FileResponse);
+        assertEquals(0, dir.list().length);
+        // In a jar - extracted once
+        String inJar = PackageResourceCache.RESOURCE_PREFIX + AbstractDefaultAjaxBehavior.class.getName() + "/indicator.gif";
+        assertNull(cache.find(inJar, null, null));
+        assertTrue(cache.find(inJar, null, null) instanceof FileResponse);
+        assertEquals(1, dir.list().length);
+    }
+
+    @Test
+    public void largeResourcesAreLeftToWicketWithoutFileRegions() throws IOException {
+        PackageResourceCache cache = cache(DeploymentMode.PRODUCTION,
+                WicketActeurModule.SETTINGS_KEY_RESOURCE_CACHE_MAX_FILE_KB, "0",
+                WicketActeurModule.SETTINGS_KEY_RESOURCE_FILE_REGIONS, "false");
+        assertNull(cache.find(SCOPE + "style.css", null, null));
+        assertNull(cache.find(SCOPE + "style.css", null, null));
+        assertEquals(1, pool.executed.get());
+    }
+
+    @Test
+    public void requestsLeftToWicket() throws IOException {
+        PackageResourceCache cache = cache(DeploymentMode.PRODUCTION);
+        // Style, variation or locale attributes
+        assertNull(cache.find(SCOPE + "style.css", "-de_DE", null));
+        // Not a resource URL, or not a valid one
+        assertNull(cache.find("wicket/page?3", null, null));
+        assertNull(cache.find(SCOPE + "../secret.properties", null, null));
+        assertEquals(0, pool.executed.get());
+    }
+
+    @Test
+    public void offByDefaultInDevelopmentMode() throws IOException {
+        PackageResourceCache cache = cache(DeploymentMode.DEVELOPMENT);
+        assertFalse(cache.isEnabled());
+        assertNull(cache.find(SCOPE + "style.css", null, null));
+        assertNull(cache.find(SCOPE + "style.css", null, null));
+        assertEquals(0, pool.executed.get());
+        assertTrue(cache(DeploymentMode.DEVELOPMENT, WicketActeurModule.SETTINGS_KEY_RESOURCE_FAST_PATH, "true").isEnabled());
+    }
+
+    private PackageResourceCache cache(DeploymentMode mode, String... settings) throws IOException {
+        SettingsBuilder sb = new SettingsBuilder();
+        for (int i = 0; i < settings.length; i += 2) {
+            sb.add(settings[i], settings[i + 1]);
+        }
+        final Application app = tester.getApplication();
+        Provider<Application> application = new Provider<Application>() {
+            @Override
+            public Application get() {
+                return app;
+            }
+        };
+        WicketConfig config = new WicketConfig() {
+            @Override
+            public Class<? extends Application> applicationClass() {
+                return app.getClass();
+            }
+
+            @Override
+            public Locale locale() {
+                return Locale.US;
+            }
+        };
+        return new PackageResourceCache(sb.build(), application, compression,
+                new MimeTypes(Collections.<String, String>emptyMap()), config, servletContext(dir),
+                new SessionRequestExecutor(pool), mode, ShutdownHookRegistry.get());
+    }
+
+    static ServletContext servletContext(final File tempDir) {
+        return (ServletContext) Proxy.newProxyInstance(PackageResourceCacheTest.class.getClassLoader(),
+                new Class<?>[]{ServletContext.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("getAttribute".equals(method.getName()) && FakeServletContext.TEMP_DIR_ATTRIBUTE.equals(args[0])) {
+                    return tempDir;
+                }
+                return method.getReturnType() == boolean.class ? false : null;
+            }
+        });
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static final class HexVersion implements IResourceVersion {
+
+        @Override
+        public String getVersion(IStaticCacheableResource resource) {
+            return "0123abcd";
+        }
+
+        @Override
+        public Pattern getVersionPattern() {
+            return HEX8;
+        }
+    }
+
+    /**
+     * Runs work on the calling thread, so a miss is loaded by the time
+     * find() returns, counting how much was submitted.
+     */
+    static final class CountingExecutor extends AbstractExecutorService {
+
+        final AtomicInteger executed = new AtomicInteger();
+        private volatile boolean shutdown;
+
+        @Override
+        public void execute(Runnable command) {
+            executed.incrementAndGet();
+            command.run();
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown = true;
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests the off-heap page index, including against a plain map under random
+ * operations, which exercises growth, tombstones and the per-session chains.
+ *
+ * @author Tim Boudreau
+ */
+public class PageIndexTest {
+
+    @Test
+    public void putGetRemove() {
+        PageIndex index = new PageIndex(16);
+        long a = PageIndex.hash("session-a");
+        long b = PageIndex.hash("session-b");
+        assertEquals(-1, index.put(a, 1, 3, 100));
+        assertEquals(-1, index.put(b, 1, 4, 200));
+        assertEquals(PageIndex.location(3, 100), index.get(a, 1));
+        assertEquals(PageIndex.location(4, 200), index.get(b, 1));
+        assertEquals(PageIndex.location(3, 100), index.put(a, 1, 5, 300));
+        assertEquals(2, index.size());
+        assertEquals(PageIndex.location(5, 300), index.remove(a, 1));
+        assertEquals(-1, index.get(a, 1));
+        assertEquals(-1, index.remove(a, 1));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void locationPacking() {
+        long location = PageIndex.location(7, Integer.MAX_VALUE);
+        assertEquals(7, PageIndex.segment(location));
+        assertEquals(Integer.MAX_VALUE, PageIndex.offset(location));
+    }
+
+    @Test
+    public void removeSessionVisitsOnlyItsOwnPages() {
+        PageIndex index = new PageIndex(16);
+        long a = PageIndex.hash("session-a");
+        long b = PageIndex.hash("session-b");
+        for (int i = 0; i < 100; i++) {
+            index.put(a, i, 1, i);
+            index.put(b, i, 2, i);
+        }
+        // Break up a's chain in the middle and at both ends
+        index.remove(a, 0);
+        index.remove(a, 50);
+        index.remove(a, 99);
+        final Set<Long> visited = new HashSet<>();
+        index.removeSession(a, new PageIndex.Visitor() {
+            @Override
+            public void visit(int segment, int offset) {
+                assertEquals(1, segment);
+                visited.add(PageIndex.location(segment, offset));
+            }
+        });
+        assertEquals(97, visited.size());
+        assertEquals(100, index.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(-1, index.get(a, i));
+            assertEquals(PageIndex.location(2, i), index.get(b, i));
+        }
+        // A session can come back after being removed
+        index.put(a, 1, 1, 1);
+        assertEquals(PageIndex.location(1, 1), index.get(a, 1));
+    }
+
+    @Test
+    public void relocateAndRemoveSegment() {
+        PageIndex index = new PageIndex(16);
+        long a = PageIndex.hash("session-a");
+        for (int i = 0; i < 10; i++) {
+            index.put(a, i, i % 2, i);
+        }
+        index.relocateSegment(0, new PageIndex.Relocator() {
+            @Override
+            public long relocate(int offset) {
+                // Keep half of them, in segment 2
+                return offset % 4 == 0 ? PageIndex.location(2, offset) : -1;
+            }
+        });
+        index.removeSegment(1);
+        assertEquals(3, index.size());
+        assertEquals(PageIndex.location(2, 0), index.get(a, 0));
+        assertEquals(PageIndex.location(2, 4), index.get(a, 4));
+        assertEquals(PageIndex.location(2, 8), index.get(a, 8));
+        final int[] count = new int[1];
+        index.removeSession(a, new PageIndex.Visitor() {
+            @Override
+            public void visit(int segment, int offset) {
+                count[0]++;
+            }
+        });
+        assertEquals(3, count[0]);
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void matchesAMapUnderRandomOperations() {
+        Random random = new Random(42);
+        PageIndex index = new PageIndex(16);
+        Map<Long, Map<Integer, Long>> expected = new HashMap<>();
+        for (int n = 0; n < 200000; n++) {
+            long session = random.nextInt(200);
+            int page = random.nextInt(30);
+            Map<Integer, Long> pages = expected.get(session);
+            int op = random.nextInt(10);
+            if (op < 6) {
+                int segment = random.nextInt(8);
+                // Unique, so every location visited is distinct
+                int offset = n;
+                if (pages == null) {
+                    expected.put(session, pages = new HashMap<>());
+                }
+                Long old = pages.put(page, PageIndex.location(segment, offset));
+                assertEquals(old == null ? -1 : old, index.put(session, page, segment, offset));
+            } else if (op < 9) {
+                Long old = pages == null ? null : pages.remove(page);
+                assertEquals(old == null ? -1 : old, index.remove(session, page));
+            } else {
+                final Set<Long> visited = new HashSet<>();
+                index.removeSession(session, new PageIndex.Visitor() {
+                    @Override
+                    public void visit(int segment, int offset) {
+                        assertTrue(visited.add(PageIndex.location(segment, offset)));
+                    }
+                });
+                Set<Long> want = pages == null ? new HashSet<Long>() : new HashSet<>(pages.values());
+                assertEquals(want, visited);
+                expected.remove(session);
+            }
+        }
+        int size = 0;
+        for (Map<Integer, Long> pages : expected.values()) {
+            size += pages.size();
+        }
+        assertEquals(size, index.size());
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.wicket.page.IManageablePage;
+import org.apache.wicket.pageStore.IPageStore;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests that page writes made during a request cycle are deferred until
+ * flushed, coalesced, and written before anything reads them back.
+ *
+ * @author Tim Boudreau
+ */
+public class PageWriteBehindTest {
+
+    private final FakePageStore delegate = new FakePageStore();
+    private final PageWriteBehind writeBehind = new PageWriteBehind(100);
+    private final IPageStore store = writeBehind.wrap(delegate.proxy());
+
+    @Test
+    public void writesOutsideACycleAreSynchronous() {
+        IManageablePage page = page(1);
+        store.storePage("s", page);
+        assertSame(page, delegate.pages.get("s:1"));
+        assertEquals(0, writeBehind.pending());
+    }
+
+    @Test
+    public void writesAreDeferredUntilFlush() {
+        writeBehind.begin();
+        IManageablePage page = page(1);
+        store.storePage("s", page);
+        assertTrue(delegate.stored.isEmpty());
+        assertEquals(1, writeBehind.pending());
+        writeBehind.flush();
+        assertSame(page, delegate.pages.get("s:1"));
+        assertEquals(0, writeBehind.pending());
+        // A second flush has nothing to do
+        writeBehind.flush();
+        assertEquals(1, delegate.stored.size());
+    }
+
+    @Test
+    public void versionsOfAPageAreCoalesced() {
+        writeBehind.begin();
+        IManageablePage latest = null;
+        for (int i = 0; i < 10; i++) {
+            latest = page(1);
+            store.storePage("s", latest);
+        }
+        store.storePage("t", page(1));
+        assertEquals(2, writeBehind.pending());
+        writeBehind.flush();
+        assertEquals(2, delegate.stored.size());
+        assertSame(latest, delegate.pages.get("s:1"));
+    }
+
+    @Test
+    public void pendingPagesAreWrittenBeforeTheyAreRead() {
+        writeBehind.begin();
+        IManageablePage page = page(1);
+        store.storePage("s", page);
+        assertSame(page, store.getPage("s", 1));
+        assertEquals(1, delegate.stored.size());
+        writeBehind.flush();
+        assertEquals(1, delegate.stored.size());
+    }
+
+    @Test
+    public void removedPagesAreNotWritten() {
+        writeBehind.begin();
+        store.storePage("s", page(1));
+        store.storePage("s", page(2));
+        store.removePage("s", 1);
+        writeBehind.flush();
+        assertEquals(1, delegate.stored.size());
+        assertNull(delegate.pages.get("s:1"));
+        assertTrue(delegate.pages.containsKey("s:2"));
+        assertEquals(0, writeBehind.pending());
+    }
+
+    @Test
+    public void unbindDiscardsOnlyThatSession() {
+        writeBehind.begin();
+        store.storePage("s", page(1));
+        store.storePage("s", page(2));
+        store.storePage("t", page(1));
+        store.unbind("s");
+        writeBehind.flush();
+        assertEquals(1, delegate.stored.size());
+        assertTrue(delegate.pages.containsKey("t:1"));
+        assertTrue(delegate.unbound.contains("s"));
+    }
+
+    @Test
+    public void fullQueueWritesSynchronously() {
+        PageWriteBehind small = new PageWriteBehind(2);
+        IPageStore smallStore = small.wrap(delegate.proxy());
+        small.begin();
+        smallStore.storePage("s", page(1));
+        smallStore.storePage("s", page(2));
+        assertTrue(delegate.stored.isEmpty());
+        smallStore.storePage("s", page(3));
+        assertEquals(1, delegate.stored.size());
+        assertTrue(delegate.pages.containsKey("s:3"));
+        assertEquals(2, small.pending());
+        small.flush();
+        assertEquals(3, delegate.stored.size());
+        assertEquals(0, small.pending());
+    }
+
+    @Test
+    public void disabledWritesSynchronously() {
+        PageWriteBehind disabled = new PageWriteBehind(0);
+        assertFalse(disabled.isEnabled());
+        disabled.begin();
+        IPageStore disabledStore = disabled.wrap(delegate.proxy());
+        disabledStore.storePage("s", page(1));
+        assertEquals(1, delegate.stored.size());
+        disabled.flush();
+        assertEquals(1, delegate.stored.size());
+    }
+
+    @Test
+    public void pagesPendingOnAnotherThreadAreWrittenBeforeTheyAreRead() throws InterruptedException {
+        final IManageablePage page = page(1);
+        final CountDownLatch queued = new CountDownLatch(1);
+        final CountDownLatch read = new CountDownLatch(1);
+        Thread cycle = new Thread() {
+            @Override
+            public void run() {
+                writeBehind.begin();
+                store.storePage("s", page);
+                queued.countDown();
+                try {
+                    read.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                writeBehind.flush();
+            }
+        };
+        cycle.start();
+        assertTrue(queued.await(10, TimeUnit.SECONDS));
+        assertSame(page, store.getPage("s", 1));
+        read.countDown();
+        cycle.join(10000);
+        assertEquals(1, delegate.stored.size());
+    }
+
+    private static IManageablePage page(final int id) {
+        return (IManageablePage) Proxy.newProxyInstance(PageWriteBehindTest.class.getClassLoader(),
+                new Class<?>[]{IManageablePage.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "getPageId":
+                        return id;
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    case "toString":
+                        return "page-" + id;
+                    default:
+                        return method.getReturnType() == boolean.class ? false : null;
+                }
+            }
+        });
+    }
+
+    /**
+     * A page store which records what it is asked to do - a proxy, so it
+     * does not depend on exactly which methods IPageStore has.
+     */
+    static final class FakePageStore implements InvocationHandler {
+
+        final Map<String, IManageablePage> pages = new ConcurrentHashMap<>();
+        final List<IManageablePage> stored = new CopyOnWriteArrayList<>();
+        final List<String> unbound = new CopyOnWriteArrayList<>();
+
+        IPageStore proxy() {
+            return (IPageStore) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[]{IPageStore.class}, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "storePage":
+                    IManageablePage page = (IManageablePage) args[1];
+                    stored.add(page);
+                    pages.put(args[0] + ":" + page.getPageId(), page);
+                    return null;
+                case "getPage":
+                    return pages.get(args[0] + ":" + args[1]);
+                case "removePage":
+                    pages.remove(args[0] + ":" + args[1]);
+                    return null;
+                case "unbind":
+                    unbound.add((String) args[0]);
+                    return null;
+                case "prepareForSerialization":
+                case "restoreAfterSerialization":
+                    return args[args.length - 1];
+                default:
+                    return method.getReturnType() == boolean.class ? false : null;
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.mastfrog.acteur.wicket.ActeurSessionStore.SessionImpl;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests the timer wheel against the real clock, with short ticks.
+ *
+ * @author Tim Boudreau
+ */
+public class SessionExpiryTest {
+
+    private SessionExpiry expiry;
+
+    @After
+    public void shutdown() {
+        if (expiry != null) {
+            expiry.shutdown();
+        }
+    }
+
+    @Test
+    public void idleSessionExpires() throws InterruptedException {
+        Recorder rec = new Recorder(1);
+        expiry = new SessionExpiry("test-expiry", 200, 20, rec);
+        SessionImpl session = new SessionImpl(new SessionId());
+        long start = System.currentTimeMillis();
+        expiry.schedule(session);
+        assertTrue("Not expired", rec.latch.await(5, TimeUnit.SECONDS));
+        assertTrue(rec.expired.contains(session));
+        assertTrue("Expired early", System.currentTimeMillis() - start >= 200 - 20);
+    }
+
+    @Test
+    public void touchedSessionIsRescheduled() throws InterruptedException {
+        Recorder rec = new Recorder(1);
+        expiry = new SessionExpiry("test-expiry", 200, 20, rec);
+        SessionImpl session = new SessionImpl(new SessionId());
+        expiry.schedule(session);
+        long until = System.currentTimeMillis() + 600;
+        while (System.currentTimeMillis() < until) {
+            session.touch();
+            Thread.sleep(20);
+        }
+        assertFalse("Expired while in use", rec.expired.contains(session));
+        assertTrue("Not expired once idle", rec.latch.await(5, TimeUnit.SECONDS));
+        assertTrue(rec.expired.contains(session));
+    }
+
+    @Test
+    public void overdueSessionIsNotParkedForARevolution() throws InterruptedException {
+        // A revolution of the wheel is about 2.1 seconds;  a session whose
+        // deadline has already passed must go in the next slot, not one the
+        // wheel has already visited
+        Recorder rec = new Recorder(1);
+        expiry = new SessionExpiry("test-expiry", 2000, 50, rec);
+        SessionImpl session = new SessionImpl(new SessionId());
+        Thread.sleep(2100);
+        expiry.schedule(session);
+        assertTrue("Overdue session waited for the wheel to come around",
+                rec.latch.await(750, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void invalidSessionIsSkipped() throws InterruptedException {
+        Recorder rec = new Recorder(1);
+        expiry = new SessionExpiry("test-expiry", 100, 10, rec);
+        SessionImpl dead = new SessionImpl(new SessionId());
+        SessionImpl live = new SessionImpl(new SessionId());
+        expiry.schedule(dead);
+        expiry.schedule(live);
+        dead.invalidated();
+        assertTrue(rec.latch.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(1, rec.expired.size());
+        assertTrue(rec.expired.contains(live));
+    }
+
+    @Test
+    public void trimEvictsLeastRecentlyUsedFirst() throws InterruptedException {
+        Recorder rec = new Recorder(1);
+        expiry = new SessionExpiry("test-expiry", 60000, 10, rec);
+        SessionImpl oldest = new SessionImpl(new SessionId());
+        Thread.sleep(50);
+        SessionImpl newest = new SessionImpl(new SessionId());
+        expiry.schedule(newest);
+        expiry.schedule(oldest);
+        rec.excess = 1;
+        expiry.trim();
+        assertTrue("Nothing evicted", rec.evictedLatch.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(1, rec.evicted.size());
+        assertTrue(rec.evicted.contains(oldest));
+        assertTrue(rec.expired.isEmpty());
+    }
+
+    private static final class Recorder implements SessionExpiry.Expirer {
+
+        final Set<SessionImpl> expired = Collections.newSetFromMap(new ConcurrentHashMap<SessionImpl, Boolean>());
+        final Set<SessionImpl> evicted = Collections.newSetFromMap(new ConcurrentHashMap<SessionImpl, Boolean>());
+        final CountDownLatch latch;
+        final CountDownLatch evictedLatch = new CountDownLatch(1);
+        volatile long excess;
+
+        Recorder(int count) {
+            latch = new CountDownLatch(count);
+        }
+
+        @Override
+        public void expire(SessionImpl session) {
+            session.invalidated();
+            expired.add(session);
+            latch.countDown();
+        }
+
+        @Override
+        public long evict(SessionImpl session) {
+            evicted.add(session);
+            excess = 0;
+            evictedLatch.countDown();
+            return 1;
+        }
+
+        @Override
+        public long excessBytes() {
+            return excess;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashSet;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests the string form of session ids - that it is URL-safe, fixed length
+ * and parses back to an equal id, and that anything else is rejected.
+ *
+ * @author Tim Boudreau
+ */
+public class SessionIdTest {
+
+    private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+
+    @Test
+    public void roundTrip() {
+        for (int i = 0; i < 1000; i++) {
+            SessionId id = new SessionId();
+            String s = id.toString();
+            assertEquals(SessionId.LENGTH, s.length());
+            for (int j = 0; j < s.length(); j++) {
+                assertTrue(s, ALPHABET.indexOf(s.charAt(j)) >= 0);
+            }
+            assertTrue(s, ALPHABET.indexOf(s.charAt(0)) <= 0xF);
+            assertTrue(s, ALPHABET.indexOf(s.charAt(SessionId.LENGTH / 2)) <= 0xF);
+            SessionId parsed = SessionId.parse(s);
+            assertEquals(id, parsed);
+            assertEquals(id.hashCode(), parsed.hashCode());
+            assertEquals(s, parsed.toString());
+        }
+    }
+
+    @Test
+    public void extremeValues() {
+        // All bits clear and all bits set
+        assertEquals("AAAAAAAAAAAAAAAAAAAAAA", SessionId.parse("AAAAAAAAAAAAAAAAAAAAAA").toString());
+        assertEquals("P__________P__________", SessionId.parse("P__________P__________").toString());
+        assertNotEquals(SessionId.parse("AAAAAAAAAAAAAAAAAAAAAA"), SessionId.parse("AAAAAAAAAAAAAAAAAAAAAB"));
+        assertNotEquals(SessionId.parse("AAAAAAAAAAAAAAAAAAAAAA"), SessionId.parse("AAAAAAAAAAABAAAAAAAAAA"));
+    }
+
+    @Test
+    public void malformedValuesAreRejected() {
+        String good = new SessionId().toString();
+        assertNull(SessionId.parse(null));
+        assertNull(SessionId.parse(""));
+        assertNull(SessionId.parse(good.substring(1)));
+        assertNull(SessionId.parse(good + "A"));
+        assertNull(SessionId.parse("AAAAAAAAAA+AAAAAAAAAAA"));
+        assertNull(SessionId.parse("AAAAAAAAAA/AAAAAAAAAAA"));
+        assertNull(SessionId.parse("AAAAAAAAAA=AAAAAAAAAAA"));
+        assertNull(SessionId.parse("AAAAAAAAAA\u00e9AAAAAAAAAAA"));
+        // Too many bits for a long in the first character of either half
+        assertNull(SessionId.parse("QAAAAAAAAAAAAAAAAAAAAA"));
+        assertNull(SessionId.parse("AAAAAAAAAAAQAAAAAAAAAA"));
+        // An old-style UUID, as in cookies set by earlier versions
+        assertNull(SessionId.parse("0f8fad5b-d9cb-469f-a165-70867728950e"));
+    }
+
+    @Test
+    public void idsAreUnique() {
+        Set<SessionId> ids = new HashSet<>();
+        Set<String> strings = new HashSet<>();
+        for (int i = 0; i < 10000; i++) {
+            SessionId id = new SessionId();
+            assertTrue(ids.add(id));
+            assertTrue(strings.add(id.toString()));
+        }
+    }
+
+    @Test
+    public void serializable() throws IOException, ClassNotFoundException {
+        SessionId id = new SessionId();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ObjectOutputStream oo = new ObjectOutputStream(out)) {
+            oo.writeObject(id);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            SessionId read = (SessionId) in.readObject();
+            assertNotNull(read.toString());
+            assertEquals(id, read);
+            assertEquals(id.toString(), read.toString());
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Round-trips session attributes through the passivation files.
+ *
+ * @author Tim Boudreau
+ */
+public class SessionPassivatorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private File dir;
+    private SessionPassivator passivator;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = folder.newFolder("sessions");
+        passivator = new SessionPassivator(dir, SessionPassivatorTest.class.getClassLoader());
+    }
+
+    @After
+    public void tearDown() {
+        passivator.shutdown();
+    }
+
+    @Test
+    public void attributesSurviveWriteAndRead() throws Exception {
+        Map<String, Serializable> attributes = attributes(1);
+        SessionPassivator.Record record = write(passivator.serialize(attributes));
+        assertNotNull("Write failed", record);
+        assertEquals(attributes, passivator.read(record).get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void recordsShareASegmentWithoutOverlapping() throws Exception {
+        List<SessionPassivator.Record> records = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            records.add(write(passivator.serialize(attributes(i))));
+        }
+        for (int i = 0; i < records.size(); i++) {
+            assertEquals(attributes(i), passivator.read(records.get(i)).get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(records.get(0).segment, records.get(19).segment);
+        for (SessionPassivator.Record record : records) {
+            passivator.release(record);
+        }
+    }
+
+    @Test
+    public void inMemoryCopyDeserializes() throws Exception {
+        // What a session is restored from before the writer gets to it
+        Map<String, Serializable> attributes = attributes(3);
+        assertEquals(attributes, passivator.deserialize(passivator.serialize(attributes)));
+    }
+
+    @Test
+    public void shutdownDeletesFiles() throws Exception {
+        assertNotNull(write(passivator.serialize(attributes(2))));
+        assertTrue(dir.list().length > 0);
+        passivator.shutdown();
+        for (String name : dir.list()) {
+            assertFalse(name, name.startsWith("sessions-"));
+        }
+    }
+
+    private SessionPassivator.Record write(byte[] bytes) throws InterruptedException {
+        final AtomicReference<SessionPassivator.Record> result = new AtomicReference<>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        passivator.write(bytes, new SessionPassivator.Written() {
+            @Override
+            public void written(SessionPassivator.Record record) {
+                result.set(record);
+                latch.countDown();
+            }
+        });
+        assertTrue("Write never completed", latch.await(10, TimeUnit.SECONDS));
+        return result.get();
+    }
+
+    private static Map<String, Serializable> attributes(int n) {
+        Map<String, Serializable> result = new HashMap<>();
+        result.put("number", n);
+        result.put("name", "session-" + n);
+        result.put("list", new ArrayList<>(Arrays.asList("a", "b", Integer.toString(n))));
+        return result;
+    }
+}
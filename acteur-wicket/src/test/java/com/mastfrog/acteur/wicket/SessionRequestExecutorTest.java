@@ -0,0 +1,233 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests that requests for one session run in order, one at a time, while
+ * requests for different sessions run in parallel.
+ *
+ * @author Tim Boudreau
+ */
+public class SessionRequestExecutorTest {
+
+    private final ExecutorService pool = Executors.newFixedThreadPool(8);
+    private final SessionRequestExecutor executor = new SessionRequestExecutor(pool);
+
+    @After
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void sameSessionRunsInOrderOneAtATime() throws InterruptedException {
+        SessionId session = new SessionId();
+        final int count = 200;
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            executor.submit(session, new Runnable() {
+                @Override
+                public void run() {
+                    if (active.incrementAndGet() != 1) {
+                        overlaps.incrementAndGet();
+                    }
+                    order.add(index);
+                    Thread.yield();
+                    active.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue("Not all run", done.await(10, TimeUnit.SECONDS));
+        assertEquals("Ran concurrently", 0, overlaps.get());
+        for (int i = 0; i < count; i++) {
+            assertEquals("Out of order", Integer.valueOf(i), order.get(i));
+        }
+    }
+
+    @Test
+    public void differentSessionsRunInParallel() throws InterruptedException {
+        // Each task waits for the other - if the two sessions were
+        // serialized, neither could get past the barrier
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final CountDownLatch done = new CountDownLatch(2);
+        final AtomicInteger passed = new AtomicInteger();
+        Runnable meet = new Runnable() {
+            @Override
+            public void run() {
+                if (await(barrier)) {
+                    passed.incrementAndGet();
+                }
+                done.countDown();
+            }
+        };
+        executor.submit(new SessionId(), meet);
+        executor.submit(new SessionId(), meet);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(2, passed.get());
+    }
+
+    @Test
+    public void blockedSessionDoesNotHoldUpOthers() throws InterruptedException {
+        SessionId blocked = new SessionId();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch queuedRan = new CountDownLatch(1);
+        final CountDownLatch otherRan = new CountDownLatch(1);
+        executor.submit(blocked, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        executor.submit(blocked, countDown(queuedRan));
+        executor.submit(new SessionId(), countDown(otherRan));
+        assertTrue("Other session held up", otherRan.await(10, TimeUnit.SECONDS));
+        assertEquals("Ran ahead of the blocked request", 1, queuedRan.getCount());
+        release.countDown();
+        assertTrue(queuedRan.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void requestsWithoutSessionAreNotOrdered() throws InterruptedException {
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final CountDownLatch done = new CountDownLatch(2);
+        final AtomicInteger passed = new AtomicInteger();
+        Runnable meet = new Runnable() {
+            @Override
+            public void run() {
+                if (await(barrier)) {
+                    passed.incrementAndGet();
+                }
+                done.countDown();
+            }
+        };
+        executor.submit(null, meet);
+        executor.submit(null, meet);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(2, passed.get());
+    }
+
+    @Test
+    public void failedRequestDoesNotStopTheQueue() throws InterruptedException {
+        SessionId session = new SessionId();
+        CountDownLatch after = new CountDownLatch(1);
+        executor.submit(session, new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("Expected");
+            }
+        });
+        executor.submit(session, countDown(after));
+        assertTrue(after.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void sessionCanSubmitAgainAfterItsQueueDrains() throws InterruptedException {
+        // The first queue retires itself once empty;  later work must get
+        // a new one rather than be lost
+        SessionId session = new SessionId();
+        for (int i = 0; i < 50; i++) {
+            CountDownLatch ran = new CountDownLatch(1);
+            executor.submit(session, countDown(ran));
+            assertTrue("Lost request " + i, ran.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void virtualThreadsOnlyWhereSupported() throws Exception {
+        boolean supported;
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            supported = true;
+        } catch (NoSuchMethodException e) {
+            supported = false;
+        }
+        ExecutorService virtual = SessionRequestExecutor.newVirtualThreadExecutor();
+        if (!supported) {
+            // The caller falls back to a platform thread pool
+            assertNull(virtual);
+            return;
+        }
+        assertNotNull(virtual);
+        try {
+            SessionRequestExecutor onVirtual = new SessionRequestExecutor(virtual);
+            final Thread[] thread = new Thread[1];
+            final CountDownLatch ran = new CountDownLatch(1);
+            onVirtual.submit(new SessionId(), new Runnable() {
+                @Override
+                public void run() {
+                    thread[0] = Thread.currentThread();
+                    ran.countDown();
+                }
+            });
+            assertTrue(ran.await(10, TimeUnit.SECONDS));
+            assertEquals(Boolean.TRUE, Thread.class.getMethod("isVirtual").invoke(thread[0]));
+        } finally {
+            virtual.shutdownNow();
+        }
+    }
+
+    private static Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+
+    private static boolean await(CyclicBarrier barrier) {
+        try {
+            barrier.await(5, TimeUnit.SECONDS);
+            return true;
+        } catch (InterruptedException | BrokenBarrierException | TimeoutException e) {
+            return false;
+        }
+    }
+}
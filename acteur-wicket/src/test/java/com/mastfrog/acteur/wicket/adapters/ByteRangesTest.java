@@ -0,0 +1,184 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket.adapters;
+
+import static com.mastfrog.acteur.wicket.adapters.ValidatorsTest.date;
+import static com.mastfrog.acteur.wicket.adapters.ValidatorsTest.headers;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.LastHttpContent;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+/**
+ * Tests Range header parsing, If-Range and the framing of
+ * multipart/byteranges bodies.
+ *
+ * @author Tim Boudreau
+ */
+public class ByteRangesTest {
+
+    private static final byte[] BODY = "0123456789abcdefghij".getBytes(StandardCharsets.US_ASCII);
+    private static final DateTime MODIFIED = new DateTime(2015, 3, 14, 15, 9, 26, 0, DateTimeZone.UTC);
+
+    @Test
+    public void singleRanges() {
+        assertRanges(ByteRanges.parse("bytes=0-4", 20), 0, 4);
+        assertRanges(ByteRanges.parse("bytes=5-", 20), 5, 19);
+        assertRanges(ByteRanges.parse("bytes=-3", 20), 17, 19);
+        assertRanges(ByteRanges.parse(" BYTES=2-3 ", 20), 2, 3);
+        // End past the end of the body is clamped;  an oversized suffix is
+        // the whole body
+        assertRanges(ByteRanges.parse("bytes=10-100", 20), 10, 19);
+        assertRanges(ByteRanges.parse("bytes=-100", 20), 0, 19);
+    }
+
+    @Test
+    public void rangesAreSortedAndCoalesced() {
+        assertRanges(ByteRanges.parse("bytes=10-12,0-1", 20), 0, 1, 10, 12);
+        // Overlapping and adjacent
+        assertRanges(ByteRanges.parse("bytes=0-4,3-6,7-8", 20), 0, 8);
+        // One range swallowing several later ones
+        assertRanges(ByteRanges.parse("bytes=0-10,2-3,5-15", 20), 0, 15);
+        assertRanges(ByteRanges.parse("bytes=0-1,,-2", 20), 0, 1, 18, 19);
+    }
+
+    @Test
+    public void unsatisfiableRangesAreEmpty() {
+        assertTrue(ByteRanges.parse("bytes=20-30", 20).isEmpty());
+        assertTrue(ByteRanges.parse("bytes=-0", 20).isEmpty());
+        assertTrue(ByteRanges.parse("bytes=0-", 0).isEmpty());
+        assertRanges(ByteRanges.parse("bytes=25-30,1-2", 20), 1, 2);
+    }
+
+    @Test
+    public void invalidHeadersAreIgnored() {
+        assertNull(ByteRanges.parse("items=0-4", 20));
+        assertNull(ByteRanges.parse("bytes=4", 20));
+        assertNull(ByteRanges.parse("bytes=a-b", 20));
+        assertNull(ByteRanges.parse("bytes=5-4", 20));
+        StringBuilder many = new StringBuilder("bytes=");
+        for (int i = 0; i < 17; i++) {
+            many.append(i == 0 ? "" : ",").append(i).append('-').append(i);
+        }
+        assertNull(ByteRanges.parse(many.toString(), 20));
+    }
+
+    @Test
+    public void ifRangeWithETag() {
+        List<ResponseAdapter.Header<?>> headers = headers("ETag", "\"abc\"", "Last-Modified", date(MODIFIED));
+        assertTrue(ByteRanges.ifRangeMatches(headers, null));
+        assertTrue(ByteRanges.ifRangeMatches(headers, "\"abc\""));
+        assertFalse(ByteRanges.ifRangeMatches(headers, "\"xyz\""));
+        // If-Range requires the strong comparison
+        assertFalse(ByteRanges.ifRangeMatches(headers, "W/\"abc\""));
+        assertFalse(ByteRanges.ifRangeMatches(headers("ETag", "W/\"abc\""), "W/\"abc\""));
+        assertFalse(ByteRanges.ifRangeMatches(headers("Last-Modified", date(MODIFIED)), "\"abc\""));
+    }
+
+    @Test
+    public void ifRangeWithDate() {
+        List<ResponseAdapter.Header<?>> headers = headers("Last-Modified", date(MODIFIED));
+        assertTrue(ByteRanges.ifRangeMatches(headers, date(MODIFIED)));
+        // Unlike If-Modified-Since, only an exact match will do
+        assertFalse(ByteRanges.ifRangeMatches(headers, date(MODIFIED.plusSeconds(1))));
+        assertFalse(ByteRanges.ifRangeMatches(headers, date(MODIFIED.minusSeconds(1))));
+        assertFalse(ByteRanges.ifRangeMatches(headers, "garbage"));
+        assertFalse(ByteRanges.ifRangeMatches(headers("ETag", "\"abc\""), date(MODIFIED)));
+    }
+
+    @Test
+    public void multipartFraming() throws IOException {
+        List<long[]> ranges = ByteRanges.parse("bytes=5-6,0-1", BODY.length);
+        ByteRanges.Multipart multipart = new ByteRanges.Multipart(ranges, "text/plain", BODY.length, "BOUNDARY");
+        String expected = "\r\n--BOUNDARY\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Content-Range: bytes 0-1/20\r\n\r\n"
+                + "01"
+                + "\r\n--BOUNDARY\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Content-Range: bytes 5-6/20\r\n\r\n"
+                + "56"
+                + "\r\n--BOUNDARY--\r\n";
+        String body = write(multipart);
+        assertEquals(expected, body);
+        assertEquals(body.length(), multipart.contentLength);
+    }
+
+    @Test
+    public void multipartWithoutContentType() throws IOException {
+        List<long[]> ranges = ByteRanges.parse("bytes=0-0,-1", BODY.length);
+        ByteRanges.Multipart multipart = new ByteRanges.Multipart(ranges, null, BODY.length, "b");
+        String body = write(multipart);
+        assertEquals("\r\n--b\r\nContent-Range: bytes 0-0/20\r\n\r\n0"
+                + "\r\n--b\r\nContent-Range: bytes 19-19/20\r\n\r\nj"
+                + "\r\n--b--\r\n", body);
+        assertEquals(body.length(), multipart.contentLength);
+    }
+
+    private static String write(ByteRanges.Multipart multipart) throws IOException {
+        EmbeddedChannel channel = new EmbeddedChannel(new ChannelOutboundHandlerAdapter());
+        assertTrue(multipart.write(channel, new ByteRanges.Slicer() {
+            @Override
+            public void write(Channel channel, long offset, long length) {
+                channel.write(new DefaultHttpContent(Unpooled.wrappedBuffer(BODY, (int) offset, (int) length)));
+            }
+        }).isSuccess());
+        StringBuilder sb = new StringBuilder();
+        Object msg;
+        Object last = null;
+        while ((msg = channel.readOutbound()) != null) {
+            HttpContent content = (HttpContent) msg;
+            sb.append(content.content().toString(StandardCharsets.US_ASCII));
+            content.release();
+            last = msg;
+        }
+        assertTrue("Body not terminated", last instanceof LastHttpContent);
+        channel.finish();
+        return sb.toString();
+    }
+
+    private static void assertRanges(List<long[]> ranges, long... startsAndEnds) {
+        long[] actual = new long[ranges.size() * 2];
+        for (int i = 0; i < ranges.size(); i++) {
+            actual[i * 2] = ranges.get(i)[0];
+            actual[i * 2 + 1] = ranges.get(i)[1];
+        }
+        assertArrayEquals(Arrays.toString(actual), startsAndEnds, actual);
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket.adapters;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests that compressed response bodies are correctly framed - that what
+ * the body writer produces decodes, with standard decoders, back to exactly
+ * what was written, across chunk boundaries.
+ *
+ * @author Tim Boudreau
+ */
+public class CompressionTest {
+
+    private final Compression compression = new Compression(256, Arrays.asList("text/html", "text/css"), 6, 2);
+
+    @After
+    public void tearDown() {
+        compression.close();
+    }
+
+    @Test
+    public void gzipBodyDecodes() throws IOException {
+        ResponseAdapter.CFL cfl = cfl(Compression.Encoding.GZIP, true);
+        byte[] expected = writeBody(cfl);
+        cfl.complete();
+        byte[] body = bytes(cfl);
+        assertEquals(0x1f, body[0] & 0xFF);
+        assertEquals(0x8b, body[1] & 0xFF);
+        assertTrue("Not compressed", body.length < expected.length);
+        // GZIPInputStream checks the CRC32 and length in the trailer
+        assertArrayEquals(expected, readAll(new GZIPInputStream(new ByteArrayInputStream(body))));
+        cfl.release();
+    }
+
+    @Test
+    public void deflateBodyDecodes() throws IOException {
+        ResponseAdapter.CFL cfl = cfl(Compression.Encoding.DEFLATE, true);
+        byte[] expected = writeBody(cfl);
+        cfl.complete();
+        byte[] body = bytes(cfl);
+        assertTrue("Not compressed", body.length < expected.length);
+        assertArrayEquals(expected, readAll(new InflaterInputStream(new ByteArrayInputStream(body))));
+        cfl.release();
+    }
+
+    @Test
+    public void smallBodyIsNotCompressed() {
+        final boolean[] asked = new boolean[1];
+        ResponseAdapter.CFL cfl = new ResponseAdapter.CFL(UnpooledByteBufAllocator.DEFAULT, StandardCharsets.UTF_8);
+        cfl.compress(compression, Compression.Encoding.GZIP, new ResponseAdapter.CFL.Decider() {
+            @Override
+            public boolean decide() {
+                asked[0] = true;
+                return true;
+            }
+        });
+        cfl.write("<p>hello</p>");
+        cfl.complete();
+        assertFalse(asked[0]);
+        assertArrayEquals("<p>hello</p>".getBytes(StandardCharsets.UTF_8), bytes(cfl));
+        cfl.release();
+    }
+
+    @Test
+    public void declinedBodyIsNotCompressed() {
+        ResponseAdapter.CFL cfl = cfl(Compression.Encoding.GZIP, false);
+        byte[] expected = writeBody(cfl);
+        cfl.complete();
+        assertArrayEquals(expected, bytes(cfl));
+        cfl.release();
+    }
+
+    @Test
+    public void etagDistinguishesEncodings() {
+        ResponseAdapter.CFL plain = cfl(Compression.Encoding.GZIP, false);
+        ResponseAdapter.CFL gzip = cfl(Compression.Encoding.GZIP, true);
+        writeBody(plain);
+        writeBody(gzip);
+        plain.complete();
+        gzip.complete();
+        String plainTag = plain.etag();
+        String gzipTag = gzip.etag();
+        assertEquals(plainTag.substring(0, plainTag.length() - 1) + "-gzip\"", gzipTag);
+        plain.release();
+        gzip.release();
+    }
+
+    @Test
+    public void negotiation() {
+        assertNull(compression.negotiate(null));
+        assertNull(compression.negotiate("identity"));
+        assertNull(compression.negotiate("gzip;q=0"));
+        assertEquals(Compression.Encoding.GZIP, compression.negotiate("deflate, gzip"));
+        assertEquals(Compression.Encoding.GZIP, compression.negotiate("*"));
+        assertEquals(Compression.Encoding.DEFLATE, compression.negotiate("gzip;q=0, deflate;q=0.5"));
+    }
+
+    @Test
+    public void compressibleTypes() {
+        assertTrue(compression.isCompressible("text/html; charset=UTF-8"));
+        assertTrue(compression.isCompressible("TEXT/CSS"));
+        assertFalse(compression.isCompressible("image/png"));
+        assertFalse(compression.isCompressible(null));
+    }
+
+    private ResponseAdapter.CFL cfl(Compression.Encoding encoding, final boolean compress) {
+        ResponseAdapter.CFL cfl = new ResponseAdapter.CFL(UnpooledByteBufAllocator.DEFAULT, StandardCharsets.UTF_8);
+        cfl.compress(compression, encoding, new ResponseAdapter.CFL.Decider() {
+            @Override
+            public boolean decide() {
+                return compress;
+            }
+        });
+        return cfl;
+    }
+
+    /**
+     * Write several chunks' worth of text and bytes, with multi-byte
+     * characters straddling chunk boundaries.
+     */
+    private static byte[] writeBody(ResponseAdapter.CFL cfl) {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 2000; i++) {
+            String line = "<li class=\"item\">Item " + i + " \u00e9t\u00e9 \u2603 \ud83d\ude00</li>\n";
+            cfl.write(line);
+            byte[] lineBytes = line.getBytes(StandardCharsets.UTF_8);
+            expected.write(lineBytes, 0, lineBytes.length);
+            if (i % 100 == 0) {
+                byte[] raw = new byte[517];
+                Arrays.fill(raw, (byte) ('a' + (i / 100) % 26));
+                cfl.write(raw, 0, raw.length);
+                expected.write(raw, 0, raw.length);
+            }
+        }
+        return expected.toByteArray();
+    }
+
+    private static byte[] bytes(ResponseAdapter.CFL cfl) {
+        ByteBuf content = cfl.content();
+        byte[] result = new byte[content.readableBytes()];
+        content.getBytes(content.readerIndex(), result);
+        return result;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        try {
+            for (int count; (count = in.read(buf)) >= 0;) {
+                out.write(buf, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+}
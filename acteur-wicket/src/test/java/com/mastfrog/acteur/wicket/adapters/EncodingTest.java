@@ -0,0 +1,136 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket.adapters;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import static org.junit.Assert.assertArrayEquals;
+import org.junit.Test;
+
+/**
+ * Tests that character data written to a response body is encoded exactly
+ * as String.getBytes() would encode it, by the hand-written UTF-8 and
+ * single-byte encoders and by the CharsetEncoder used for anything else -
+ * including surrogate pairs, lone surrogates and unmappable characters,
+ * and across chunk boundaries.
+ *
+ * @author Tim Boudreau
+ */
+public class EncodingTest {
+
+    private static final String[] SAMPLES = {
+        "<p class=\"x\">plain ascii</p>",
+        "\u00e9t\u00e9 \u00ff \u0100 \u20ac",
+        "\u2603 \u65e5\u672c\u8a9e \uffff",
+        // A surrogate pair
+        "a\ud83d\ude00b",
+        // Lone high and low surrogates
+        "a\ud83db",
+        "a\ude00b",
+        // A high surrogate followed by a pair
+        "x\ud83d\ud83d\ude00",
+        // A high surrogate at the very end
+        "end\ud83d"
+    };
+
+    @Test
+    public void utf8() {
+        assertEncodedLikeString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void iso88591() {
+        assertEncodedLikeString(StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    public void usAscii() {
+        assertEncodedLikeString(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void charsetEncoderFallback() {
+        assertEncodedLikeString(Charset.forName("windows-1252"));
+        assertEncodedLikeString(Charset.forName("Shift_JIS"));
+        assertEncodedLikeString(StandardCharsets.UTF_16BE);
+    }
+
+    @Test
+    public void multiByteCharactersAtChunkBoundaries() {
+        for (Charset charset : Arrays.asList(StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1,
+                Charset.forName("Shift_JIS"), StandardCharsets.UTF_16BE)) {
+            // Shift the samples along a byte at a time so every position
+            // of a multi-byte sequence lands on the end of the first chunk
+            for (int pad = 1; pad <= 4; pad++) {
+                char[] ascii = new char[ResponseAdapter.CFL.CHUNK_SIZE - pad];
+                Arrays.fill(ascii, 'a');
+                StringBuilder sb = new StringBuilder(new String(ascii));
+                for (String sample : SAMPLES) {
+                    sb.append(sample);
+                }
+                String text = sb.toString();
+                assertEncoded(charset, text.getBytes(charset), text);
+            }
+        }
+    }
+
+    @Test
+    public void bodyLongerThanManyChunks() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < ResponseAdapter.CFL.CHUNK_SIZE * 5; i++) {
+            sb.append(SAMPLES[i % SAMPLES.length]).append(i);
+        }
+        String text = sb.toString();
+        for (Charset charset : Arrays.asList(StandardCharsets.UTF_8, StandardCharsets.US_ASCII,
+                Charset.forName("Shift_JIS"))) {
+            assertEncoded(charset, text.getBytes(charset), text);
+        }
+    }
+
+    private static void assertEncodedLikeString(Charset charset) {
+        StringBuilder all = new StringBuilder();
+        for (String sample : SAMPLES) {
+            assertEncoded(charset, sample.getBytes(charset), sample);
+            all.append(sample);
+        }
+        // One write after another, reusing the encoder
+        assertEncoded(charset, all.toString().getBytes(charset), SAMPLES);
+    }
+
+    private static void assertEncoded(Charset charset, byte[] expected, String... writes) {
+        ResponseAdapter.CFL cfl = new ResponseAdapter.CFL(UnpooledByteBufAllocator.DEFAULT, charset);
+        for (String s : writes) {
+            cfl.write(s);
+        }
+        cfl.complete();
+        ByteBuf content = cfl.content();
+        byte[] actual = new byte[content.readableBytes()];
+        content.getBytes(content.readerIndex(), actual);
+        cfl.release();
+        assertArrayEquals(charset + ": " + Arrays.toString(writes), expected, actual);
+    }
+}
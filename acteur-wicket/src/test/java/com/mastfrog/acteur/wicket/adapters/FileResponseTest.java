@@ -0,0 +1,170 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket.adapters;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.FileRegion;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpContentCompressor;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.ReferenceCountUtil;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that file bodies go out as a FileRegion only where nothing in the
+ * pipeline needs to see the bytes, and otherwise as memory-mapped buffers,
+ * a window at a time for files too large to map at once.
+ *
+ * @author Tim Boudreau
+ */
+public class FileResponseTest {
+
+    private File file;
+    private byte[] contents;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("file-response", ".bin");
+        contents = new byte[10000];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = (byte) (i * 31);
+        }
+        Files.write(file.toPath(), contents);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void fileRegionOnlyWhereNothingTransformsTheBody() throws Exception {
+        assertTrue(FileResponse.canUseFileRegion(new EmbeddedChannel(new ChannelOutboundHandlerAdapter())));
+        assertFalse(FileResponse.canUseFileRegion(new EmbeddedChannel(new HttpContentCompressor())));
+        SSLEngine engine = SSLContext.getDefault().createSSLEngine();
+        engine.setUseClientMode(false);
+        assertFalse(FileResponse.canUseFileRegion(new EmbeddedChannel(new SslHandler(engine))));
+    }
+
+    @Test
+    public void plainPipelineGetsFileRegion() throws IOException {
+        EmbeddedChannel channel = new EmbeddedChannel(new ChannelOutboundHandlerAdapter());
+        new FileResponse(file).writeWindow(channel, 100, 250);
+        channel.flush();
+        Object msg = channel.readOutbound();
+        assertTrue(String.valueOf(msg), msg instanceof FileRegion);
+        FileRegion region = (FileRegion) msg;
+        assertEquals(100, region.position());
+        assertEquals(250, region.count());
+        region.release();
+        assertNull(channel.readOutbound());
+    }
+
+    @Test
+    public void compressingPipelineGetsMappedBytes() throws IOException {
+        EmbeddedChannel channel = compressingChannel();
+        new FileResponse(file).writeWindow(channel, 100, 250);
+        new FileResponse(file).writeWindow(channel, 0, contents.length);
+        channel.flush();
+        List<ByteBuf> written = contents(channel);
+        assertEquals(2, written.size());
+        assertArrayEquals(Arrays.copyOfRange(contents, 100, 350), bytes(written.get(0)));
+        assertArrayEquals(contents, bytes(written.get(1)));
+    }
+
+    @Test
+    public void largeFileIsMappedAWindowAtATime() throws IOException {
+        File large = File.createTempFile("file-response-large", ".bin");
+        try {
+            // Sparse, so this costs no disk
+            try (RandomAccessFile raf = new RandomAccessFile(large, "rw")) {
+                raf.setLength(FileResponse.MAX_MAPPING + 100);
+                raf.seek(FileResponse.MAX_MAPPING);
+                raf.write(contents, 0, 100);
+            }
+            EmbeddedChannel channel = compressingChannel();
+            new FileResponse(large).writeWindow(channel, 1, FileResponse.MAX_MAPPING + 99);
+            channel.flush();
+            List<ByteBuf> written = contents(channel);
+            assertEquals(2, written.size());
+            assertEquals(FileResponse.MAX_MAPPING, written.get(0).readableBytes());
+            assertArrayEquals(Arrays.copyOfRange(contents, 1, 100), bytes(written.get(1)));
+        } finally {
+            large.delete();
+        }
+    }
+
+    /**
+     * A channel with a content encoder which has seen a request that does
+     * not accept compression, so content passes through it unchanged.
+     */
+    private static EmbeddedChannel compressingChannel() {
+        EmbeddedChannel channel = new EmbeddedChannel(new HttpContentCompressor());
+        channel.writeInbound(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/"));
+        ReferenceCountUtil.release(channel.readInbound());
+        channel.writeOutbound(new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK));
+        assertTrue(channel.readOutbound() instanceof HttpResponse);
+        return channel;
+    }
+
+    private static List<ByteBuf> contents(EmbeddedChannel channel) {
+        List<ByteBuf> result = new ArrayList<>();
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            assertFalse("Sent a FileRegion through a compressor", msg instanceof FileRegion);
+            result.add(((HttpContent) msg).content());
+        }
+        return result;
+    }
+
+    private static byte[] bytes(ByteBuf buf) {
+        byte[] result = new byte[buf.readableBytes()];
+        buf.getBytes(buf.readerIndex(), result);
+        return result;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket.adapters;
+
+import com.google.common.net.MediaType;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+/**
+ * Tests MIME type lookup by file name.
+ *
+ * @author Tim Boudreau
+ */
+public class MimeTypesTest {
+
+    private final MimeTypes types = new MimeTypes(Collections.<String, String>emptyMap());
+
+    @Test
+    public void knownExtensions() {
+        assertEquals("text/html", types.mimeType("index.html"));
+        assertEquals("image/png", types.mimeType("/some/dir/logo.png"));
+        assertEquals("application/javascript", types.mimeType("wicket-event-jquery.min.js"));
+        assertEquals("font/woff2", types.mimeType("fonts\\icons.woff2"));
+    }
+
+    @Test
+    public void lookupIgnoresCase() {
+        assertEquals("image/jpeg", types.mimeType("PHOTO.JPG"));
+        assertEquals("text/css", types.mimeType("style.Css"));
+    }
+
+    @Test
+    public void unknownOrMissingExtensions() {
+        assertNull(types.mimeType(null));
+        assertNull(types.mimeType("README"));
+        assertNull(types.mimeType("archive."));
+        assertNull(types.mimeType("file.unknownext"));
+        // A dot in a directory name is not an extension
+        assertNull(types.mimeType("some.dir/README"));
+        assertNull(types.mimeType("some.dir\\README"));
+    }
+
+    @Test
+    public void contentTypeAddsCharsetToText() {
+        assertEquals("text/css; charset=UTF-8", types.contentType("style.css"));
+        assertEquals("application/javascript; charset=UTF-8", types.contentType("app.js"));
+        assertEquals("application/json; charset=UTF-8", types.contentType("data.json"));
+        assertEquals("image/gif", types.contentType("spacer.gif"));
+        assertEquals(MimeTypes.DEFAULT_TYPE, types.contentType("README"));
+        assertEquals(MimeTypes.DEFAULT_TYPE, types.contentType(null));
+    }
+
+    @Test
+    public void extraMappingsAddAndOverride() {
+        Map<String, String> extra = new HashMap<>();
+        extra.put(".Foo", "application/x-foo");
+        extra.put("js", "text/javascript");
+        extra.put("", "ignored/empty");
+        MimeTypes custom = new MimeTypes(extra);
+        assertEquals("application/x-foo", custom.mimeType("thing.foo"));
+        assertEquals("text/javascript", custom.mimeType("app.js"));
+        assertEquals("text/javascript; charset=UTF-8", custom.contentType("app.js"));
+        assertEquals("text/html", custom.mimeType("index.html"));
+    }
+
+    @Test
+    public void everyDefaultIsFound() {
+        // Collisions in the open-addressed table must not hide any entry
+        String[] names = {"html", "htm", "css", "js", "mjs", "json", "xml", "txt", "png", "gif", "jpg",
+            "jpeg", "svg", "ico", "woff", "woff2", "ttf", "mp4", "pdf", "zip", "gz", "jar", "docx", "bin"};
+        for (String name : names) {
+            assertNotNull(name, types.mimeType("f." + name));
+        }
+    }
+
+    @Test
+    public void mediaTypesAreCached() {
+        MediaType first = MimeTypes.mediaType("text/html; charset=UTF-8");
+        assertEquals("text", first.type());
+        assertEquals("html", first.subtype());
+        assertEquals("UTF-8", first.charset().get().name());
+        assertSame(first, MimeTypes.mediaType("text/html; charset=UTF-8"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badMediaTypeThrows() {
+        MimeTypes.mediaType("not a media type");
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket.adapters;
+
+import com.mastfrog.acteur.headers.Headers;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+/**
+ * Tests conditional GET - when a cached response may be answered with a
+ * 304 Not Modified.
+ *
+ * @author Tim Boudreau
+ */
+public class ValidatorsTest {
+
+    private static final DateTime MODIFIED = new DateTime(2015, 3, 14, 15, 9, 26, 0, DateTimeZone.UTC);
+
+    @Test
+    public void matchingETagIsNotModified() {
+        List<ResponseAdapter.Header<?>> headers = headers("ETag", "\"abc\"");
+        assertTrue(Validators.notModified(headers, "\"abc\"", null));
+        assertTrue(Validators.notModified(headers, "\"xyz\", \"abc\"", null));
+        assertFalse(Validators.notModified(headers, "\"xyz\"", null));
+        assertFalse(Validators.notModified(headers, null, null));
+    }
+
+    @Test
+    public void ifNoneMatchUsesWeakComparison() {
+        assertTrue(Validators.notModified(headers("ETag", "W/\"abc\""), "\"abc\"", null));
+        assertTrue(Validators.notModified(headers("ETag", "\"abc\""), "W/\"abc\"", null));
+    }
+
+    @Test
+    public void wildcardMatchesOnlyIfThereIsAnETag() {
+        assertTrue(Validators.notModified(headers("ETag", "\"abc\""), "*", null));
+        assertFalse(Validators.notModified(headers("Last-Modified", date(MODIFIED)), "*", null));
+    }
+
+    @Test
+    public void ifModifiedSinceComparesToTheSecond() {
+        List<ResponseAdapter.Header<?>> headers = headers("Last-Modified", date(MODIFIED));
+        assertTrue(Validators.notModified(headers, null, date(MODIFIED)));
+        assertTrue(Validators.notModified(headers, null, date(MODIFIED.plusMinutes(1))));
+        assertFalse(Validators.notModified(headers, null, date(MODIFIED.minusSeconds(1))));
+        assertFalse(Validators.notModified(headers, null, "not a date"));
+        assertFalse(Validators.notModified(headers("ETag", "\"abc\""), null, date(MODIFIED)));
+    }
+
+    @Test
+    public void ifNoneMatchTakesPrecedence() {
+        List<ResponseAdapter.Header<?>> headers = headers("ETag", "\"abc\"", "Last-Modified", date(MODIFIED));
+        // The dates say not modified, but a non-matching ETag overrides them
+        assertFalse(Validators.notModified(headers, "\"xyz\"", date(MODIFIED)));
+        assertTrue(Validators.notModified(headers, "\"abc\"", date(MODIFIED.minusDays(1))));
+    }
+
+    @Test
+    public void headerLookupIsCaseInsensitive() {
+        List<ResponseAdapter.Header<?>> headers = headers("etag", "\"abc\"");
+        assertTrue(Validators.notModified(headers, "\"abc\"", null));
+        assertTrue(CachedResponse.create(new byte[0], "ETAG", "\"abc\"").isNotModified("\"abc\"", null));
+    }
+
+    static List<ResponseAdapter.Header<?>> headers(String... namesAndValues) {
+        List<ResponseAdapter.Header<?>> result = new ArrayList<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            result.add(new ResponseAdapter.Header<>(Headers.stringHeader(namesAndValues[i]), namesAndValues[i + 1]));
+        }
+        return result;
+    }
+
+    static String date(DateTime when) {
+        return Headers.ISO2822DateFormat.print(when);
+    }
+}